@@ -726,6 +726,10 @@ SsoWebViewClientListener, OnSslUntrustedCertListener {
             getServerInfoIntent.putExtra(OperationsService.EXTRA_AUTH_TOKEN_TYPE, mAuthTokenType);
             if (mOperationsServiceBinder != null) {
                 //Log_OC.wtf(TAG, "checking server..." );
+                if (mWaitingForOpId <= Integer.MAX_VALUE) {
+                    // the previous check is useless now; don't let it delay the new one
+                    mOperationsServiceBinder.cancel(mWaitingForOpId);
+                }
                 mWaitingForOpId = mOperationsServiceBinder.newOperation(getServerInfoIntent);
             } else {
               Log_OC.wtf(TAG, "Server check tried with OperationService unbound!" );
@@ -924,7 +928,8 @@ SsoWebViewClientListener, OnSslUntrustedCertListener {
     public void onRemoteOperationFinish(RemoteOperation operation, RemoteOperationResult result) {
 
         if (operation instanceof GetServerInfoOperation) {
-            if (operation.hashCode() == mWaitingForOpId) {
+            if (mOperationsServiceBinder != null && 
+                    mOperationsServiceBinder.getOperationId(operation) == mWaitingForOpId) {
                 onGetServerInfoFinish(result);
             }   // else nothing ; only the last check operation is considered; 
                 // multiple can be started if the user amends a URL quickly
@@ -1743,7 +1748,7 @@ SsoWebViewClientListener, OnSslUntrustedCertListener {
         //Log_OC.wtf(TAG, "registering to listen for operation callbacks" );
         mOperationsServiceBinder.addOperationListener(AuthenticatorActivity.this, mHandler);
         if (mWaitingForOpId <= Integer.MAX_VALUE) {
-            mOperationsServiceBinder.dispatchResultIfFinished((int)mWaitingForOpId, this);
+            mOperationsServiceBinder.dispatchResultIfFinished(mWaitingForOpId, this);
         }
         
         if (mPendingAutoCheck) {
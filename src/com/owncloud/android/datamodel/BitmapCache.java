@@ -0,0 +1,460 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import android.annotation.SuppressLint;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import com.owncloud.android.utils.Log_OC;
+
+/**
+ * App-wide cache of decoded bitmaps of local files, bounded by the memory available to the app.
+ *
+ * Entries are keyed by storage path, last modification of the local file and size requested, so that
+ * a file changed in the device, or requested for a different target, is decoded again.
+ *
+ * Bitmaps are shared: bitmaps returned by {@link #getBitmap(String, int, int)} must be handed back with
+ * {@link #release(Bitmap)} when not shown anymore, instead of recycling them. Bitmaps leaving the cache
+ * and not shown are kept as candidates to decode new bitmaps into them (API 11 and later), or recycled.
+ */
+public class BitmapCache {
+
+    private static final String TAG = BitmapCache.class.getSimpleName();
+
+    /** Fraction of the memory class of the app devoted to the cache; enough for a full screen image and its neighbours */
+    private static final int MEMORY_CLASS_FRACTION = 4;
+
+    private static BitmapCache sInstance = null;
+
+    private final LruCache<String, Bitmap> mCache;
+    private final Map<String, DecodeTask> mDecodesInProgress = new HashMap<String, DecodeTask>();
+    private final Map<Bitmap, Integer> mDisplayCounts = new HashMap<Bitmap, Integer>();
+    private final Set<Bitmap> mCachedBitmaps = new HashSet<Bitmap>();
+    private final List<SoftReference<Bitmap>> mReusableBitmaps = new LinkedList<SoftReference<Bitmap>>();
+    private final ExecutorService mPrefetchExecutor;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mDecodes = 0;
+    private long mDecodeTime = 0;
+    private long mReuses = 0;
+
+
+    public static synchronized BitmapCache getInstance(Context context) {
+        if (sInstance == null) {
+            ActivityManager am = (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+            int maxSize = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+            sInstance = new BitmapCache(maxSize);
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * @param maxSize   Maximum amount of bytes held by the bitmaps in the cache.
+     */
+    BitmapCache(int maxSize) {
+        Log_OC.d(TAG, "Cache size " + (maxSize / 1024) + " KB");
+        mCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return getByteCount(bitmap);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldBitmap, Bitmap newBitmap) {
+                onRemovedFromCache(oldBitmap);
+            }
+        };
+        mPrefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+
+    /**
+     * Returns the bitmap for a local file scaled down to fit approximately in the size requested, decoding
+     * it if not in the cache.
+     *
+     * Must not be called from the main thread. If the same bitmap is being decoded in other thread, waits
+     * for it instead of decoding it twice.
+     *
+     * The bitmap returned is not recycled nor reused while shown; the caller must call {@link #release(Bitmap)}
+     * when it is not shown anymore.
+     *
+     * @param storagePath   Full path to the local file.
+     * @param reqWidth      Target width, in pixels.
+     * @param reqHeight     Target height, in pixels.
+     * @return              Decoded bitmap, or null if the file could not be decoded.
+     */
+    public Bitmap getBitmap(String storagePath, int reqWidth, int reqHeight) {
+        String key = buildKey(storagePath, reqWidth, reqHeight);
+        DecodeTask decode;
+        boolean decodeHere = false;
+        synchronized (this) {
+            Bitmap cached = mCache.get(key);
+            if (cached != null) {
+                mHits++;
+                acquire(cached);
+                return cached;
+            }
+            mMisses++;
+            decode = mDecodesInProgress.get(key);
+            if (decode == null) {
+                decode = new DecodeTask(key, storagePath, reqWidth, reqHeight);
+                mDecodesInProgress.put(key, decode);
+                decodeHere = true;
+            }
+            decode.mRequests++;
+        }
+        if (decodeHere) {
+            decode.mFuture.run();
+        }
+        return waitForDecode(decode.mFuture);
+    }
+
+
+    /**
+     * Decodes in background the bitmap for a local file, if not in the cache yet, to have it ready when
+     * requested with {@link #getBitmap(String, int, int)}.
+     */
+    public synchronized void prefetch(String storagePath, int reqWidth, int reqHeight) {
+        String key = buildKey(storagePath, reqWidth, reqHeight);
+        if (mCache.get(key) == null && !mDecodesInProgress.containsKey(key)) {
+            DecodeTask decode = new DecodeTask(key, storagePath, reqWidth, reqHeight);
+            mDecodesInProgress.put(key, decode);
+            mPrefetchExecutor.execute(decode.mFuture);
+        }
+    }
+
+
+    /**
+     * Registers that a bitmap returned by {@link #getBitmap(String, int, int)} is not shown anymore.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = mDisplayCounts.get(bitmap);
+        if (count != null) {
+            if (count > 1) {
+                mDisplayCounts.put(bitmap, count - 1);
+            } else {
+                mDisplayCounts.remove(bitmap);
+                if (!mCachedBitmaps.contains(bitmap)) {
+                    discard(bitmap);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Empties the cache; bitmaps being shown are kept until released.
+     */
+    public synchronized void evictAll() {
+        mCache.evictAll();
+        mReusableBitmaps.clear();
+    }
+
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return  Average time to decode a bitmap, in milliseconds.
+     */
+    public synchronized long getAverageDecodeTime() {
+        return (mDecodes > 0) ? mDecodeTime / mDecodes : 0;
+    }
+
+    /**
+     * @return  Summary of the use of the cache, to trace in debug logs.
+     */
+    public synchronized String getStats() {
+        long requests = mHits + mMisses;
+        return "hits " + mHits + ", misses " + mMisses +
+                ", hit rate " + ((requests > 0) ? (mHits * 100 / requests) : 0) + "%" +
+                ", decodes " + mDecodes + ", average decode " + getAverageDecodeTime() + " ms" +
+                ", reused bitmaps " + mReuses +
+                ", size " + (mCache.size() / 1024) + " KB of " + (mCache.maxSize() / 1024) + " KB";
+    }
+
+
+    /**
+     * Decode of a bitmap requested by one or more threads, or prefetched.
+     *
+     * The result is cached and acquired for every request in the same critical section, so that it
+     * can not be reused before being shown.
+     */
+    private class DecodeTask implements Callable<Bitmap> {
+
+        final String mKey;
+        final String mStoragePath;
+        final int mReqWidth;
+        final int mReqHeight;
+        final FutureTask<Bitmap> mFuture = new FutureTask<Bitmap>(this);
+
+        /** Threads waiting for the result; guarded by the cache */
+        int mRequests = 0;
+
+        DecodeTask(String key, String storagePath, int reqWidth, int reqHeight) {
+            mKey = key;
+            mStoragePath = storagePath;
+            mReqWidth = reqWidth;
+            mReqHeight = reqHeight;
+        }
+
+        @Override
+        public Bitmap call() {
+            Bitmap bitmap = null;
+            try {
+                try {
+                    bitmap = decode(mStoragePath, mReqWidth, mReqHeight);
+                } catch (OutOfMemoryError e) {
+                    Log_OC.w(TAG, "Out of memory decoding " + mStoragePath + "; emptying the cache to try again");
+                    evictAll();
+                    bitmap = decode(mStoragePath, mReqWidth, mReqHeight);
+                }
+                return bitmap;
+
+            } finally {
+                synchronized (BitmapCache.this) {
+                    mDecodesInProgress.remove(mKey);
+                    if (bitmap != null) {
+                        for (int i = 0; i < mRequests; i++) {
+                            acquire(bitmap);
+                        }
+                        mCachedBitmaps.add(bitmap);
+                        mCache.put(mKey, bitmap);
+                    }
+                }
+            }
+        }
+    }
+
+
+    private Bitmap waitForDecode(FutureTask<Bitmap> decode) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return decode.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    @SuppressLint("NewApi")
+    private Bitmap decode(String storagePath, int reqWidth, int reqHeight) {
+        long start = SystemClock.uptimeMillis();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1) {
+            options.inPreferQualityOverSpeed = false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // mutable bitmaps can be decoded into later
+            options.inMutable = true;
+        } else {
+            options.inPurgeable = true;
+        }
+
+        // make a false load of the bitmap - just to be able to read outWidth, outHeight and outMimeType
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(storagePath, options);
+
+        // biggest power of two keeping the image at least as big as the target size in the dimension
+        // that limits the fitting; decoders round other values down to a power of two anyway
+        int scale = 1;
+        while (options.outWidth / (scale * 2) >= reqWidth || options.outHeight / (scale * 2) >= reqHeight) {
+            scale *= 2;
+        }
+        options.inSampleSize = scale;
+
+        if ("image/jpeg".equals(options.outMimeType)) {
+            // JPEG has no transparency; half the memory, with dithering to hide the loss of colours
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inDither = true;
+        }
+
+        // really load the bitmap
+        options.inJustDecodeBounds = false;
+        Bitmap result = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            options.inBitmap = takeReusableBitmap(options);
+            if (options.inBitmap != null) {
+                try {
+                    result = BitmapFactory.decodeFile(storagePath, options);
+                    if (result != null) {
+                        synchronized (this) {
+                            mReuses++;
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log_OC.d(TAG, "Bitmap could not be reused to decode " + storagePath);
+                    options.inBitmap = null;
+                }
+            }
+        }
+        if (result == null) {
+            result = BitmapFactory.decodeFile(storagePath, options);
+        }
+
+        long elapsed = SystemClock.uptimeMillis() - start;
+        synchronized (this) {
+            mDecodes++;
+            mDecodeTime += elapsed;
+        }
+        Log_OC.d(TAG, "Decoded " + storagePath + " with sample size " + scale + " in " + elapsed + " ms");
+        return result;
+    }
+
+
+    private synchronized void acquire(Bitmap bitmap) {
+        Integer count = mDisplayCounts.get(bitmap);
+        mDisplayCounts.put(bitmap, (count == null) ? 1 : count + 1);
+    }
+
+
+    private synchronized void onRemovedFromCache(Bitmap bitmap) {
+        mCachedBitmaps.remove(bitmap);
+        if (!mDisplayCounts.containsKey(bitmap)) {
+            discard(bitmap);
+        }
+    }
+
+
+    /**
+     * Keeps a bitmap not cached nor shown to decode other bitmaps into it, or recycles it when that is
+     * not possible.
+     */
+    private void discard(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && bitmap.isMutable()) {
+            mReusableBitmaps.add(new SoftReference<Bitmap>(bitmap));
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+
+    private synchronized Bitmap takeReusableBitmap(BitmapFactory.Options options) {
+        Iterator<SoftReference<Bitmap>> it = mReusableBitmaps.iterator();
+        while (it.hasNext()) {
+            Bitmap candidate = it.next().get();
+            if (candidate == null || candidate.isRecycled()) {
+                it.remove();
+            } else if (canReuse(candidate, options)) {
+                it.remove();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Before API 19 a bitmap can only be reused to decode a not scaled image of the same size;
+     * later, any bitmap big enough can be reused.
+     */
+    @SuppressLint("NewApi")
+    private static boolean canReuse(Bitmap candidate, BitmapFactory.Options options) {
+        int sample = Math.max(1, options.inSampleSize);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = (options.outWidth + sample - 1) / sample;
+            int height = (options.outHeight + sample - 1) / sample;
+            return width * height * getBytesPerPixel(options.inPreferredConfig) <= candidate.getAllocationByteCount();
+        }
+        return sample == 1 &&
+                candidate.getWidth() == options.outWidth &&
+                candidate.getHeight() == options.outHeight &&
+                candidate.getConfig() == ((options.inPreferredConfig == null) ? Bitmap.Config.ARGB_8888 : options.inPreferredConfig);
+    }
+
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+
+
+    @SuppressLint("NewApi")
+    private static int getByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+
+    private static String buildKey(String storagePath, int reqWidth, int reqHeight) {
+        return storagePath + "@" + new File(storagePath).lastModified() + ":" + reqWidth + "x" + reqHeight;
+    }
+
+}
@@ -22,7 +22,10 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
 
 import com.owncloud.android.MainApp;
@@ -43,12 +46,63 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.net.Uri;
 import android.os.RemoteException;
 
 public class FileDataStorageManager {
 
     public static final int ROOT_PARENT_ID = 0;
+    
+    /** SQLite limits the number of host parameters in a statement to 999 */
+    private static final int MAX_IDS_PER_QUERY = 500;
+    
+    /** 
+     * Order of the content of a folder in the database matching {@link OCFile#compareTo(OCFile)}: 
+     * folders first, then by path ignoring case
+     */
+    private static final String FOLDER_CONTENT_SORT_ORDER = 
+            "(" + ProviderTableMeta.FILE_CONTENT_TYPE + " = 'DIR') DESC, " + 
+            ProviderTableMeta.FILE_PATH + " COLLATE NOCASE ASC";
+
+    /** Columns read to build full {@link OCFile} instances */
+    private static final String[] FILE_PROJECTION = new String[] {
+        ProviderTableMeta._ID,
+        ProviderTableMeta.FILE_PARENT,
+        ProviderTableMeta.FILE_PATH,
+        ProviderTableMeta.FILE_CONTENT_TYPE,
+        ProviderTableMeta.FILE_STORAGE_PATH,
+        ProviderTableMeta.FILE_CONTENT_LENGTH,
+        ProviderTableMeta.FILE_CREATION,
+        ProviderTableMeta.FILE_MODIFIED,
+        ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA,
+        ProviderTableMeta.FILE_LAST_SYNC_DATE,
+        ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA,
+        ProviderTableMeta.FILE_KEEP_IN_SYNC,
+        ProviderTableMeta.FILE_ETAG,
+        ProviderTableMeta.FILE_SHARE_BY_LINK,
+        ProviderTableMeta.FILE_PUBLIC_LINK
+    };
+    
+    /** 
+     * Columns read to show files in the list of a folder; other columns are read when the user 
+     * operates on a file, with {@link #getFileById(long)} 
+     */
+    private static final String[] FILE_LISTING_PROJECTION = new String[] {
+        ProviderTableMeta._ID,
+        ProviderTableMeta.FILE_PARENT,
+        ProviderTableMeta.FILE_PATH,
+        ProviderTableMeta.FILE_CONTENT_TYPE,
+        ProviderTableMeta.FILE_STORAGE_PATH,
+        ProviderTableMeta.FILE_CONTENT_LENGTH,
+        ProviderTableMeta.FILE_MODIFIED,
+        ProviderTableMeta.FILE_KEEP_IN_SYNC,
+        ProviderTableMeta.FILE_ETAG,
+        ProviderTableMeta.FILE_SHARE_BY_LINK
+    };
+    
+    /** Columns read to check if a file exists */
+    private static final String[] FILE_EXISTENCE_PROJECTION = new String[] { ProviderTableMeta._ID };
 
     private ContentResolver mContentResolver;
     private ContentProviderClient mContentProviderClient;
@@ -148,6 +202,40 @@ public class FileDataStorageManager {
     }
     
     
+    /**
+     * Queries the content of a folder sorted in the database in the order of {@link #getFolderContent(OCFile)}, 
+     * without building an {@link OCFile} for every child.
+     * 
+     * Only the columns needed to show the files in a list are read; use {@link #getFileById(long)} 
+     * to get all the data of one of them.
+     * 
+     * @param folder    Folder to list.
+     * @return          Cursor over the content of the folder; the caller must close it. Null if it could not be queried.
+     */
+    public FolderContentCursor getFolderContentCursor(OCFile folder) {
+        if (folder == null || !folder.isFolder() || folder.getFileId() == -1) {
+            return null;
+        }
+        Uri req_uri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_DIR, String.valueOf(folder.getFileId()));
+        Cursor c = null;
+        if (getContentProviderClient() != null) {
+            try {
+                c = getContentProviderClient().query(req_uri, FILE_LISTING_PROJECTION, 
+                        ProviderTableMeta.FILE_PARENT + "=?", 
+                        new String[] { String.valueOf(folder.getFileId()) }, FOLDER_CONTENT_SORT_ORDER);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, e.getMessage());
+                return null;
+            }
+        } else {
+            c = getContentResolver().query(req_uri, FILE_LISTING_PROJECTION, 
+                    ProviderTableMeta.FILE_PARENT + "=?", 
+                    new String[] { String.valueOf(folder.getFileId()) }, FOLDER_CONTENT_SORT_ORDER);
+        }
+        return (c != null) ? new FolderContentCursor(c) : null;
+    }
+    
+    
     public Vector<OCFile> getFolderImages(OCFile folder) {
         Vector<OCFile> ret = new Vector<OCFile>(); 
         if (folder != null) {
@@ -237,12 +325,6 @@ public class FileDataStorageManager {
             }            
         }
 
-//        if (file.isFolder()) {
-//            updateFolderSize(file.getFileId());
-//        } else {
-//            updateFolderSize(file.getParentId());
-//        }
-        
         return overriden;
     }
 
@@ -263,6 +345,11 @@ public class FileDataStorageManager {
 
         ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(updatedFiles.size());
 
+        // get the ids of the files already known in the database with a single query, instead of two per child
+        HashMap<String, Long> existingIds = getChildrenIdsByPath(folder);
+        HashSet<Long> existingIdsSet = new HashSet<Long>(existingIds.values());
+        existingIdsSet.addAll(getExistingIdsOutOfFolder(updatedFiles, existingIds, existingIdsSet));
+
         // prepare operations to insert or update files to save in the given folder
         for (OCFile file : updatedFiles) {
             ContentValues cv = new ContentValues();
@@ -286,8 +373,11 @@ public class FileDataStorageManager {
             cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, file.isShareByLink() ? 1 : 0);
             cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, file.getPublicLink());
 
-            boolean existsByPath = fileExists(file.getRemotePath());
-            if (existsByPath || fileExists(file.getFileId())) {
+            Long idByPath = existingIds.get(file.getRemotePath());
+            if (idByPath != null) {
+                file.setFileId(idByPath);
+            }
+            if (idByPath != null || existingIdsSet.contains(file.getFileId())) {
                 // updating an existing file
                 operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
                         withValues(cv).
@@ -330,7 +420,7 @@ public class FileDataStorageManager {
         cv.put(ProviderTableMeta.FILE_MODIFIED, folder.getModificationTimestamp());
         cv.put(ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA, folder.getModificationTimestampAtLastSyncForData());
         cv.put(ProviderTableMeta.FILE_CREATION, folder.getCreationTimestamp());
-        cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, 0);   // FileContentProvider calculates the right size
+        // no size; FileContentProvider keeps the size of folders up to date with their contents
         cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, folder.getMimetype());
         cv.put(ProviderTableMeta.FILE_NAME, folder.getFileName());
         cv.put(ProviderTableMeta.FILE_PARENT, folder.getParentId());
@@ -388,38 +478,105 @@ public class FileDataStorageManager {
             }
         }
         
-        //updateFolderSize(folder.getFileId());
-        
     }
 
 
-//    /**
-//     * 
-//     * @param id
-//     */
-//    private void updateFolderSize(long id) {
-//        if (id > FileDataStorageManager.ROOT_PARENT_ID) {
-//            Log_OC.d(TAG, "Updating size of " + id);
-//            if (getContentResolver() != null) {
-//                getContentResolver().update(ProviderTableMeta.CONTENT_URI_DIR, 
-//                        new ContentValues(),    // won't be used, but cannot be null; crashes in KLP
-//                        ProviderTableMeta._ID + "=?",
-//                        new String[] { String.valueOf(id) });
-//            } else {
-//                try {
-//                    getContentProviderClient().update(ProviderTableMeta.CONTENT_URI_DIR, 
-//                            new ContentValues(),    // won't be used, but cannot be null; crashes in KLP
-//                            ProviderTableMeta._ID + "=?",
-//                            new String[] { String.valueOf(id) });
-//                    
-//                } catch (RemoteException e) {
-//                    Log_OC.e(TAG, "Exception in update of folder size through compatibility patch " + e.getMessage());
-//                }
-//            }
-//        } else {
-//            Log_OC.e(TAG,  "not updating size for folder " + id);
-//        }
-//    }
+    /**
+     * Reads in a single query the ids of all the files registered in the database as children 
+     * of the given folder.
+     * 
+     * @param folder    Folder whose children will be read.
+     * @return          Map from remote paths to ids of the children of folder.
+     */
+    private HashMap<String, Long> getChildrenIdsByPath(OCFile folder) {
+        HashMap<String, Long> ids = new HashMap<String, Long>();
+        if (folder.getFileId() == -1) {
+            return ids;
+        }
+        String[] projection = new String[] { ProviderTableMeta._ID, ProviderTableMeta.FILE_PATH };
+        String where = ProviderTableMeta.FILE_PARENT + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?";
+        String[] whereArgs = new String[] { String.valueOf(folder.getFileId()), mAccount.name };
+        Cursor c = null;
+        if (getContentResolver() != null) {
+            c = getContentResolver().query(ProviderTableMeta.CONTENT_URI, projection, where, whereArgs, null);
+        } else {
+            try {
+                c = getContentProviderClient().query(ProviderTableMeta.CONTENT_URI, projection, where, whereArgs, null);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Could not read children of " + folder.getRemotePath() + ": " + e.getMessage());
+            }
+        }
+        if (c != null) {
+            if (c.moveToFirst()) {
+                int idIndex = c.getColumnIndex(ProviderTableMeta._ID);
+                int pathIndex = c.getColumnIndex(ProviderTableMeta.FILE_PATH);
+                do {
+                    ids.put(c.getString(pathIndex), c.getLong(idIndex));
+                } while (c.moveToNext());
+            }
+            c.close();
+        }
+        return ids;
+    }
+    
+    
+    /**
+     * Checks in bulk which of the given files are registered in the database with an id that was
+     * not found among the children of the folder; for instance, files moved in the server.
+     * 
+     * Usually there are none, so no query is done at all.
+     * 
+     * @param files         Files to check.
+     * @param idsByPath     Ids of the children of the folder, by remote path.
+     * @param knownIds      Ids already known to exist.
+     * @return              Ids of files in 'files' that exist in the database out of 'knownIds'.
+     */
+    private HashSet<Long> getExistingIdsOutOfFolder(Collection<OCFile> files, 
+            HashMap<String, Long> idsByPath, HashSet<Long> knownIds) {
+        
+        ArrayList<String> candidates = new ArrayList<String>();
+        for (OCFile file : files) {
+            if (file.getFileId() != -1 && !idsByPath.containsKey(file.getRemotePath()) && 
+                    !knownIds.contains(file.getFileId())) {
+                candidates.add(String.valueOf(file.getFileId()));
+            }
+        }
+        
+        HashSet<Long> existing = new HashSet<Long>();
+        String[] projection = new String[] { ProviderTableMeta._ID };
+        for (int start = 0; start < candidates.size(); start += MAX_IDS_PER_QUERY) {
+            List<String> chunk = candidates.subList(start, Math.min(start + MAX_IDS_PER_QUERY, candidates.size()));
+            StringBuilder where = new StringBuilder(ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta._ID + " IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                where.append(i == 0 ? "?" : ",?");
+            }
+            where.append(")");
+            String[] whereArgs = new String[chunk.size() + 1];
+            whereArgs[0] = mAccount.name;
+            for (int i = 0; i < chunk.size(); i++) {
+                whereArgs[i + 1] = chunk.get(i);
+            }
+            Cursor c = null;
+            if (getContentResolver() != null) {
+                c = getContentResolver().query(ProviderTableMeta.CONTENT_URI, projection, where.toString(), whereArgs, null);
+            } else {
+                try {
+                    c = getContentProviderClient().query(ProviderTableMeta.CONTENT_URI, projection, where.toString(), whereArgs, null);
+                } catch (RemoteException e) {
+                    Log_OC.e(TAG, "Couldn't determine file existance, assuming non existance: " + e.getMessage());
+                }
+            }
+            if (c != null) {
+                if (c.moveToFirst()) {
+                    do {
+                        existing.add(c.getLong(0));
+                    } while (c.moveToNext());
+                }
+                c.close();
+            }
+        }
+        return existing;
+    }
     
 
     public boolean removeFile(OCFile file, boolean removeDBData, boolean removeLocalCopy) {
@@ -539,69 +696,33 @@ public class FileDataStorageManager {
     /**
      * Updates database for a folder that was moved to a different location.
      * 
-     * TODO explore better (faster) implementations
+     * The paths of all the descendants are rewritten by FileContentProvider in a single update.
+     * 
      * TODO throw exceptions up !
      */
     public void moveFolder(OCFile folder, String newPath) {
         // TODO check newPath
 
         if (folder != null && folder.isFolder() && folder.fileExists() && !OCFile.ROOT_PATH.equals(folder.getFileName())) {
-            /// 1. get all the descendants of 'dir' in a single QUERY (including 'dir')
-            Cursor c = null;
-            if (getContentProviderClient() != null) {
+            Uri folderUri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_DIR, String.valueOf(folder.getFileId()));
+            ContentValues cv = new ContentValues();
+            cv.put(ProviderTableMeta.FILE_PATH, newPath);
+            int moved = 0;
+            if (getContentResolver() != null) {
+                moved = getContentResolver().update(folderUri, cv, 
+                        ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", 
+                        new String[] { mAccount.name });
+            } else {
                 try {
-                    c = getContentProviderClient().query(ProviderTableMeta.CONTENT_URI, 
-                            null,
-                            ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PATH + " LIKE ? ",
-                            new String[] { mAccount.name, folder.getRemotePath() + "%"  }, ProviderTableMeta.FILE_PATH + " ASC ");
+                    moved = getContentProviderClient().update(folderUri, cv, 
+                            ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", 
+                            new String[] { mAccount.name });
+                    
                 } catch (RemoteException e) {
-                    Log_OC.e(TAG, e.getMessage());
+                    Log_OC.e(TAG, "Fail to update descendants of " + folder.getFileId() + " in database", e);
                 }
-            } else {
-                c = getContentResolver().query(ProviderTableMeta.CONTENT_URI, 
-                        null,
-                        ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + ProviderTableMeta.FILE_PATH + " LIKE ? ",
-                        new String[] { mAccount.name, folder.getRemotePath() + "%"  }, ProviderTableMeta.FILE_PATH + " ASC ");
             }
-
-            /// 2. prepare a batch of update operations to change all the descendants
-            ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(c.getCount());
-            int lengthOfOldPath = folder.getRemotePath().length();
-            String defaultSavePath = FileStorageUtils.getSavePath(mAccount.name);
-            int lengthOfOldStoragePath = defaultSavePath.length() + lengthOfOldPath;
-            if (c.moveToFirst()) {
-                do {
-                    ContentValues cv = new ContentValues(); // don't take the constructor out of the loop and clear the object
-                    OCFile child = createFileInstance(c);
-                    cv.put(ProviderTableMeta.FILE_PATH, newPath + child.getRemotePath().substring(lengthOfOldPath));
-                    if (child.getStoragePath() != null && child.getStoragePath().startsWith(defaultSavePath)) {
-                        cv.put(ProviderTableMeta.FILE_STORAGE_PATH, defaultSavePath + newPath + child.getStoragePath().substring(lengthOfOldStoragePath));
-                    }
-                    operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
-                            withValues(cv).
-                            withSelection(  ProviderTableMeta._ID + "=?", 
-                                    new String[] { String.valueOf(child.getFileId()) })
-                                    .build());
-                } while (c.moveToNext());
-            }
-            c.close();
-
-            /// 3. apply updates in batch
-            try {
-                if (getContentResolver() != null) {
-                    getContentResolver().applyBatch(MainApp.getAuthority(), operations);
-
-                } else {
-                    getContentProviderClient().applyBatch(operations);
-                }
-
-            } catch (OperationApplicationException e) {
-                Log_OC.e(TAG, "Fail to update descendants of " + folder.getFileId() + " in database", e);
-
-            } catch (RemoteException e) {
-                Log_OC.e(TAG, "Fail to update desendants of " + folder.getFileId() + " in database", e);
-            }
-
+            Log_OC.d(TAG, "Moved " + moved + " files and folders from " + folder.getRemotePath() + " to " + newPath);
         }
     }
 
@@ -617,7 +738,7 @@ public class FileDataStorageManager {
 
         if (getContentProviderClient() != null) {
             try {
-                c = getContentProviderClient().query(req_uri, null, 
+                c = getContentProviderClient().query(req_uri, FILE_PROJECTION, 
                         ProviderTableMeta.FILE_PARENT + "=?" ,
                         new String[] { String.valueOf(parentId)}, null);
             } catch (RemoteException e) {
@@ -625,14 +746,15 @@ public class FileDataStorageManager {
                 return ret;
             }
         } else {
-            c = getContentResolver().query(req_uri, null, 
+            c = getContentResolver().query(req_uri, FILE_PROJECTION, 
                     ProviderTableMeta.FILE_PARENT + "=?" ,
                     new String[] { String.valueOf(parentId)}, null);
         }
 
         if (c.moveToFirst()) {
+            FileCursorColumns columns = new FileCursorColumns(c);
             do {
-                OCFile child = createFileInstance(c);
+                OCFile child = createFileInstance(c, columns);
                 ret.add(child);
             } while (c.moveToNext());
         }
@@ -658,7 +780,7 @@ public class FileDataStorageManager {
         if (getContentResolver() != null) {
             c = getContentResolver()
                     .query(ProviderTableMeta.CONTENT_URI,
-                            null,
+                            FILE_EXISTENCE_PROJECTION,
                             cmp_key + "=? AND "
                                     + ProviderTableMeta.FILE_ACCOUNT_OWNER
                                     + "=?",
@@ -667,7 +789,7 @@ public class FileDataStorageManager {
             try {
                 c = getContentProviderClient().query(
                         ProviderTableMeta.CONTENT_URI,
-                        null,
+                        FILE_EXISTENCE_PROJECTION,
                         cmp_key + "=? AND "
                                 + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
                                 new String[] { value, mAccount.name }, null);
@@ -688,7 +810,7 @@ public class FileDataStorageManager {
         if (getContentResolver() != null) {
             c = getContentResolver()
                     .query(ProviderTableMeta.CONTENT_URI,
-                            null,
+                            FILE_PROJECTION,
                             key + "=? AND "
                                     + ProviderTableMeta.FILE_ACCOUNT_OWNER
                                     + "=?",
@@ -697,7 +819,7 @@ public class FileDataStorageManager {
             try {
                 c = getContentProviderClient().query(
                         ProviderTableMeta.CONTENT_URI,
-                        null,
+                        FILE_PROJECTION,
                         key + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER
                         + "=?", new String[] { value, mAccount.name },
                         null);
@@ -711,50 +833,149 @@ public class FileDataStorageManager {
     
 
     private OCFile createFileInstance(Cursor c) {
-        OCFile file = null;
-        if (c != null) {
-            file = new OCFile(c.getString(c
-                    .getColumnIndex(ProviderTableMeta.FILE_PATH)));
-            file.setFileId(c.getLong(c.getColumnIndex(ProviderTableMeta._ID)));
-            file.setParentId(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_PARENT)));
-            file.setMimetype(c.getString(c
-                    .getColumnIndex(ProviderTableMeta.FILE_CONTENT_TYPE)));
-            if (!file.isFolder()) {
-                file.setStoragePath(c.getString(c
-                        .getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH)));
-                if (file.getStoragePath() == null) {
-                    // try to find existing file and bind it with current account; - with the current update of SynchronizeFolderOperation, this won't be necessary anymore after a full synchronization of the account
-                    File f = new File(FileStorageUtils.getDefaultSavePathFor(mAccount.name, file));
-                    if (f.exists()) {
-                        file.setStoragePath(f.getAbsolutePath());
-                        file.setLastSyncDateForData(f.lastModified());
-                    }
-                }
-            }
-            file.setFileLength(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH)));
-            file.setCreationTimestamp(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_CREATION)));
-            file.setModificationTimestamp(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_MODIFIED)));
-            file.setModificationTimestampAtLastSyncForData(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA)));
-            file.setLastSyncDateForProperties(c.getLong(c
-                    .getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE)));
-            file.setLastSyncDateForData(c.getLong(c.
-                    getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA)));
-            file.setKeepInSync(c.getInt(
-                    c.getColumnIndex(ProviderTableMeta.FILE_KEEP_IN_SYNC)) == 1 ? true : false);
-            file.setEtag(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_ETAG)));
-            file.setShareByLink(c.getInt(
-                    c.getColumnIndex(ProviderTableMeta.FILE_SHARE_BY_LINK)) == 1 ? true : false);
-            file.setPublicLink(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_PUBLIC_LINK)));
-                    
+        return (c != null) ? createFileInstance(c, new FileCursorColumns(c)) : null;
+    }
+    
+    
+    /**
+     * Creates an {@link OCFile} from the current row of a cursor over the files table.
+     * 
+     * Columns not present in the cursor are left with their default values in the new instance. 
+     * 
+     * @param c         Cursor positioned in the row to read.
+     * @param columns   Indexes of the columns in c.
+     * @return          New instance with the data in the current row.
+     */
+    private static OCFile createFileInstance(Cursor c, FileCursorColumns columns) {
+        OCFile file = new OCFile(c.getString(columns.mPath));
+        file.setFileId(c.getLong(columns.mId));
+        if (columns.mParent >= 0) {
+            file.setParentId(c.getLong(columns.mParent));
+        }
+        if (columns.mContentType >= 0) {
+            file.setMimetype(c.getString(columns.mContentType));
+        }
+        if (!file.isFolder() && columns.mStoragePath >= 0) {
+            file.setStoragePath(c.getString(columns.mStoragePath));
+        }
+        if (columns.mContentLength >= 0) {
+            file.setFileLength(c.getLong(columns.mContentLength));
+        }
+        if (columns.mCreation >= 0) {
+            file.setCreationTimestamp(c.getLong(columns.mCreation));
+        }
+        if (columns.mModified >= 0) {
+            file.setModificationTimestamp(c.getLong(columns.mModified));
+        }
+        if (columns.mModifiedAtLastSyncForData >= 0) {
+            file.setModificationTimestampAtLastSyncForData(c.getLong(columns.mModifiedAtLastSyncForData));
+        }
+        if (columns.mLastSyncDate >= 0) {
+            file.setLastSyncDateForProperties(c.getLong(columns.mLastSyncDate));
+        }
+        if (columns.mLastSyncDateForData >= 0) {
+            file.setLastSyncDateForData(c.getLong(columns.mLastSyncDateForData));
+        }
+        if (columns.mKeepInSync >= 0) {
+            file.setKeepInSync(c.getInt(columns.mKeepInSync) == 1);
+        }
+        if (columns.mEtag >= 0) {
+            file.setEtag(c.getString(columns.mEtag));
+        }
+        if (columns.mShareByLink >= 0) {
+            file.setShareByLink(c.getInt(columns.mShareByLink) == 1);
+        }
+        if (columns.mPublicLink >= 0) {
+            file.setPublicLink(c.getString(columns.mPublicLink));
         }
         return file;
     }
     
+    
+    /**
+     * Cursor over the content of a folder building {@link OCFile} instances only for the rows requested, 
+     * so that only the window of rows kept by the cursor is in memory.
+     */
+    public static class FolderContentCursor extends CursorWrapper {
+
+        private final FileCursorColumns mColumns;
+
+        FolderContentCursor(Cursor c) {
+            super(c);
+            mColumns = new FileCursorColumns(c);
+        }
+
+        /**
+         * @param position  Position of a row in the cursor.
+         * @return          New {@link OCFile} with the data in the row, or null if the position is not valid.
+         */
+        public OCFile getFile(int position) {
+            return moveToPosition(position) ? createFileInstance(this, mColumns) : null;
+        }
+
+        /**
+         * @param position  Position of a row in the cursor.
+         * @return          Id of the file in the row, or -1 if the position is not valid.
+         */
+        public long getFileId(int position) {
+            return moveToPosition(position) ? getLong(mColumns.mId) : -1;
+        }
+
+        /**
+         * @return  New {@link OCFile} instances for all the rows in the cursor.
+         */
+        public Vector<OCFile> getAllFiles() {
+            Vector<OCFile> files = new Vector<OCFile>(getCount());
+            moveToPosition(-1);
+            while (moveToNext()) {
+                files.add(createFileInstance(this, mColumns));
+            }
+            return files;
+        }
+    }
+    
+    
+    /**
+     * Indexes of the columns of the files table in a given cursor. 
+     * 
+     * Resolved once per cursor, instead of once per row and column.  
+     */
+    private static class FileCursorColumns {
+        final int mId;
+        final int mParent;
+        final int mPath;
+        final int mContentType;
+        final int mStoragePath;
+        final int mContentLength;
+        final int mCreation;
+        final int mModified;
+        final int mModifiedAtLastSyncForData;
+        final int mLastSyncDate;
+        final int mLastSyncDateForData;
+        final int mKeepInSync;
+        final int mEtag;
+        final int mShareByLink;
+        final int mPublicLink;
+        
+        FileCursorColumns(Cursor c) {
+            mId = c.getColumnIndex(ProviderTableMeta._ID);
+            mParent = c.getColumnIndex(ProviderTableMeta.FILE_PARENT);
+            mPath = c.getColumnIndex(ProviderTableMeta.FILE_PATH);
+            mContentType = c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_TYPE);
+            mStoragePath = c.getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH);
+            mContentLength = c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH);
+            mCreation = c.getColumnIndex(ProviderTableMeta.FILE_CREATION);
+            mModified = c.getColumnIndex(ProviderTableMeta.FILE_MODIFIED);
+            mModifiedAtLastSyncForData = c.getColumnIndex(ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA);
+            mLastSyncDate = c.getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE);
+            mLastSyncDateForData = c.getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA);
+            mKeepInSync = c.getColumnIndex(ProviderTableMeta.FILE_KEEP_IN_SYNC);
+            mEtag = c.getColumnIndex(ProviderTableMeta.FILE_ETAG);
+            mShareByLink = c.getColumnIndex(ProviderTableMeta.FILE_SHARE_BY_LINK);
+            mPublicLink = c.getColumnIndex(ProviderTableMeta.FILE_PUBLIC_LINK);
+        }
+    }
+    
     /**
      * Returns if the file/folder is shared by link or not
      * @param path  Path of the file/folder
@@ -0,0 +1,299 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.accounts.Account;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.support.v4.util.LruCache;
+
+import com.owncloud.android.utils.Log_OC;
+
+/**
+ * Keeps small thumbnails of image files, so that lists of files can show them without decoding
+ * the full images.
+ *
+ * Thumbnails are generated from downloaded images and stored in a folder of the app cache limited
+ * in size, where the least recently used are removed first; the most recently used are kept in memory
+ * too. They are keyed by account, remote path and ETag of the file, so that a thumbnail is not used
+ * anymore when the file changes in the server.
+ *
+ * Only {@link #getThumbnailFromMemory(Account, OCFile)} can be called from the main thread.
+ */
+public class ThumbnailsCacheManager {
+
+    private static final String TAG = ThumbnailsCacheManager.class.getSimpleName();
+
+    private static final String CACHE_FOLDER = "thumbnails";
+
+    /** Maximum size of the thumbnails stored in disk */
+    private static final long DISK_CACHE_SIZE = 10 * 1024 * 1024;
+
+    /** Side of the thumbnails, in dp */
+    private static final int THUMBNAIL_SIZE_DP = 64;
+
+    private static final int JPEG_QUALITY = 80;
+
+    /** Fraction of the memory class of the app devoted to thumbnails in memory */
+    private static final int MEMORY_CLASS_FRACTION = 16;
+
+    private static ThumbnailsCacheManager sInstance = null;
+
+    private final File mCacheFolder;
+    private final int mThumbnailSize;
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /** Size of the thumbnails in disk by file name, in access order; loaded on first use */
+    private LinkedHashMap<String, Long> mDiskEntries = null;
+    private long mDiskSize = 0;
+
+
+    public static synchronized ThumbnailsCacheManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailsCacheManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+
+    private ThumbnailsCacheManager(Context context) {
+        mCacheFolder = new File(context.getCacheDir(), CACHE_FOLDER);
+        mThumbnailSize = Math.round(THUMBNAIL_SIZE_DP * context.getResources().getDisplayMetrics().density);
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMemoryCache = new LruCache<String, Bitmap>(am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+
+    /**
+     * @return      Thumbnail for 'file' if it is kept in memory, or null.
+     */
+    public Bitmap getThumbnailFromMemory(Account account, OCFile file) {
+        return mMemoryCache.get(buildKey(account, file));
+    }
+
+
+    /**
+     * Gets the thumbnail of an image file, reading it from disk or generating it from the downloaded
+     * file when needed. Never call it from the main thread.
+     *
+     * @return      Thumbnail for 'file', or null if there is none and the file is not downloaded.
+     */
+    public Bitmap getThumbnail(Account account, OCFile file) {
+        String key = buildKey(account, file);
+        Bitmap thumbnail = mMemoryCache.get(key);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
+        thumbnail = readFromDisk(key);
+        if (thumbnail == null && file.isDown()) {
+            thumbnail = generate(file.getStoragePath());
+            if (thumbnail != null) {
+                writeToDisk(key, thumbnail);
+            }
+        }
+        if (thumbnail != null) {
+            mMemoryCache.put(key, thumbnail);
+        }
+        return thumbnail;
+    }
+
+
+    private Bitmap readFromDisk(String key) {
+        synchronized (this) {
+            loadDiskEntries();
+            if (mDiskEntries.get(key) == null) {
+                return null;
+            }
+        }
+        File stored = new File(mCacheFolder, key);
+        Bitmap thumbnail = BitmapFactory.decodeFile(stored.getAbsolutePath());
+        if (thumbnail != null) {
+            // keeps the order of use for the next start of the app
+            stored.setLastModified(System.currentTimeMillis());
+        } else {
+            Log_OC.w(TAG, "Thumbnail could not be read; removing " + stored.getAbsolutePath());
+            synchronized (this) {
+                removeDiskEntry(key);
+            }
+        }
+        return thumbnail;
+    }
+
+
+    private void writeToDisk(String key, Bitmap thumbnail) {
+        File stored = new File(mCacheFolder, key);
+        OutputStream out = null;
+        try {
+            mCacheFolder.mkdirs();
+            out = new FileOutputStream(stored);
+            if (thumbnail.hasAlpha()) {
+                thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } else {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Thumbnail could not be stored in " + stored.getAbsolutePath(), e);
+            stored.delete();
+            return;
+
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing the thumbnail file", e);
+                }
+            }
+        }
+
+        synchronized (this) {
+            loadDiskEntries();
+            Long replaced = mDiskEntries.remove(key);
+            if (replaced != null) {
+                mDiskSize -= replaced;
+            }
+            mDiskEntries.put(key, stored.length());
+            mDiskSize += stored.length();
+            Iterator<Map.Entry<String, Long>> it = mDiskEntries.entrySet().iterator();
+            while (mDiskSize > DISK_CACHE_SIZE && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                new File(mCacheFolder, eldest.getKey()).delete();
+                mDiskSize -= eldest.getValue();
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Decodes the image scaled down with a sample size keeping it over the size of the thumbnail, and
+     * crops the centered square of the thumbnail from it.
+     */
+    private Bitmap generate(String storagePath) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(storagePath, options);
+            int minSide = Math.min(options.outWidth, options.outHeight);
+            if (minSide <= 0) {
+                return null;
+            }
+            int sample = 1;
+            while (minSide / (sample * 2) >= mThumbnailSize) {
+                sample *= 2;
+            }
+            options.inSampleSize = sample;
+            options.inJustDecodeBounds = false;
+            Bitmap sampled = BitmapFactory.decodeFile(storagePath, options);
+            if (sampled == null) {
+                return null;
+            }
+            Bitmap thumbnail = ThumbnailUtils.extractThumbnail(sampled, mThumbnailSize, mThumbnailSize);
+            if (thumbnail != sampled) {
+                sampled.recycle();
+            }
+            return thumbnail;
+
+        } catch (OutOfMemoryError e) {
+            Log_OC.e(TAG, "Out of memory generating thumbnail for " + storagePath, e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Lists the thumbnails stored in previous executions, from the least to the most recently used.
+     */
+    private void loadDiskEntries() {
+        if (mDiskEntries != null) {
+            return;
+        }
+        mDiskEntries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+        mDiskSize = 0;
+        File[] stored = mCacheFolder.listFiles();
+        if (stored != null) {
+            Arrays.sort(stored, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long lhsModified = lhs.lastModified(), rhsModified = rhs.lastModified();
+                    return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+                }
+            });
+            for (File thumbnail : stored) {
+                mDiskEntries.put(thumbnail.getName(), thumbnail.length());
+                mDiskSize += thumbnail.length();
+            }
+        }
+    }
+
+
+    private void removeDiskEntry(String key) {
+        Long size = mDiskEntries.remove(key);
+        if (size != null) {
+            mDiskSize -= size;
+            new File(mCacheFolder, key).delete();
+        }
+    }
+
+
+    private static String buildKey(Account account, OCFile file) {
+        String version = file.getEtag();
+        if (version == null || version.length() == 0) {
+            version = String.valueOf(file.getModificationTimestamp());
+        }
+        String key = account.name + file.getRemotePath() + "#" + version;
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return hex.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(key.hashCode());
+        } catch (UnsupportedEncodingException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+
+}
@@ -17,6 +17,8 @@
  */
 package com.owncloud.android.db;
 
+import java.util.List;
+
 import com.owncloud.android.MainApp;
 import com.owncloud.android.utils.Log_OC;
 
@@ -29,6 +31,9 @@ import android.database.sqlite.SQLiteOpenHelper;
 /**
  * Custom database helper for ownCloud
  * 
+ * Keeps the queue of transfers (uploads and downloads) not finished yet, so that they 
+ * survive the restart of the app. Pending instant uploads are kept in the same queue.
+ * 
  * @author Bartek Przybylski
  * 
  */
@@ -36,13 +41,57 @@ public class DbHandler {
     private SQLiteDatabase mDB;
     private OpenerHelper mHelper;
     private final String mDatabaseName;
-    private final int mDatabaseVersion = 3;
+    private final int mDatabaseVersion = 4;
 
     private final String TABLE_INSTANT_UPLOAD = "instant_upload";
+    private static final String TABLE_TRANSFERS = "transfers";
 
     public static final int UPLOAD_STATUS_UPLOAD_LATER = 0;
     public static final int UPLOAD_STATUS_UPLOAD_FAILED = 1;
 
+    public static final int TRANSFER_TYPE_UPLOAD = 0;
+    public static final int TRANSFER_TYPE_DOWNLOAD = 1;
+
+    /** Transfer out of any queue, waiting for better conditions to be retried (instant uploads) */
+    public static final int TRANSFER_STATE_WAITING = UPLOAD_STATUS_UPLOAD_LATER;
+    /** Transfer failed, waiting for the user to retry it (instant uploads) */
+    public static final int TRANSFER_STATE_FAILED = UPLOAD_STATUS_UPLOAD_FAILED;
+    /** Transfer accepted by a transfer service, waiting for a worker */
+    public static final int TRANSFER_STATE_QUEUED = 2;
+    /** Transfer being performed by a transfer service */
+    public static final int TRANSFER_STATE_IN_PROGRESS = 3;
+
+    // Columns of transfers table
+    public static final String TRANSFER_ID = "_id";
+    public static final String TRANSFER_TYPE = "type";
+    public static final String TRANSFER_ACCOUNT = "account";
+    public static final String TRANSFER_LOCAL_PATH = "local_path";
+    public static final String TRANSFER_REMOTE_PATH = "remote_path";
+    public static final String TRANSFER_MIME_TYPE = "mime_type";
+    public static final String TRANSFER_STATE = "state";
+    public static final String TRANSFER_ATTEMPTS = "attempts";
+    public static final String TRANSFER_BYTES_DONE = "bytes_done";
+    public static final String TRANSFER_PRIORITY = "priority";
+    public static final String TRANSFER_INSTANT = "instant";
+    public static final String TRANSFER_FORCE_OVERWRITE = "force_overwrite";
+    public static final String TRANSFER_LOCAL_BEHAVIOUR = "local_behaviour";
+    public static final String TRANSFER_MESSAGE = "message";
+    public static final String TRANSFER_CREATED = "created";
+
+    /** Selection of the instant uploads in the transfers table */
+    private static final String INSTANT_UPLOADS_SELECTION = TRANSFER_TYPE + "=" + TRANSFER_TYPE_UPLOAD + " AND "
+            + TRANSFER_INSTANT + "=1";
+
+    /** Projection keeping the columns of the old instant_upload table, in the same order */
+    private static final String[] INSTANT_UPLOADS_PROJECTION = new String[] {
+            TRANSFER_ID, TRANSFER_LOCAL_PATH + " AS path", TRANSFER_ACCOUNT, TRANSFER_STATE + " AS attempt", 
+            TRANSFER_MESSAGE 
+    };
+
+    /** Selection of a transfer by type, account and remote path */
+    private static final String TRANSFER_SELECTION = TRANSFER_TYPE + "=? AND " + TRANSFER_ACCOUNT + "=? AND "
+            + TRANSFER_REMOTE_PATH + "=?";
+
     public DbHandler(Context context) {
         mDatabaseName = MainApp.getDBName();
         mHelper = new OpenerHelper(context);
@@ -55,34 +104,44 @@ public class DbHandler {
 
     public boolean putFileForLater(String filepath, String account, String message) {
         ContentValues cv = new ContentValues();
-        cv.put("path", filepath);
-        cv.put("account", account);
-        cv.put("attempt", UPLOAD_STATUS_UPLOAD_LATER);
-        cv.put("message", message);
-        long result = mDB.insert(TABLE_INSTANT_UPLOAD, null, cv);
-        Log_OC.d(TABLE_INSTANT_UPLOAD, "putFileForLater returns with: " + result + " for file: " + filepath);
+        cv.put(TRANSFER_STATE, TRANSFER_STATE_WAITING);
+        cv.put(TRANSFER_MESSAGE, message);
+        long result = mDB.update(TABLE_TRANSFERS, cv, INSTANT_UPLOADS_SELECTION + " AND " + TRANSFER_ACCOUNT + "=? AND "
+                + TRANSFER_LOCAL_PATH + "=?", new String[] { account, filepath });
+        if (result == 0) {
+            cv.put(TRANSFER_TYPE, TRANSFER_TYPE_UPLOAD);
+            cv.put(TRANSFER_ACCOUNT, account);
+            cv.put(TRANSFER_LOCAL_PATH, filepath);
+            cv.put(TRANSFER_INSTANT, 1);
+            cv.put(TRANSFER_CREATED, System.currentTimeMillis());
+            result = mDB.insert(TABLE_TRANSFERS, null, cv);
+        }
+        Log_OC.d(TABLE_TRANSFERS, "putFileForLater returns with: " + result + " for file: " + filepath);
         return result != -1;
     }
 
     public int updateFileState(String filepath, Integer status, String message) {
         ContentValues cv = new ContentValues();
-        cv.put("attempt", status);
-        cv.put("message", message);
-        int result = mDB.update(TABLE_INSTANT_UPLOAD, cv, "path=?", new String[] { filepath });
-        Log_OC.d(TABLE_INSTANT_UPLOAD, "updateFileState returns with: " + result + " for file: " + filepath);
+        cv.put(TRANSFER_STATE, status);
+        cv.put(TRANSFER_MESSAGE, message);
+        int result = mDB.update(TABLE_TRANSFERS, cv, INSTANT_UPLOADS_SELECTION + " AND " + TRANSFER_LOCAL_PATH + "=?", 
+                new String[] { filepath });
+        Log_OC.d(TABLE_TRANSFERS, "updateFileState returns with: " + result + " for file: " + filepath);
         return result;
     }
 
     public Cursor getAwaitingFiles() {
-        return mDB.query(TABLE_INSTANT_UPLOAD, null, "attempt=" + UPLOAD_STATUS_UPLOAD_LATER, null, null, null, null);
+        return mDB.query(TABLE_TRANSFERS, INSTANT_UPLOADS_PROJECTION, INSTANT_UPLOADS_SELECTION + " AND " + 
+                TRANSFER_STATE + "=" + TRANSFER_STATE_WAITING, null, null, null, TRANSFER_ID);
     }
 
     public Cursor getFailedFiles() {
-        return mDB.query(TABLE_INSTANT_UPLOAD, null, "attempt>" + UPLOAD_STATUS_UPLOAD_LATER, null, null, null, null);
+        return mDB.query(TABLE_TRANSFERS, INSTANT_UPLOADS_PROJECTION, INSTANT_UPLOADS_SELECTION + " AND " + 
+                TRANSFER_STATE + "=" + TRANSFER_STATE_FAILED, null, null, null, TRANSFER_ID);
     }
 
     public void clearFiles() {
-        mDB.delete(TABLE_INSTANT_UPLOAD, null, null);
+        mDB.delete(TABLE_TRANSFERS, INSTANT_UPLOADS_SELECTION, null);
     }
 
     /**
@@ -91,12 +150,129 @@ public class DbHandler {
      * @return true when one or more pending files was removed
      */
     public boolean removeIUPendingFile(String localPath) {
-        long result = mDB.delete(TABLE_INSTANT_UPLOAD, "path = ?", new String[] { localPath });
-        Log_OC.d(TABLE_INSTANT_UPLOAD, "delete returns with: " + result + " for file: " + localPath);
+        long result = mDB.delete(TABLE_TRANSFERS, INSTANT_UPLOADS_SELECTION + " AND " + TRANSFER_LOCAL_PATH + " = ?", 
+                new String[] { localPath });
+        Log_OC.d(TABLE_TRANSFERS, "delete returns with: " + result + " for file: " + localPath);
         return result != 0;
 
     }
 
+    /**
+     * Adds several transfers to the queue in a single transaction, in state {@link #TRANSFER_STATE_QUEUED}.
+     * 
+     * A transfer already in the table for the same account and remote path is updated, instead of
+     * added again. An instant upload saved for later with {@link #putFileForLater(String, String, String)}
+     * is matched by its local path.
+     * 
+     * @param type          Type of the transfers; {@link #TRANSFER_TYPE_UPLOAD} or {@link #TRANSFER_TYPE_DOWNLOAD}.
+     * @param accountName   Name of the ownCloud account of the transfers.
+     * @param transfers     Values of the transfers, with at least {@link #TRANSFER_REMOTE_PATH}.
+     */
+    public void queueTransfers(int type, String accountName, List<ContentValues> transfers) {
+        String typeArg = String.valueOf(type);
+        mDB.beginTransaction();
+        try {
+            for (ContentValues transfer : transfers) {
+                ContentValues cv = new ContentValues(transfer);
+                cv.put(TRANSFER_STATE, TRANSFER_STATE_QUEUED);
+                cv.putNull(TRANSFER_MESSAGE);
+                String remotePath = cv.getAsString(TRANSFER_REMOTE_PATH);
+                String localPath = cv.getAsString(TRANSFER_LOCAL_PATH);
+                int updated = mDB.update(TABLE_TRANSFERS, cv, TRANSFER_TYPE + "=? AND " + TRANSFER_ACCOUNT + "=? AND ("
+                        + TRANSFER_REMOTE_PATH + "=? OR (" + TRANSFER_REMOTE_PATH + " IS NULL AND " 
+                        + TRANSFER_LOCAL_PATH + "=?))", 
+                        new String[] { typeArg, accountName, remotePath, (localPath != null) ? localPath : "" });
+                if (updated == 0) {
+                    cv.put(TRANSFER_TYPE, type);
+                    cv.put(TRANSFER_ACCOUNT, accountName);
+                    cv.put(TRANSFER_CREATED, System.currentTimeMillis());
+                    mDB.insert(TABLE_TRANSFERS, null, cv);
+                }
+            }
+            mDB.setTransactionSuccessful();
+        } finally {
+            mDB.endTransaction();
+        }
+        Log_OC.d(TABLE_TRANSFERS, "queueTransfers added " + transfers.size() + " transfers for " + accountName);
+    }
+
+    /**
+     * Returns the transfers of a type accepted by a transfer service and not finished yet, 
+     * by descending priority and in the order they were added.
+     * 
+     * Transfers interrupted in progress are moved back to {@link #TRANSFER_STATE_QUEUED} first.
+     * 
+     * @param type          Type of the transfers; {@link #TRANSFER_TYPE_UPLOAD} or {@link #TRANSFER_TYPE_DOWNLOAD}.
+     * @return              Cursor to the pending transfers, with all the columns of the transfers table.
+     */
+    public Cursor getPendingTransfers(int type) {
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_STATE, TRANSFER_STATE_QUEUED);
+        mDB.update(TABLE_TRANSFERS, cv, TRANSFER_TYPE + "=" + type + " AND " + TRANSFER_STATE + "=" 
+                + TRANSFER_STATE_IN_PROGRESS, null);
+        return mDB.query(TABLE_TRANSFERS, null, TRANSFER_TYPE + "=" + type + " AND " + TRANSFER_STATE + "=" 
+                + TRANSFER_STATE_QUEUED, null, null, null, TRANSFER_PRIORITY + " DESC, " + TRANSFER_ID);
+    }
+
+    /**
+     * Moves a queued transfer to {@link #TRANSFER_STATE_IN_PROGRESS}, counting a new attempt.
+     * 
+     * @param type          Type of the transfer.
+     * @param accountName   Name of the ownCloud account of the transfer.
+     * @param remotePath    Remote path of the transfer, as queued.
+     */
+    public void setTransferInProgress(int type, String accountName, String remotePath) {
+        mDB.execSQL("UPDATE " + TABLE_TRANSFERS + " SET " + TRANSFER_STATE + "=" + TRANSFER_STATE_IN_PROGRESS + ", " 
+                + TRANSFER_ATTEMPTS + "=IFNULL(" + TRANSFER_ATTEMPTS + ",0)+1 WHERE " + TRANSFER_SELECTION, 
+                new Object[] { type, accountName, remotePath });
+    }
+
+    /**
+     * Saves the bytes transferred so far by a transfer in progress.
+     * 
+     * @param type          Type of the transfer.
+     * @param accountName   Name of the ownCloud account of the transfer.
+     * @param remotePath    Remote path of the transfer, as queued.
+     * @param bytesDone     Bytes transferred so far.
+     */
+    public void setTransferProgress(int type, String accountName, String remotePath, long bytesDone) {
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_BYTES_DONE, bytesDone);
+        mDB.update(TABLE_TRANSFERS, cv, TRANSFER_SELECTION, new String[] { String.valueOf(type), accountName, remotePath });
+    }
+
+    /**
+     * Moves an unfinished transfer out of the queue of the transfer service, keeping it in the table.
+     * 
+     * @param type          Type of the transfer.
+     * @param accountName   Name of the ownCloud account of the transfer.
+     * @param remotePath    Remote path of the transfer, as queued.
+     * @param state         New state; {@link #TRANSFER_STATE_WAITING} or {@link #TRANSFER_STATE_FAILED}.
+     * @param bytesDone     Bytes transferred so far.
+     * @param message       Reason of the stop to show to the user, or NULL.
+     * @return              'true' if the transfer was found in the table.
+     */
+    public boolean setTransferStopped(int type, String accountName, String remotePath, int state, long bytesDone,
+            String message) {
+        ContentValues cv = new ContentValues();
+        cv.put(TRANSFER_STATE, state);
+        cv.put(TRANSFER_BYTES_DONE, bytesDone);
+        cv.put(TRANSFER_MESSAGE, message);
+        return mDB.update(TABLE_TRANSFERS, cv, TRANSFER_SELECTION, 
+                new String[] { String.valueOf(type), accountName, remotePath }) > 0;
+    }
+
+    /**
+     * Removes a finished or cancelled transfer from the table.
+     * 
+     * @param type          Type of the transfer.
+     * @param accountName   Name of the ownCloud account of the transfer.
+     * @param remotePath    Remote path of the transfer, as queued.
+     */
+    public void removeTransfer(int type, String accountName, String remotePath) {
+        mDB.delete(TABLE_TRANSFERS, TRANSFER_SELECTION, new String[] { String.valueOf(type), accountName, remotePath });
+    }
+
     private class OpenerHelper extends SQLiteOpenHelper {
         public OpenerHelper(Context context) {
             super(context, mDatabaseName, null, mDatabaseVersion);
@@ -104,8 +280,7 @@ public class DbHandler {
 
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL("CREATE TABLE " + TABLE_INSTANT_UPLOAD + " (" + " _id INTEGER PRIMARY KEY, " + " path TEXT,"
-                    + " account TEXT,attempt INTEGER,message TEXT);");
+            createTransfersTable(db);
         }
 
         @Override
@@ -113,8 +288,47 @@ public class DbHandler {
             if (oldVersion < 2) {
                 db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN attempt INTEGER;");
             }
-            db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            if (oldVersion < 3) {
+                db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            }
+            if (oldVersion < 4) {
+                db.beginTransaction();
+                try {
+                    createTransfersTable(db);
+                    // pending instant uploads are moved to the queue of transfers
+                    db.execSQL("INSERT INTO " + TABLE_TRANSFERS + " (" + TRANSFER_TYPE + ", " + TRANSFER_ACCOUNT + ", " 
+                            + TRANSFER_LOCAL_PATH + ", " + TRANSFER_STATE + ", " + TRANSFER_INSTANT + ", " 
+                            + TRANSFER_MESSAGE + ", " + TRANSFER_CREATED + ") SELECT " + TRANSFER_TYPE_UPLOAD 
+                            + ", account, path, IFNULL(attempt," + TRANSFER_STATE_WAITING + "), 1, message, " 
+                            + System.currentTimeMillis() + " FROM " + TABLE_INSTANT_UPLOAD);
+                    db.execSQL("DROP TABLE " + TABLE_INSTANT_UPLOAD);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+        }
 
+        private void createTransfersTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_TRANSFERS + " (" 
+                    + TRANSFER_ID + " INTEGER PRIMARY KEY, " 
+                    + TRANSFER_TYPE + " INTEGER, "
+                    + TRANSFER_ACCOUNT + " TEXT, " 
+                    + TRANSFER_LOCAL_PATH + " TEXT, " 
+                    + TRANSFER_REMOTE_PATH + " TEXT, " 
+                    + TRANSFER_MIME_TYPE + " TEXT, " 
+                    + TRANSFER_STATE + " INTEGER, " 
+                    + TRANSFER_ATTEMPTS + " INTEGER DEFAULT 0, " 
+                    + TRANSFER_BYTES_DONE + " INTEGER DEFAULT 0, " 
+                    + TRANSFER_PRIORITY + " INTEGER DEFAULT 0, " 
+                    + TRANSFER_INSTANT + " INTEGER DEFAULT 0, " 
+                    + TRANSFER_FORCE_OVERWRITE + " INTEGER DEFAULT 0, " 
+                    + TRANSFER_LOCAL_BEHAVIOUR + " INTEGER DEFAULT 0, " 
+                    + TRANSFER_MESSAGE + " TEXT, " 
+                    + TRANSFER_CREATED + " INTEGER);");
+            db.execSQL("CREATE INDEX " + TABLE_TRANSFERS + "_account_remote_path_idx ON " + TABLE_TRANSFERS + "(" 
+                    + TRANSFER_ACCOUNT + ", " + TRANSFER_REMOTE_PATH + ");");
         }
     }
 }
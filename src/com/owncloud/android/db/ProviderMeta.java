@@ -31,7 +31,7 @@ import android.provider.BaseColumns;
 public class ProviderMeta {
 
     public static final String DB_NAME = "filelist";
-    public static final int DB_VERSION = 6;
+    public static final int DB_VERSION = 9;
 
     private ProviderMeta() {
     }
@@ -72,6 +72,12 @@ public class ProviderMeta {
         public static final String FILE_DEFAULT_SORT_ORDER = FILE_NAME
                 + " collate nocase asc";
         
+        // Indexes of filelist table
+        public static final String FILE_OWNER_PATH_INDEX = "filelist_owner_path_idx";
+        public static final String FILE_PARENT_INDEX = "filelist_parent_idx";
+        public static final String FILE_STORAGE_PATH_INDEX = "filelist_media_path_idx";
+        public static final String FILE_KEEP_IN_SYNC_INDEX = "filelist_keep_in_sync_idx";
+        
         // Columns of ocshares table
         public static final String OCSHARES_FILE_SOURCE = "file_source";
         public static final String OCSHARES_ITEM_SOURCE = "item_source";
@@ -91,6 +97,9 @@ public class ProviderMeta {
         public static final String OCSHARES_DEFAULT_SORT_ORDER = OCSHARES_FILE_SOURCE 
                 + " collate nocase asc";
         
+        // Indexes of ocshares table
+        public static final String OCSHARES_OWNER_PATH_INDEX = "ocshares_owner_path_idx";
+        
 
     }
 }
@@ -21,17 +21,25 @@ package com.owncloud.android.files.services;
 import java.io.File;
 import java.io.IOException;
 import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.DbHandler;
 
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.OwnCloudClientFactory;
@@ -53,20 +61,19 @@ import android.accounts.AccountsException;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ContentValues;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.Binder;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 
-public class FileDownloader extends Service implements OnDatatransferProgressListener {
+public class FileDownloader extends Service {
     
     public static final String EXTRA_ACCOUNT = "ACCOUNT";
     public static final String EXTRA_FILE = "FILE";
+    public static final String EXTRA_MAX_PARALLEL_DOWNLOADS = "MAX_PARALLEL_DOWNLOADS";
     
     private static final String DOWNLOAD_ADDED_MESSAGE = "DOWNLOAD_ADDED";
     private static final String DOWNLOAD_FINISH_MESSAGE = "DOWNLOAD_FINISH";
@@ -76,16 +83,34 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     public static final String ACCOUNT_NAME = "ACCOUNT_NAME";
     
     private static final String TAG = "FileDownloader";
+    
+    /** Default number of downloads performed at the same time for every account */
+    private static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 3;
+
+    /** Bytes downloaded between saves of the progress of a download in the persistent queue */
+    private static final long PROGRESS_SAVE_STEP = 1024 * 1024;
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
     private IBinder mBinder;
-    private OwnCloudClient mDownloadClient = null;
-    private Account mLastAccount = null;
-    private FileDataStorageManager mStorageManager;
     
-    private ConcurrentMap<String, DownloadFileOperation> mPendingDownloads = new ConcurrentHashMap<String, DownloadFileOperation>();
-    private DownloadFileOperation mCurrentDownload = null;
+    /** Workers performing the downloads, by account name */
+    private Map<String, ExecutorService> mDownloadExecutors = new HashMap<String, ExecutorService>();
+    private int mMaxParallelDownloads = DEFAULT_MAX_PARALLEL_DOWNLOADS;
+    
+    /** Clients to access the server, by account name; shared by all the workers of the account */
+    private Map<String, OwnCloudClient> mDownloadClients = new HashMap<String, OwnCloudClient>();
+    
+    /** Downloads queued or in progress; the service is stopped when there is none */
+    private int mQueuedDownloads = 0;
+    private int mLastStartId;
+    
+    private PendingTransfers<DownloadFileOperation> mPendingDownloads = new PendingTransfers<DownloadFileOperation>();
+    
+    /** Persistent queue of downloads; downloads not finished when the service is killed are restored from it */
+    private DbHandler mTransfersDb;
+    private boolean mPendingDownloadsRestored = false;
+    
+    /** Progress of every download in progress, by download key */
+    private Map<String, DownloadProgress> mDownloadsInProgress = new LinkedHashMap<String, DownloadProgress>();
     
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mNotificationBuilder;
@@ -118,12 +143,24 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     public void onCreate() {
         super.onCreate();
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileDownloaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
         mBinder = new FileDownloaderBinder();
+        mTransfersDb = new DbHandler(getApplicationContext());
+    }
+    
+    
+    /**
+     * Service clean up
+     */
+    @Override
+    public void onDestroy() {
+        synchronized (mDownloadExecutors) {
+            for (ExecutorService executor : mDownloadExecutors.values()) {
+                executor.shutdown();
+            }
+            mDownloadExecutors.clear();
+        }
+        mTransfersDb.close();
+        super.onDestroy();
     }
 
     /**
@@ -131,9 +168,20 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
      * 
      * New downloads are added calling to startService(), resulting in a call to this method. This ensures the service will keep on working 
      * although the caller activity goes away.
+     * 
+     * Downloads not finished in a previous run of the service are restored in the first call; the system restarts
+     * the service with a NULL intent for that if it was killed.
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (!mPendingDownloadsRestored) {
+            mPendingDownloadsRestored = true;
+            restorePendingDownloads(startId);
+        }
+        if (intent == null) {
+            startDownloads(new ArrayList<DownloadFileOperation>(), startId);
+            return START_STICKY;
+        }
         if (    !intent.hasExtra(EXTRA_ACCOUNT) ||
                 !intent.hasExtra(EXTRA_FILE)
                 /*!intent.hasExtra(EXTRA_FILE_PATH) ||
@@ -144,15 +192,19 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         }
         Account account = intent.getParcelableExtra(EXTRA_ACCOUNT);
         OCFile file = intent.getParcelableExtra(EXTRA_FILE);
+        if (intent.hasExtra(EXTRA_MAX_PARALLEL_DOWNLOADS)) {
+            mMaxParallelDownloads = Math.max(1, intent.getIntExtra(EXTRA_MAX_PARALLEL_DOWNLOADS, DEFAULT_MAX_PARALLEL_DOWNLOADS));
+        }
         
-        AbstractList<String> requestedDownloads = new Vector<String>(); // dvelasco: now this always contains just one element, but that can change in a near future (download of multiple selection)
+        AbstractList<DownloadFileOperation> requestedDownloads = new Vector<DownloadFileOperation>(); // dvelasco: now this always contains just one element, but that can change in a near future (download of multiple selection)
         String downloadKey = buildRemoteName(account, file);
         try {
             DownloadFileOperation newDownload = new DownloadFileOperation(account, file); 
-            mPendingDownloads.putIfAbsent(downloadKey, newDownload);
-            newDownload.addDatatransferProgressListener(this);
-            newDownload.addDatatransferProgressListener((FileDownloaderBinder)mBinder);
-            requestedDownloads.add(downloadKey);
+            if (mPendingDownloads.putIfAbsent(downloadKey, newDownload) == null) {
+                // a download already queued is not queued again; it would be performed twice at the same time 
+                newDownload.addDatatransferProgressListener(new DownloadProgressListener(downloadKey, newDownload));
+                requestedDownloads.add(newDownload);
+            }
             sendBroadcastNewDownload(newDownload);
             
         } catch (IllegalArgumentException e) {
@@ -160,14 +212,119 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             return START_NOT_STICKY;
         }
         
-        if (requestedDownloads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedDownloads;
-            mServiceHandler.sendMessage(msg);
+        /// save the new downloads in the persistent queue, all at once
+        List<ContentValues> transfers = new ArrayList<ContentValues>(requestedDownloads.size());
+        Iterator<DownloadFileOperation> it = requestedDownloads.iterator();
+        while (it.hasNext()) {
+            DownloadFileOperation download = it.next();
+            ContentValues cv = new ContentValues();
+            cv.put(DbHandler.TRANSFER_LOCAL_PATH, download.getSavePath());
+            cv.put(DbHandler.TRANSFER_REMOTE_PATH, download.getRemotePath());
+            cv.put(DbHandler.TRANSFER_MIME_TYPE, download.getMimeType());
+            transfers.add(cv);
         }
+        mTransfersDb.queueTransfers(DbHandler.TRANSFER_TYPE_DOWNLOAD, account.name, transfers);
 
-        return START_NOT_STICKY;
+        startDownloads(requestedDownloads, startId);
+        return START_STICKY;
+    }
+    
+    
+    /**
+     * Hands downloads already added to mPendingDownloads to the workers of their accounts.
+     * 
+     * @param downloads     Downloads to start.
+     * @param startId       Identifier of the start request adding the downloads.
+     */
+    private void startDownloads(List<DownloadFileOperation> downloads, int startId) {
+        synchronized (this) {
+            mLastStartId = startId;
+            mQueuedDownloads += downloads.size();
+            if (mQueuedDownloads == 0) {
+                stopSelf(startId);
+            }
+        }
+        Iterator<DownloadFileOperation> it = downloads.iterator();
+        while (it.hasNext()) {
+            DownloadFileOperation download = it.next();
+            getDownloadExecutor(download.getAccount()).execute(
+                    new DownloadTask(buildRemoteName(download.getAccount(), download.getFile()), download));
+        }
+    }
+    
+    
+    /**
+     * Queues again the downloads left in the persistent queue by a previous run of the service.
+     * 
+     * Partial data of the interrupted downloads is resumed by {@link DownloadFileOperation}. Downloads of files
+     * not in the local database anymore are removed from the persistent queue.
+     * 
+     * @param startId       Identifier of the start request restoring the downloads.
+     */
+    private void restorePendingDownloads(int startId) {
+        List<DownloadFileOperation> restoredDownloads = new ArrayList<DownloadFileOperation>();
+        Cursor c = mTransfersDb.getPendingTransfers(DbHandler.TRANSFER_TYPE_DOWNLOAD);
+        try {
+            while (c.moveToNext()) {
+                String accountName = c.getString(c.getColumnIndex(DbHandler.TRANSFER_ACCOUNT));
+                String remotePath = c.getString(c.getColumnIndex(DbHandler.TRANSFER_REMOTE_PATH));
+                Account account = new Account(accountName, MainApp.getAccountType());
+                OCFile file = new FileDataStorageManager(account, getContentResolver()).getFileByPath(remotePath);
+                if (file == null || file.isFolder()) {
+                    Log_OC.w(TAG, "Pending download of " + remotePath + " could not be restored");
+                    mTransfersDb.removeTransfer(DbHandler.TRANSFER_TYPE_DOWNLOAD, accountName, remotePath);
+                    continue;
+                }
+                DownloadFileOperation download = new DownloadFileOperation(account, file);
+                String downloadKey = buildRemoteName(account, file);
+                if (mPendingDownloads.putIfAbsent(downloadKey, download) == null) {
+                    download.addDatatransferProgressListener(new DownloadProgressListener(downloadKey, download));
+                    restoredDownloads.add(download);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Log_OC.i(TAG, "Restored " + restoredDownloads.size() + " pending downloads");
+        startDownloads(restoredDownloads, startId);
+    }
+    
+    
+    /**
+     * Returns the workers performing the downloads of an account, creating them if needed.
+     * 
+     * The number of workers is fixed when they are created.
+     *  
+     * @param account       ownCloud account.
+     * @return              Workers for the downloads of 'account'.
+     */
+    private ExecutorService getDownloadExecutor(Account account) {
+        synchronized (mDownloadExecutors) {
+            ExecutorService executor = mDownloadExecutors.get(account.name);
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(mMaxParallelDownloads, new DownloadThreadFactory());
+                mDownloadExecutors.put(account.name, executor);
+            }
+            return executor;
+        }
+    }
+    
+    
+    /**
+     * Returns the client to access the server of an account, creating it if needed.
+     * 
+     * @param account       ownCloud account.
+     * @return              Client shared by all the downloads of 'account'.
+     */
+    private OwnCloudClient getDownloadClient(Account account) throws AccountsException, IOException {
+        synchronized (mDownloadClients) {
+            OwnCloudClient client = mDownloadClients.get(account.name);
+            if (client == null) {
+                client = OwnCloudClientFactory.createOwnCloudClient(account, getApplicationContext());
+                mDownloadClients.put(account.name, client);
+            }
+            return client;
+        }
     }
     
     
@@ -197,12 +354,12 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
      * 
      *  It provides by itself the available operations.
      */
-    public class FileDownloaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileDownloaderBinder extends Binder {
         
         /** 
          * Map of listeners that will be reported about progress of downloads from a {@link FileDownloaderBinder} instance 
          */
-        private Map<String, OnDatatransferProgressListener> mBoundListeners = new HashMap<String, OnDatatransferProgressListener>();
+        private Map<String, OnDatatransferProgressListener> mBoundListeners = new ConcurrentHashMap<String, OnDatatransferProgressListener>();
         
         
         /**
@@ -213,9 +370,7 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
          */
         public void cancel(Account account, OCFile file) {
             DownloadFileOperation download = null;
-            synchronized (mPendingDownloads) {
-                download = mPendingDownloads.remove(buildRemoteName(account, file));
-            }
+            download = mPendingDownloads.remove(buildRemoteName(account, file));
             if (download != null) {
                 download.cancel();
             }
@@ -238,18 +393,10 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         public boolean isDownloading(Account account, OCFile file) {
             if (account == null || file == null) return false;
             String targetKey = buildRemoteName(account, file);
-            synchronized (mPendingDownloads) {
-                if (file.isFolder()) {
-                    // this can be slow if there are many downloads :(
-                    Iterator<String> it = mPendingDownloads.keySet().iterator();
-                    boolean found = false;
-                    while (it.hasNext() && !found) {
-                        found = it.next().startsWith(targetKey);
-                    }
-                    return found;
-                } else {
-                    return (mPendingDownloads.containsKey(targetKey));
-                }
+            if (file.isFolder()) {
+                return mPendingDownloads.containsKeyWithPrefix(targetKey);
+            } else {
+                return mPendingDownloads.containsKey(targetKey);
             }
         }
 
@@ -283,11 +430,14 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             }
         }
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
+        /**
+         * Reports the progress of a download to the listener bound for its file, if any.
+         * 
+         * @param downloadKey   Key of the download in progress.
+         */
+        private void onTransferProgress(String downloadKey, long progressRate, long totalTransferredSoFar, long totalToTransfer,
                 String fileName) {
-            String key = buildRemoteName(mCurrentDownload.getAccount(), mCurrentDownload.getFile());
-            OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
+            OnDatatransferProgressListener boundListener = mBoundListeners.get(downloadKey);
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer, fileName);
             }
@@ -296,112 +446,203 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     }
     
     
-    /** 
-     * Download worker. Performs the pending downloads in the order they were requested. 
-     * 
-     * Created with the Looper of a new thread, started in {@link FileUploader#onCreate()}. 
+    /**
+     * Listener for the progress of a single download, forwarding it to the status notification 
+     * and to the listener bound for the file.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a possible memory leak
-        FileDownloader mService;
-        public ServiceHandler(Looper looper, FileDownloader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+    private class DownloadProgressListener implements OnDatatransferProgressListener {
+        
+        private String mDownloadKey;
+        private String mAccountName;
+        private String mRemotePath;
+        private long mLastSavedProgress = 0;
+        
+        public DownloadProgressListener(String downloadKey, DownloadFileOperation download) {
+            mDownloadKey = downloadKey;
+            mAccountName = download.getAccount().name;
+            mRemotePath = download.getRemotePath();
         }
-
+        
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedDownloads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedDownloads.iterator();
-                while (it.hasNext()) {
-                    mService.downloadFile(it.next());
-                }
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String fileName) {
+            if (totalTransferredSoFar - mLastSavedProgress >= PROGRESS_SAVE_STEP) {
+                mLastSavedProgress = totalTransferredSoFar;
+                mTransfersDb.setTransferProgress(DbHandler.TRANSFER_TYPE_DOWNLOAD, mAccountName, mRemotePath, 
+                        totalTransferredSoFar);
             }
-            mService.stopSelf(msg.arg1);
+            notifyDownloadProgress(mDownloadKey, totalTransferredSoFar, totalToTransfer, fileName);
+            ((FileDownloaderBinder)mBinder).onTransferProgress(mDownloadKey, progressRate, totalTransferredSoFar, totalToTransfer, fileName);
         }
     }
     
-
-    /**
-     * Core download method: requests a file to download and stores it.
+    
+    /** 
+     * Download worker task. Performs a single download, unless it was cancelled while waiting in the queue.
      * 
-     * @param downloadKey   Key to access the download to perform, contained in mPendingDownloads 
+     * Downloads of the same account are run by a fixed number of worker threads, in the order they were requested.
      */
-    private void downloadFile(String downloadKey) {
+    private class DownloadTask implements Runnable {
         
-        synchronized(mPendingDownloads) {
-            mCurrentDownload = mPendingDownloads.get(downloadKey);
-        }
+        private String mDownloadKey;
+        private DownloadFileOperation mDownload;
         
-        if (mCurrentDownload != null) {
-            
-            notifyDownloadStart(mCurrentDownload);
+        public DownloadTask(String downloadKey, DownloadFileOperation download) {
+            mDownloadKey = downloadKey;
+            mDownload = download;
+        }
 
-            RemoteOperationResult downloadResult = null;
+        @Override
+        public void run() {
+            String accountName = mDownload.getAccount().name;
             try {
-                /// prepare client object to send the request to the ownCloud server
-                if (mDownloadClient == null || !mLastAccount.equals(mCurrentDownload.getAccount())) {
-                    mLastAccount = mCurrentDownload.getAccount();
-                    mStorageManager = new FileDataStorageManager(mLastAccount, getContentResolver());
-                    mDownloadClient = OwnCloudClientFactory.createOwnCloudClient(mLastAccount, getApplicationContext());
+                if (mPendingDownloads.get(mDownloadKey) == mDownload) {
+                    mTransfersDb.setTransferInProgress(DbHandler.TRANSFER_TYPE_DOWNLOAD, accountName, 
+                            mDownload.getRemotePath());
+                    downloadFile(mDownloadKey, mDownload);
                 }
-
-                /// perform the download
-                downloadResult = mCurrentDownload.execute(mDownloadClient);
-                if (downloadResult.isSuccess()) {
-                    saveDownloadedFile();
+                if (!mPendingDownloads.containsKey(mDownloadKey)) {
+                    // finished, failed or cancelled, and not requested again; partial data of failed downloads 
+                    // is kept in the temporal file
+                    mTransfersDb.removeTransfer(DbHandler.TRANSFER_TYPE_DOWNLOAD, accountName, mDownload.getRemotePath());
                 }
-            
-            } catch (AccountsException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
-                downloadResult = new RemoteOperationResult(e);
-            } catch (IOException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
-                downloadResult = new RemoteOperationResult(e);
                 
             } finally {
-                synchronized(mPendingDownloads) {
-                    mPendingDownloads.remove(downloadKey);
+                synchronized (FileDownloader.this) {
+                    mQueuedDownloads--;
+                    if (mQueuedDownloads == 0) {
+                        stopSelf(mLastStartId);
+                    }
                 }
             }
+        }
+    }
+    
+    
+    /**
+     * Progress of a download in progress, shown aggregated in the status notification.
+     */
+    private static class DownloadProgress {
+        String mFileName;
+        long mTransferred = 0;
+        long mTotal;
+        
+        DownloadProgress(String fileName, long total) {
+            mFileName = fileName;
+            mTotal = total;
+        }
+    }
+    
+    
+    /**
+     * Creates the worker threads for downloads, with background priority.
+     */
+    private static class DownloadThreadFactory implements ThreadFactory {
+        
+        private static final AtomicInteger sThreadCount = new AtomicInteger(0);
+        
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "FileDownloaderThread-" + sThreadCount.incrementAndGet());
+        }
+    }
+    
 
+    /**
+     * Core download method: requests a file to download and stores it.
+     * 
+     * Called from the worker threads; several downloads can be in progress at the same time.
+     * 
+     * @param downloadKey   Key to access the download to perform, contained in mPendingDownloads
+     * @param download      Download to perform. 
+     */
+    private void downloadFile(String downloadKey, DownloadFileOperation download) {
+        
+        notifyDownloadStart(downloadKey, download);
+
+        RemoteOperationResult downloadResult = null;
+        OwnCloudClient client = null;
+        Account account = download.getAccount();
+        try {
+            /// prepare client object to send the request to the ownCloud server
+            client = getDownloadClient(account);
+
+            /// perform the download
+            downloadResult = download.execute(client);
+            if (downloadResult.isSuccess()) {
+                saveDownloadedFile(download);
+            }
+        
+        } catch (AccountsException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
+            downloadResult = new RemoteOperationResult(e);
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
+            downloadResult = new RemoteOperationResult(e);
             
-            /// notify result
-            notifyDownloadResult(mCurrentDownload, downloadResult);
-            
-            sendBroadcastDownloadFinished(mCurrentDownload, downloadResult);
+        } finally {
+            mPendingDownloads.remove(downloadKey, download);
         }
+
+        
+        /// notify result
+        notifyDownloadResult(downloadKey, download, downloadResult, client);
+        
+        sendBroadcastDownloadFinished(download, downloadResult);
     }
 
 
     /**
      * Updates the OC File after a successful download.
+     * 
+     * @param download      Finished download operation.
      */
-    private void saveDownloadedFile() {
-        OCFile file = mStorageManager.getFileById(mCurrentDownload.getFile().getFileId());
+    private void saveDownloadedFile(DownloadFileOperation download) {
+        FileDataStorageManager storageManager = new FileDataStorageManager(download.getAccount(), getContentResolver());
+        OCFile file = storageManager.getFileById(download.getFile().getFileId());
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForProperties(syncDate);
         file.setLastSyncDateForData(syncDate);
-        file.setModificationTimestamp(mCurrentDownload.getModificationTimestamp());
-        file.setModificationTimestampAtLastSyncForData(mCurrentDownload.getModificationTimestamp());
-        // file.setEtag(mCurrentDownload.getEtag());    // TODO Etag, where available
-        file.setMimetype(mCurrentDownload.getMimeType());
-        file.setStoragePath(mCurrentDownload.getSavePath());
-        file.setFileLength((new File(mCurrentDownload.getSavePath()).length()));
-        mStorageManager.saveFile(file);
+        file.setModificationTimestamp(download.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(download.getModificationTimestamp());
+        // file.setEtag(download.getEtag());    // TODO Etag, where available
+        file.setMimetype(download.getMimeType());
+        file.setStoragePath(download.getSavePath());
+        file.setFileLength((new File(download.getSavePath()).length()));
+        storageManager.saveFile(file);
     }
 
 
+    /**
+     * Adds a download to the status notification showing the progress of the downloads in progress,
+     * creating the notification if it is the only one.
+     * 
+     * @param downloadKey   Key of the download starting.
+     * @param download      Download operation starting.
+     */
+    private void notifyDownloadStart(String downloadKey, DownloadFileOperation download) {
+        synchronized (mDownloadsInProgress) {
+            mDownloadsInProgress.put(downloadKey, new DownloadProgress(new File(download.getSavePath()).getName(), download.getSize()));
+            if (mDownloadsInProgress.size() == 1) {
+                createProgressNotification(download);
+            } else {
+                updateProgressNotification();
+            }
+        }
+    }
+    
+    
     /**
      * Creates a status notification to show the download progress
      * 
      * @param download  Download operation starting.
      */
-    private void notifyDownloadStart(DownloadFileOperation download) {
+    private void createProgressNotification(DownloadFileOperation download) {
         /// create status notification with a progress bar
         mLastPercent = 0;
         mNotificationBuilder = 
@@ -438,14 +679,47 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     
     /**
      * Callback method to update the progress bar in the status notification.
+     * 
+     * Progress is aggregated over all the downloads in progress.
+     * 
+     * @param downloadKey   Key of the download progressing.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String filePath) {
-        int percent = (int)(100.0*((double)totalTransferredSoFar)/((double)totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, totalToTransfer < 0);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
+    private void notifyDownloadProgress(String downloadKey, long totalTransferredSoFar, long totalToTransfer, String filePath) {
+        synchronized (mDownloadsInProgress) {
+            DownloadProgress progress = mDownloadsInProgress.get(downloadKey);
+            if (progress != null) {
+                progress.mTransferred = totalTransferredSoFar;
+                progress.mTotal = totalToTransfer;
+                progress.mFileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
+                updateProgressNotification();
+            }
+        }
+    }
+    
+    
+    /**
+     * Refreshes the progress bar and text in the status notification with the aggregated progress 
+     * of all the downloads in progress.
+     * 
+     * Must be called with the lock on mDownloadsInProgress.
+     */
+    private void updateProgressNotification() {
+        long transferred = 0;
+        long total = 0;
+        boolean unknownTotal = false;
+        String fileName = null;
+        for (DownloadProgress progress : mDownloadsInProgress.values()) {
+            transferred += progress.mTransferred;
+            total += progress.mTotal;
+            unknownTotal |= (progress.mTotal < 0);
+            fileName = progress.mFileName;
+        }
+        int percent = (total > 0 && !unknownTotal) ? (int)(100.0*((double)transferred)/((double)total)) : 0;
+        if (percent != mLastPercent || mDownloadsInProgress.size() > 1) {
+            mNotificationBuilder.setProgress(100, percent, unknownTotal);
+            String text = (mDownloadsInProgress.size() > 1) ?
+                    String.format(getString(R.string.downloader_download_in_progress_multiple_content), percent, mDownloadsInProgress.size()) :
+                    String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
             mNotificationBuilder.setContentText(text);
             mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
         }
@@ -456,22 +730,36 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     /**
      * Updates the status notification with the result of a download operation.
      * 
-     * @param downloadResult    Result of the download operation.
+     * The notification of progress is kept while other downloads are in progress.
+     * 
+     * @param downloadKey       Key of the finished download.
      * @param download          Finished download operation
+     * @param downloadResult    Result of the download operation.
+     * @param client            Client used for the download; NULL if it could not be created.
      */
-    private void notifyDownloadResult(DownloadFileOperation download, RemoteOperationResult downloadResult) {
-        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+    private void notifyDownloadResult(String downloadKey, DownloadFileOperation download, RemoteOperationResult downloadResult, 
+            OwnCloudClient client) {
+        synchronized (mDownloadsInProgress) {
+            mDownloadsInProgress.remove(downloadKey);
+            if (mDownloadsInProgress.isEmpty()) {
+                mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+            } else {
+                updateProgressNotification();
+            }
+        }
         if (!downloadResult.isCancelled()) {
             int tickerId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_ticker : 
                 R.string.downloader_download_failed_ticker;
             
             boolean needsToUpdateCredentials = (downloadResult.getCode() == ResultCode.UNAUTHORIZED ||
                                                   (downloadResult.isIdPRedirection()
-                                                        && mDownloadClient.getCredentials() == null));
+                                                        && client != null && client.getCredentials() == null));
             tickerId = (needsToUpdateCredentials) ? 
                     R.string.downloader_download_failed_credentials_error : tickerId;
             
-            mNotificationBuilder
+            NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this);
+            notificationBuilder
+            .setSmallIcon(R.drawable.notification_icon)
             .setTicker(getString(tickerId))
             .setContentTitle(getString(tickerId))
             .setAutoCancel(true)
@@ -487,11 +775,16 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder
+                notificationBuilder
                     .setContentIntent(PendingIntent.getActivity(
                         this, (int) System.currentTimeMillis(), updateAccountCredentials, PendingIntent.FLAG_ONE_SHOT));
                 
-                mDownloadClient = null;   // grant that future retries on the same account will get the fresh credentials
+                synchronized (mDownloadClients) {
+                    // grant that future retries on the same account will get the fresh credentials
+                    if (mDownloadClients.get(download.getAccount().name) == client) {
+                        mDownloadClients.remove(download.getAccount().name);
+                    }
+                }
                 
             } else {
                 Intent showDetailsIntent = null;
@@ -509,14 +802,14 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
                     // TODO put something smart in showDetailsIntent
                     showDetailsIntent = new Intent();
                 }
-                mNotificationBuilder
+                notificationBuilder
                     .setContentIntent(PendingIntent.getActivity(
                         this, (int) System.currentTimeMillis(), showDetailsIntent, 0));
             }
             
-            mNotificationBuilder.setContentText(ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download, getResources()));
+            notificationBuilder.setContentText(ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download, getResources()));
             
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            mNotificationManager.notify(tickerId, notificationBuilder.build());
         }
     }
     
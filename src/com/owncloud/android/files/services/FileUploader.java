@@ -21,19 +21,29 @@ package com.owncloud.android.files.services;
 import java.io.File;
 import java.io.IOException;
 import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.db.DbHandler;
 import com.owncloud.android.operations.CreateFolderOperation;
+import com.owncloud.android.operations.ParallelChunkedUploadRemoteOperation;
+import com.owncloud.android.operations.SynchronizeFolderOperation;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
@@ -48,6 +58,7 @@ import com.owncloud.android.lib.common.accounts.AccountUtils.Constants;
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.OwnCloudClientFactory;
 import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.syncadapter.FileSyncAdapter;
 import com.owncloud.android.ui.activity.FailedUploadActivity;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
@@ -64,20 +75,21 @@ import android.accounts.AccountsException;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
 import android.os.Binder;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.webkit.MimeTypeMap;
 
 
 
-public class FileUploader extends Service implements OnDatatransferProgressListener {
+public class FileUploader extends Service {
 
     private static final String UPLOAD_FINISH_MESSAGE = "UPLOAD_FINISH";
     public static final String EXTRA_UPLOAD_RESULT = "RESULT";
@@ -97,6 +109,8 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     public static final String KEY_FORCE_OVERWRITE = "KEY_FORCE_OVERWRITE";
     public static final String KEY_INSTANT_UPLOAD = "INSTANT_UPLOAD";
     public static final String KEY_LOCAL_BEHAVIOUR = "BEHAVIOUR";
+    public static final String KEY_MAX_PARALLEL_UPLOADS = "MAX_PARALLEL_UPLOADS";
+    public static final String KEY_MAX_PARALLEL_CHUNKS = "MAX_PARALLEL_CHUNKS";
 
     public static final int LOCAL_BEHAVIOUR_COPY = 0;
     public static final int LOCAL_BEHAVIOUR_MOVE = 1;
@@ -107,15 +121,48 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
 
     private static final String TAG = FileUploader.class.getSimpleName();
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    /** Default number of uploads performed at the same time for every account */
+    private static final int DEFAULT_MAX_PARALLEL_UPLOADS = 3;
+
+    /** Bytes uploaded between saves of the progress of an upload in the persistent queue */
+    private static final long PROGRESS_SAVE_STEP = 1024 * 1024;
+
     private IBinder mBinder;
-    private OwnCloudClient mUploadClient = null;
-    private Account mLastAccount = null;
-    private FileDataStorageManager mStorageManager;
 
-    private ConcurrentMap<String, UploadFileOperation> mPendingUploads = new ConcurrentHashMap<String, UploadFileOperation>();
-    private UploadFileOperation mCurrentUpload = null;
+    /** Workers performing the uploads, by account name */
+    private Map<String, ExecutorService> mUploadExecutors = new HashMap<String, ExecutorService>();
+    private int mMaxParallelUploads = DEFAULT_MAX_PARALLEL_UPLOADS;
+
+    /** Chunks sent at the same time by every chunked upload */
+    private int mMaxParallelChunks = ParallelChunkedUploadRemoteOperation.DEFAULT_PARALLEL_CHUNKS;
+
+    /** Clients to access the server, by account name; shared by all the workers of the account */
+    private Map<String, OwnCloudClient> mUploadClients = new HashMap<String, OwnCloudClient>();
+
+    /** Locks serializing the creation of remote folders, by account name */
+    private Map<String, Object> mFolderCreationLocks = new HashMap<String, Object>();
+
+    /** 
+     * Remote folders known to exist, by account name + remote path; checked once per service session,
+     * instead of once per upload
+     */
+    private Map<String, Boolean> mVerifiedFolders = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicLong mVerifiedFolderHits = new AtomicLong(0);
+    private final AtomicLong mVerifiedFolderMisses = new AtomicLong(0);
+    private FolderSyncReceiver mFolderSyncReceiver;
+
+    /** Uploads queued or in progress; the service is stopped when there is none */
+    private int mQueuedUploads = 0;
+    private int mLastStartId;
+
+    private PendingTransfers<UploadFileOperation> mPendingUploads = new PendingTransfers<UploadFileOperation>();
+
+    /** Persistent queue of uploads; uploads not finished when the service is killed are restored from it */
+    private DbHandler mTransfersDb;
+    private boolean mPendingUploadsRestored = false;
+
+    /** Progress of every upload in progress, by upload key */
+    private Map<String, UploadProgress> mUploadsInProgress = new LinkedHashMap<String, UploadProgress>();
 
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mNotificationBuilder;
@@ -160,11 +207,32 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         super.onCreate();
         Log_OC.i(TAG, "mPendingUploads size:" + mPendingUploads.size());
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileUploaderThread", Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
         mBinder = new FileUploaderBinder();
+        mTransfersDb = new DbHandler(getApplicationContext());
+
+        mFolderSyncReceiver = new FolderSyncReceiver();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(FileSyncAdapter.EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED);
+        filter.addAction(SynchronizeFolderOperation.EVENT_SINGLE_FOLDER_CONTENTS_SYNCED);
+        registerReceiver(mFolderSyncReceiver, filter);
+    }
+
+    /**
+     * Service clean up
+     */
+    @Override
+    public void onDestroy() {
+        synchronized (mUploadExecutors) {
+            for (ExecutorService executor : mUploadExecutors.values()) {
+                executor.shutdown();
+            }
+            mUploadExecutors.clear();
+        }
+        unregisterReceiver(mFolderSyncReceiver);
+        mTransfersDb.close();
+        Log_OC.d(TAG, "Remote folder checks saved: " + mVerifiedFolderHits.get() + ", done: " + 
+                mVerifiedFolderMisses.get());
+        super.onDestroy();
     }
 
     /**
@@ -173,9 +241,21 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * New uploads are added calling to startService(), resulting in a call to
      * this method. This ensures the service will keep on working although the
      * caller activity goes away.
+     * 
+     * Uploads not finished in a previous run of the service are restored in the 
+     * first call; the system restarts the service with a NULL intent for that
+     * if it was killed.
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (!mPendingUploadsRestored) {
+            mPendingUploadsRestored = true;
+            restorePendingUploads(startId);
+        }
+        if (intent == null) {
+            startUploads(new ArrayList<UploadFileOperation>(), startId);
+            return Service.START_STICKY;
+        }
         if (!intent.hasExtra(KEY_ACCOUNT) || !intent.hasExtra(KEY_UPLOAD_TYPE)
                 || !(intent.hasExtra(KEY_LOCAL_FILE) || intent.hasExtra(KEY_FILE))) {
             Log_OC.e(TAG, "Not enough information provided in intent");
@@ -187,6 +267,13 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             return Service.START_NOT_STICKY;
         }
         Account account = intent.getParcelableExtra(KEY_ACCOUNT);
+        if (intent.hasExtra(KEY_MAX_PARALLEL_UPLOADS)) {
+            mMaxParallelUploads = Math.max(1, intent.getIntExtra(KEY_MAX_PARALLEL_UPLOADS, DEFAULT_MAX_PARALLEL_UPLOADS));
+        }
+        if (intent.hasExtra(KEY_MAX_PARALLEL_CHUNKS)) {
+            mMaxParallelChunks = Math.max(1, intent.getIntExtra(KEY_MAX_PARALLEL_CHUNKS, 
+                    ParallelChunkedUploadRemoteOperation.DEFAULT_PARALLEL_CHUNKS));
+        }
 
         String[] localPaths = null, remotePaths = null, mimeTypes = null;
         OCFile[] files = null;
@@ -253,12 +340,8 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             }
         }
 
-        AccountManager aMgr = AccountManager.get(this);
-        String version = aMgr.getUserData(account, Constants.KEY_OC_VERSION);
-        OwnCloudVersion ocv = new OwnCloudVersion(version);
-        
-        boolean chunked = FileUploader.chunkedUploadIsSupported(ocv);
-        AbstractList<String> requestedUploads = new Vector<String>();
+        boolean chunked = chunkedUploadIsSupported(account);
+        AbstractList<UploadFileOperation> requestedUploads = new Vector<UploadFileOperation>();
         String uploadKey = null;
         UploadFileOperation newUpload = null;
         try {
@@ -269,11 +352,10 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 if (isInstant) {
                     newUpload.setRemoteFolderToBeCreated();
                 }
-                mPendingUploads.putIfAbsent(uploadKey, newUpload); // Grants that the file only upload once time
-
-                newUpload.addDatatransferProgressListener(this);
-                newUpload.addDatatransferProgressListener((FileUploaderBinder)mBinder);
-                requestedUploads.add(uploadKey);
+                if (mPendingUploads.putIfAbsent(uploadKey, newUpload) == null) { // Grants that the file only upload once time
+                    newUpload.addDatatransferProgressListener(new UploadProgressListener(uploadKey, newUpload));
+                    requestedUploads.add(newUpload);
+                }
             }
 
         } catch (IllegalArgumentException e) {
@@ -290,14 +372,202 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
 
         }
 
-        if (requestedUploads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedUploads;
-            mServiceHandler.sendMessage(msg);
+        /// save the new uploads in the persistent queue, all at once
+        List<ContentValues> transfers = new ArrayList<ContentValues>(requestedUploads.size());
+        Iterator<UploadFileOperation> it = requestedUploads.iterator();
+        while (it.hasNext()) {
+            UploadFileOperation upload = it.next();
+            ContentValues cv = new ContentValues();
+            cv.put(DbHandler.TRANSFER_LOCAL_PATH, upload.getOriginalStoragePath());
+            cv.put(DbHandler.TRANSFER_REMOTE_PATH, upload.getRemotePath());
+            cv.put(DbHandler.TRANSFER_MIME_TYPE, upload.getMimeType());
+            cv.put(DbHandler.TRANSFER_INSTANT, upload.isInstant() ? 1 : 0);
+            cv.put(DbHandler.TRANSFER_FORCE_OVERWRITE, upload.getForceOverwrite() ? 1 : 0);
+            cv.put(DbHandler.TRANSFER_LOCAL_BEHAVIOUR, upload.getLocalBehaviour());
+            transfers.add(cv);
         }
+        mTransfersDb.queueTransfers(DbHandler.TRANSFER_TYPE_UPLOAD, account.name, transfers);
+
+        startUploads(requestedUploads, startId);
         Log_OC.i(TAG, "mPendingUploads size:" + mPendingUploads.size());
-        return Service.START_NOT_STICKY;
+        return Service.START_STICKY;
+    }
+
+    /**
+     * Checks if the server of an account should support chunked uploads.
+     * 
+     * @param account       ownCloud account.
+     * @return              'True' if the server of 'account' supports chunked uploads.
+     */
+    private boolean chunkedUploadIsSupported(Account account) {
+        AccountManager aMgr = AccountManager.get(this);
+        String version = aMgr.getUserData(account, Constants.KEY_OC_VERSION);
+        return FileUploader.chunkedUploadIsSupported(new OwnCloudVersion(version));
+    }
+
+    /**
+     * Hands uploads already added to mPendingUploads to the workers of their accounts.
+     * 
+     * @param uploads       Uploads to start.
+     * @param startId       Identifier of the start request adding the uploads.
+     */
+    private void startUploads(List<UploadFileOperation> uploads, int startId) {
+        synchronized (this) {
+            mLastStartId = startId;
+            mQueuedUploads += uploads.size();
+            if (mQueuedUploads == 0) {
+                stopSelf(startId);
+            }
+        }
+        Iterator<UploadFileOperation> it = uploads.iterator();
+        while (it.hasNext()) {
+            UploadFileOperation upload = it.next();
+            upload.setMaxParallelChunks(mMaxParallelChunks);
+            Account account = upload.getAccount();
+            getUploadExecutor(account).execute(new UploadTask(buildRemoteName(account, upload.getRemotePath()), upload));
+        }
+    }
+
+    /**
+     * Queues again the uploads left in the persistent queue by a previous run of the service.
+     * 
+     * Uploads that can't be restored, for instance because the local file is gone, are removed 
+     * from the persistent queue.
+     * 
+     * @param startId       Identifier of the start request restoring the uploads.
+     */
+    private void restorePendingUploads(int startId) {
+        List<UploadFileOperation> restoredUploads = new ArrayList<UploadFileOperation>();
+        Cursor c = mTransfersDb.getPendingTransfers(DbHandler.TRANSFER_TYPE_UPLOAD);
+        try {
+            while (c.moveToNext()) {
+                String accountName = c.getString(c.getColumnIndex(DbHandler.TRANSFER_ACCOUNT));
+                String localPath = c.getString(c.getColumnIndex(DbHandler.TRANSFER_LOCAL_PATH));
+                String remotePath = c.getString(c.getColumnIndex(DbHandler.TRANSFER_REMOTE_PATH));
+                try {
+                    Account account = new Account(accountName, MainApp.getAccountType());
+                    FileDataStorageManager storageManager = new FileDataStorageManager(account, getContentResolver());
+                    OCFile file = obtainNewOCFileToUpload(remotePath, localPath, 
+                            c.getString(c.getColumnIndex(DbHandler.TRANSFER_MIME_TYPE)), storageManager);
+                    boolean isInstant = c.getInt(c.getColumnIndex(DbHandler.TRANSFER_INSTANT)) == 1;
+                    UploadFileOperation upload = new UploadFileOperation(account, file, chunkedUploadIsSupported(account), 
+                            isInstant, c.getInt(c.getColumnIndex(DbHandler.TRANSFER_FORCE_OVERWRITE)) == 1,
+                            c.getInt(c.getColumnIndex(DbHandler.TRANSFER_LOCAL_BEHAVIOUR)), getApplicationContext());
+                    if (isInstant) {
+                        upload.setRemoteFolderToBeCreated();
+                    }
+                    String uploadKey = buildRemoteName(account, remotePath);
+                    if (mPendingUploads.putIfAbsent(uploadKey, upload) == null) {
+                        upload.addDatatransferProgressListener(new UploadProgressListener(uploadKey, upload));
+                        restoredUploads.add(upload);
+                    }
+
+                } catch (Exception e) {
+                    Log_OC.e(TAG, "Pending upload of " + localPath + " could not be restored", e);
+                    mTransfersDb.removeTransfer(DbHandler.TRANSFER_TYPE_UPLOAD, accountName, remotePath);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Log_OC.i(TAG, "Restored " + restoredUploads.size() + " pending uploads");
+        startUploads(restoredUploads, startId);
+    }
+
+    /**
+     * Updates the persistent queue of uploads with the result of an upload.
+     * 
+     * Finished and cancelled uploads are removed. Failed instant uploads are kept to be retried
+     * when connectivity changes, or by the user from {@link InstantUploadActivity} if the quota
+     * was exceeded; other failed uploads are removed, since the user is notified about them.
+     * 
+     * @param remotePath    Remote path of the upload, as queued.
+     * @param upload        Finished upload operation.
+     * @param uploadResult  Result of the upload; NULL if it was cancelled before starting.
+     */
+    private void saveUploadState(String remotePath, UploadFileOperation upload, RemoteOperationResult uploadResult) {
+        String accountName = upload.getAccount().name;
+        if (uploadResult != null && !uploadResult.isSuccess() && !uploadResult.isCancelled() && upload.isInstant()) {
+            Log_OC.e(TAG, uploadResult.getLogMessage() + " errorCode: " + uploadResult.getCode() + " Http-Code: " + 
+                    uploadResult.getHttpCode());
+            int state = DbHandler.TRANSFER_STATE_WAITING;
+            String message = null;
+            if (uploadResult.getCode() == ResultCode.QUOTA_EXCEEDED) {
+                state = DbHandler.TRANSFER_STATE_FAILED;
+                message = getString(R.string.failed_upload_quota_exceeded_text);
+            }
+            mTransfersDb.setTransferStopped(DbHandler.TRANSFER_TYPE_UPLOAD, accountName, remotePath, state, 0, message);
+
+        } else {
+            mTransfersDb.removeTransfer(DbHandler.TRANSFER_TYPE_UPLOAD, accountName, remotePath);
+        }
+    }
+
+    /**
+     * Returns the workers performing the uploads of an account, creating them if needed.
+     * 
+     * The number of workers is fixed when they are created.
+     * 
+     * @param account       ownCloud account.
+     * @return              Workers for the uploads to 'account'.
+     */
+    private ExecutorService getUploadExecutor(Account account) {
+        synchronized (mUploadExecutors) {
+            ExecutorService executor = mUploadExecutors.get(account.name);
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(mMaxParallelUploads, new UploadThreadFactory());
+                mUploadExecutors.put(account.name, executor);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Returns the client to access the server of an account, creating it if needed.
+     * 
+     * @param account       ownCloud account.
+     * @return              Client shared by all the uploads to 'account'.
+     */
+    private OwnCloudClient getUploadClient(Account account) throws AccountsException, IOException {
+        synchronized (mUploadClients) {
+            OwnCloudClient client = mUploadClients.get(account.name);
+            if (client == null) {
+                client = OwnCloudClientFactory.createOwnCloudClient(account, getApplicationContext());
+                mUploadClients.put(account.name, client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Discards the client of an account, so that the next upload creates a new one.
+     * 
+     * @param account       ownCloud account.
+     * @param client        Client to discard; a newer client for the account is kept.
+     */
+    private void discardUploadClient(Account account, OwnCloudClient client) {
+        synchronized (mUploadClients) {
+            if (client != null && mUploadClients.get(account.name) == client) {
+                mUploadClients.remove(account.name);
+            }
+        }
+    }
+
+    /**
+     * Returns the lock serializing the creation of remote folders in an account.
+     * 
+     * @param account       ownCloud account.
+     * @return              Lock for the creation of folders in 'account'.
+     */
+    private Object getFolderCreationLock(Account account) {
+        synchronized (mFolderCreationLocks) {
+            Object lock = mFolderCreationLocks.get(account.name);
+            if (lock == null) {
+                lock = new Object();
+                mFolderCreationLocks.put(account.name, lock);
+            }
+            return lock;
+        }
     }
 
     /**
@@ -328,12 +598,12 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * 
      * It provides by itself the available operations.
      */
-    public class FileUploaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileUploaderBinder extends Binder {
         
         /** 
          * Map of listeners that will be reported about progress of uploads from a {@link FileUploaderBinder} instance 
          */
-        private Map<String, OnDatatransferProgressListener> mBoundListeners = new HashMap<String, OnDatatransferProgressListener>();
+        private Map<String, OnDatatransferProgressListener> mBoundListeners = new ConcurrentHashMap<String, OnDatatransferProgressListener>();
         
         /**
          * Cancels a pending or current upload of a remote file.
@@ -343,9 +613,7 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
          */
         public void cancel(Account account, OCFile file) {
             UploadFileOperation upload = null;
-            synchronized (mPendingUploads) {
-                upload = mPendingUploads.remove(buildRemoteName(account, file));
-            }
+            upload = mPendingUploads.remove(buildRemoteName(account, file));
             if (upload != null) {
                 upload.cancel();
             }
@@ -373,22 +641,30 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             if (account == null || file == null)
                 return false;
             String targetKey = buildRemoteName(account, file);
-            synchronized (mPendingUploads) {
-                if (file.isFolder()) {
-                    // this can be slow if there are many uploads :(
-                    Iterator<String> it = mPendingUploads.keySet().iterator();
-                    boolean found = false;
-                    while (it.hasNext() && !found) {
-                        found = it.next().startsWith(targetKey);
-                    }
-                    return found;
-                } else {
-                    return (mPendingUploads.containsKey(targetKey));
-                }
+            if (file.isFolder()) {
+                return mPendingUploads.containsKeyWithPrefix(targetKey);
+            } else {
+                return mPendingUploads.containsKey(targetKey);
             }
         }
 
 
+        /**
+         * @return  Number of uploads whose target folder was known to exist, without checking it in the server.
+         */
+        public long getVerifiedFolderHits() {
+            return mVerifiedFolderHits.get();
+        }
+
+
+        /**
+         * @return  Number of uploads whose target folder had to be checked in the server.
+         */
+        public long getVerifiedFolderMisses() {
+            return mVerifiedFolderMisses.get();
+        }
+
+
         /**
          * Adds a listener interested in the progress of the upload for a concrete file.
          * 
@@ -420,11 +696,14 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         }
 
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
+        /**
+         * Reports the progress of an upload to the listener bound for its file, if any.
+         * 
+         * @param uploadKey     Key of the upload in progress.
+         */
+        private void onTransferProgress(String uploadKey, long progressRate, long totalTransferredSoFar, long totalToTransfer,
                 String fileName) {
-            String key = buildRemoteName(mCurrentUpload.getAccount(), mCurrentUpload.getFile());
-            OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
+            OnDatatransferProgressListener boundListener = mBoundListeners.get(uploadKey);
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer, fileName);
             }
@@ -433,108 +712,176 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     }
 
     /**
-     * Upload worker. Performs the pending uploads in the order they were
-     * requested.
-     * 
-     * Created with the Looper of a new thread, started in
-     * {@link FileUploader#onCreate()}.
+     * Listener for the progress of a single upload, forwarding it to the status notification 
+     * and to the listener bound for the file, and saving it in the persistent queue now and then.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will
-        // warn about a possible memory leak
-        FileUploader mService;
+    private class UploadProgressListener implements OnDatatransferProgressListener {
 
-        public ServiceHandler(Looper looper, FileUploader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+        private String mUploadKey;
+        private String mAccountName;
+        private String mRemotePath;
+        private long mLastSavedProgress = 0;
+
+        public UploadProgressListener(String uploadKey, UploadFileOperation upload) {
+            mUploadKey = uploadKey;
+            mAccountName = upload.getAccount().name;
+            mRemotePath = upload.getRemotePath();
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedUploads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedUploads.iterator();
-                while (it.hasNext()) {
-                    mService.uploadFile(it.next());
-                }
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String fileName) {
+            if (totalTransferredSoFar - mLastSavedProgress >= PROGRESS_SAVE_STEP) {
+                mLastSavedProgress = totalTransferredSoFar;
+                mTransfersDb.setTransferProgress(DbHandler.TRANSFER_TYPE_UPLOAD, mAccountName, mRemotePath, 
+                        totalTransferredSoFar);
             }
-            mService.stopSelf(msg.arg1);
+            notifyUploadProgress(mUploadKey, totalTransferredSoFar, totalToTransfer, fileName);
+            ((FileUploaderBinder)mBinder).onTransferProgress(mUploadKey, progressRate, totalTransferredSoFar, totalToTransfer, fileName);
         }
     }
 
     /**
-     * Core upload method: sends the file(s) to upload
+     * Upload worker task. Performs a single upload, unless it was cancelled while waiting in the queue.
      * 
-     * @param uploadKey Key to access the upload to perform, contained in
-     *            mPendingUploads
+     * Uploads to the same account are run by a fixed number of worker threads, in the order they 
+     * were requested. 
      */
-    public void uploadFile(String uploadKey) {
+    private class UploadTask implements Runnable {
 
-        synchronized (mPendingUploads) {
-            mCurrentUpload = mPendingUploads.get(uploadKey);
-        }
+        private String mUploadKey;
+        private UploadFileOperation mUpload;
+        private String mRemotePath;
 
-        if (mCurrentUpload != null) {
-
-            notifyUploadStart(mCurrentUpload);
+        public UploadTask(String uploadKey, UploadFileOperation upload) {
+            mUploadKey = uploadKey;
+            mUpload = upload;
+            mRemotePath = upload.getRemotePath();   // can change during the upload, if renamed
+        }
 
-            RemoteOperationResult uploadResult = null, grantResult = null;
-            
+        @Override
+        public void run() {
+            RemoteOperationResult uploadResult = null;
             try {
-                /// prepare client object to send requests to the ownCloud server
-                if (mUploadClient == null || !mLastAccount.equals(mCurrentUpload.getAccount())) {
-                    mLastAccount = mCurrentUpload.getAccount();
-                    mStorageManager = new FileDataStorageManager(mLastAccount, getContentResolver());
-                    mUploadClient = OwnCloudClientFactory.createOwnCloudClient(mLastAccount, getApplicationContext());
+                if (mPendingUploads.get(mUploadKey) == mUpload) {
+                    mTransfersDb.setTransferInProgress(DbHandler.TRANSFER_TYPE_UPLOAD, mUpload.getAccount().name, 
+                            mRemotePath);
+                    uploadResult = uploadFile(mUploadKey, mUpload);
                 }
-                
-                /// check the existence of the parent folder for the file to upload
-                String remoteParentPath = new File(mCurrentUpload.getRemotePath()).getParent();
-                remoteParentPath = remoteParentPath.endsWith(OCFile.PATH_SEPARATOR) ? remoteParentPath : remoteParentPath + OCFile.PATH_SEPARATOR;
-                grantResult = grantFolderExistence(remoteParentPath);
-            
-                /// perform the upload
-                if (grantResult.isSuccess()) {
-                    OCFile parent = mStorageManager.getFileByPath(remoteParentPath);
-                    mCurrentUpload.getFile().setParentId(parent.getFileId());
-                    uploadResult = mCurrentUpload.execute(mUploadClient);
-                    if (uploadResult.isSuccess()) {
-                        saveUploadedFile();
-                    }
-                } else {
-                    uploadResult = grantResult;
+                if (!mPendingUploads.containsKey(mUploadKey)) {     // else, requested again
+                    saveUploadState(mRemotePath, mUpload, uploadResult);
                 }
-                
-            } catch (AccountsException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
-                uploadResult = new RemoteOperationResult(e);
-                
-            } catch (IOException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
-                uploadResult = new RemoteOperationResult(e);
-                
+
             } finally {
-                synchronized (mPendingUploads) {
-                    mPendingUploads.remove(uploadKey);
-                    Log_OC.i(TAG, "Remove CurrentUploadItem from pending upload Item Map.");
+                synchronized (FileUploader.this) {
+                    mQueuedUploads--;
+                    if (mQueuedUploads == 0) {
+                        stopSelf(mLastStartId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Progress of an upload in progress, shown aggregated in the status notification.
+     */
+    private static class UploadProgress {
+        String mFileName;
+        long mTransferred = 0;
+        long mTotal;
+
+        UploadProgress(String fileName, long total) {
+            mFileName = fileName;
+            mTotal = total;
+        }
+    }
+
+    /**
+     * Creates the worker threads for uploads, with background priority.
+     */
+    private static class UploadThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger sThreadCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
                 }
-                if (uploadResult.isException()) {
-                    // enforce the creation of a new client object for next uploads; this grant that a new socket will 
-                    // be created in the future if the current exception is due to an abrupt lose of network connection
-                    mUploadClient = null;
+            }, "FileUploaderThread-" + sThreadCount.incrementAndGet());
+        }
+    }
+
+    /**
+     * Core upload method: sends the file(s) to upload
+     * 
+     * Called from the worker threads; several uploads can be in progress at the same time.
+     * 
+     * @param uploadKey Key to access the upload to perform, contained in
+     *            mPendingUploads
+     * @param upload    Upload to perform.
+     * @return          Result of the upload.
+     */
+    private RemoteOperationResult uploadFile(String uploadKey, UploadFileOperation upload) {
+
+        notifyUploadStart(uploadKey, upload);
+
+        RemoteOperationResult uploadResult = null, grantResult = null;
+        OwnCloudClient client = null;
+        Account account = upload.getAccount();
+        FileDataStorageManager storageManager = new FileDataStorageManager(account, getContentResolver());
+        
+        try {
+            /// prepare client object to send requests to the ownCloud server
+            client = getUploadClient(account);
+            
+            /// check the existence of the parent folder for the file to upload
+            String remoteParentPath = new File(upload.getRemotePath()).getParent();
+            remoteParentPath = remoteParentPath.endsWith(OCFile.PATH_SEPARATOR) ? remoteParentPath : remoteParentPath + OCFile.PATH_SEPARATOR;
+            grantResult = grantFolderExistence(remoteParentPath, upload, client, storageManager);
+        
+            /// perform the upload
+            if (grantResult.isSuccess()) {
+                OCFile parent = storageManager.getFileByPath(remoteParentPath);
+                upload.getFile().setParentId(parent.getFileId());
+                uploadResult = upload.execute(client);
+                if (uploadResult.isSuccess()) {
+                    saveUploadedFile(upload, client, storageManager);
+                } else if (uploadResult.getCode() != ResultCode.CANCELLED) {
+                    // the folder could be removed since it was checked
+                    forgetVerifiedFolders(account.name, remoteParentPath);
                 }
+            } else {
+                uploadResult = grantResult;
             }
             
-            /// notify result
+        } catch (AccountsException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
+            uploadResult = new RemoteOperationResult(e);
             
-            notifyUploadResult(uploadResult, mCurrentUpload);
-            sendFinalBroadcast(mCurrentUpload, uploadResult);
-
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
+            uploadResult = new RemoteOperationResult(e);
+            
+        } finally {
+            mPendingUploads.remove(uploadKey, upload);
+            Log_OC.i(TAG, "Remove CurrentUploadItem from pending upload Item Map.");
+            if (uploadResult.isException()) {
+                // enforce the creation of a new client object for next uploads; this grant that a new socket will 
+                // be created in the future if the current exception is due to an abrupt lose of network connection
+                discardUploadClient(account, client);
+            }
         }
+        
+        /// notify result
+        
+        notifyUploadResult(uploadKey, uploadResult, upload, client);
+        sendFinalBroadcast(upload, uploadResult);
 
+        return uploadResult;
     }
 
     /**
@@ -544,23 +891,51 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * If the upload is set to enforce the creation of the folder, the method tries to create it both remote
      * and locally.
      *  
+     *  Creations of folders are serialized for every account, so that uploads in parallel to the same
+     *  missing folder don't try to create it several times.
+     *  
+     *  Folders granted are remembered until the service is destroyed, or until an upload to them fails or
+     *  a synchronization finds them removed; next uploads to the same folder skip the remote check while
+     *  the folder is still in the local database.
+     *  
      *  @param  pathToGrant     Full remote path whose existence will be granted.
+     *  @param  upload          Upload waiting for the folder.
+     *  @param  client          Client to access the server.
+     *  @param  storageManager  Local database of the account.
      *  @return  An {@link OCFile} instance corresponding to the folder where the file will be uploaded.
      */
-    private RemoteOperationResult grantFolderExistence(String pathToGrant) {
+    private RemoteOperationResult grantFolderExistence(String pathToGrant, UploadFileOperation upload, OwnCloudClient client,
+            FileDataStorageManager storageManager) {
+        String verifiedKey = buildRemoteName(upload.getAccount(), pathToGrant);
+        if (mVerifiedFolders.containsKey(verifiedKey)) {
+            if (storageManager.getFileByPath(pathToGrant) != null) {
+                mVerifiedFolderHits.incrementAndGet();
+                return new RemoteOperationResult(ResultCode.OK);
+            }
+            mVerifiedFolders.remove(verifiedKey);   // removed locally, maybe remotely too
+        }
+        mVerifiedFolderMisses.incrementAndGet();
+
         RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
-        RemoteOperationResult result = operation.execute(mUploadClient);
-        if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND && mCurrentUpload.isRemoteFolderToBeCreated()) {
-            SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
-            result = syncOp.execute(mUploadClient, mStorageManager);
+        RemoteOperationResult result = operation.execute(client);
+        if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND && upload.isRemoteFolderToBeCreated()) {
+            synchronized (getFolderCreationLock(upload.getAccount())) {
+                // check again; other upload could create the folder while this was waiting 
+                result = operation.execute(client);
+                if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND) {
+                    SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
+                    result = syncOp.execute(client, storageManager);
+                }
+            }
         }
         if (result.isSuccess()) {
-            OCFile parentDir = mStorageManager.getFileByPath(pathToGrant);
+            OCFile parentDir = storageManager.getFileByPath(pathToGrant);
             if (parentDir == null) {
-                parentDir = createLocalFolder(pathToGrant);
+                parentDir = createLocalFolder(pathToGrant, storageManager);
             }
             if (parentDir != null) {
                 result = new RemoteOperationResult(ResultCode.OK);
+                mVerifiedFolders.put(verifiedKey, Boolean.TRUE);
             } else {
                 result = new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
             }
@@ -568,19 +943,55 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         return result;
     }
 
+
+    /**
+     * Forgets that a remote folder and its descendants were checked to exist.
+     * 
+     * @param accountName   Name of the account holding the folder.
+     * @param folderPath    Remote path of the folder, ending in '/'.
+     */
+    private void forgetVerifiedFolders(String accountName, String folderPath) {
+        String prefix = accountName + folderPath;
+        Iterator<String> it = mVerifiedFolders.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Forgets the remote folders checked before when a synchronization finds that they were removed
+     * in the server.
+     */
+    private class FolderSyncReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String accountName = intent.getStringExtra(FileSyncAdapter.EXTRA_ACCOUNT_NAME);
+            String folderPath = intent.getStringExtra(FileSyncAdapter.EXTRA_FOLDER_PATH);
+            RemoteOperationResult result = 
+                    (RemoteOperationResult) intent.getSerializableExtra(FileSyncAdapter.EXTRA_RESULT);
+            if (accountName != null && folderPath != null && result != null && 
+                    result.getCode() == ResultCode.FILE_NOT_FOUND) {
+                forgetVerifiedFolders(accountName, folderPath);
+            }
+        }
+    }
+
     
-    private OCFile createLocalFolder(String remotePath) {
+    private OCFile createLocalFolder(String remotePath, FileDataStorageManager storageManager) {
         String parentPath = new File(remotePath).getParent();
         parentPath = parentPath.endsWith(OCFile.PATH_SEPARATOR) ? parentPath : parentPath + OCFile.PATH_SEPARATOR;
-        OCFile parent = mStorageManager.getFileByPath(parentPath);
+        OCFile parent = storageManager.getFileByPath(parentPath);
         if (parent == null) {
-            parent = createLocalFolder(parentPath);
+            parent = createLocalFolder(parentPath, storageManager);
         }
         if (parent != null) {
             OCFile createdFolder = new OCFile(remotePath);
             createdFolder.setMimetype("DIR");
             createdFolder.setParentId(parent.getFileId());
-            mStorageManager.saveFile(createdFolder);
+            storageManager.saveFile(createdFolder);
             return createdFolder;
         }
         return null;
@@ -595,19 +1006,23 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * (where available)
      * 
      * TODO refactor this ugly thing
+     * 
+     * @param upload            Finished upload operation.
+     * @param client            Client to access the server.
+     * @param storageManager    Local database of the account.
      */
-    private void saveUploadedFile() {
-        OCFile file = mCurrentUpload.getFile();
+    private void saveUploadedFile(UploadFileOperation upload, OwnCloudClient client, FileDataStorageManager storageManager) {
+        OCFile file = upload.getFile();
         if (file.fileExists()) {
-            file = mStorageManager.getFileById(file.getFileId());
+            file = storageManager.getFileById(file.getFileId());
         }
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForData(syncDate);
 
         // new PROPFIND to keep data consistent with server 
         // in theory, should return the same we already have
-        ReadRemoteFileOperation operation = new ReadRemoteFileOperation(mCurrentUpload.getRemotePath());
-        RemoteOperationResult result = operation.execute(mUploadClient);
+        ReadRemoteFileOperation operation = new ReadRemoteFileOperation(upload.getRemotePath());
+        RemoteOperationResult result = operation.execute(client);
         if (result.isSuccess()) {
             updateOCFile(file, (RemoteFile) result.getData().get(0));
             file.setLastSyncDateForProperties(syncDate);
@@ -615,18 +1030,18 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         
         // / maybe this would be better as part of UploadFileOperation... or
         // maybe all this method
-        if (mCurrentUpload.wasRenamed()) {
-            OCFile oldFile = mCurrentUpload.getOldFile();
+        if (upload.wasRenamed()) {
+            OCFile oldFile = upload.getOldFile();
             if (oldFile.fileExists()) {
                 oldFile.setStoragePath(null);
-                mStorageManager.saveFile(oldFile);
+                storageManager.saveFile(oldFile);
 
             } // else: it was just an automatic renaming due to a name
               // coincidence; nothing else is needed, the storagePath is right
-              // in the instance returned by mCurrentUpload.getFile()
+              // in the instance returned by upload.getFile()
         }
 
-        mStorageManager.saveFile(file);
+        storageManager.saveFile(file);
     }
 
     private void updateOCFile(OCFile file, RemoteFile remoteFile) {
@@ -670,12 +1085,30 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         return newFile;
     }
 
+    /**
+     * Adds an upload to the status notification showing the progress of the uploads in progress,
+     * creating the notification if it is the only one.
+     * 
+     * @param uploadKey     Key of the upload starting.
+     * @param upload        Upload operation starting.
+     */
+    private void notifyUploadStart(String uploadKey, UploadFileOperation upload) {
+        synchronized (mUploadsInProgress) {
+            mUploadsInProgress.put(uploadKey, new UploadProgress(upload.getFileName(), upload.getFile().getFileLength()));
+            if (mUploadsInProgress.size() == 1) {
+                createProgressNotification(upload);
+            } else {
+                updateProgressNotification();
+            }
+        }
+    }
+
     /**
      * Creates a status notification to show the upload progress
      * 
      * @param upload Upload operation starting.
      */
-    private void notifyUploadStart(UploadFileOperation upload) {
+    private void createProgressNotification(UploadFileOperation upload) {
         // / create status notification with a progress bar
         mLastPercent = 0;
         mNotificationBuilder = 
@@ -703,14 +1136,44 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
 
     /**
      * Callback method to update the progress bar in the status notification
+     * 
+     * Progress is aggregated over all the uploads in progress.
+     * 
+     * @param uploadKey     Key of the upload progressing.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
+    private void notifyUploadProgress(String uploadKey, long totalTransferredSoFar, long totalToTransfer, String filePath) {
+        synchronized (mUploadsInProgress) {
+            UploadProgress progress = mUploadsInProgress.get(uploadKey);
+            if (progress != null) {
+                progress.mTransferred = totalTransferredSoFar;
+                progress.mTotal = totalToTransfer;
+                progress.mFileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
+                updateProgressNotification();
+            }
+        }
+    }
+
+    /**
+     * Refreshes the progress bar and text in the status notification with the aggregated progress 
+     * of all the uploads in progress.
+     * 
+     * Must be called with the lock on mUploadsInProgress.
+     */
+    private void updateProgressNotification() {
+        long transferred = 0;
+        long total = 0;
+        String fileName = null;
+        for (UploadProgress progress : mUploadsInProgress.values()) {
+            transferred += progress.mTransferred;
+            total += progress.mTotal;
+            fileName = progress.mFileName;
+        }
+        int percent = (total > 0) ? (int) (100.0 * ((double) transferred) / ((double) total)) : 0;
+        if (percent != mLastPercent || mUploadsInProgress.size() > 1) {
             mNotificationBuilder.setProgress(100, percent, false);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
+            String text = (mUploadsInProgress.size() > 1) ?
+                    String.format(getString(R.string.uploader_upload_in_progress_multiple_content), percent, mUploadsInProgress.size()) :
+                    String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
             mNotificationBuilder.setContentText(text);
             mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
         }
@@ -720,19 +1183,33 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     /**
      * Updates the status notification with the result of an upload operation.
      * 
-     * @param uploadResult Result of the upload operation.
-     * @param upload Finished upload operation
+     * The notification of progress is kept while other uploads are in progress.
+     * 
+     * @param uploadKey     Key of the finished upload.
+     * @param uploadResult  Result of the upload operation.
+     * @param upload        Finished upload operation
+     * @param client        Client used for the upload; NULL if it could not be created.
      */
-    private void notifyUploadResult(RemoteOperationResult uploadResult, UploadFileOperation upload) {
+    private void notifyUploadResult(String uploadKey, RemoteOperationResult uploadResult, UploadFileOperation upload, 
+            OwnCloudClient client) {
         Log_OC.d(TAG, "NotifyUploadResult with resultCode: " + uploadResult.getCode());
+        synchronized (mUploadsInProgress) {
+            mUploadsInProgress.remove(uploadKey);
+            if (mUploadsInProgress.isEmpty()) {
+                mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+            } else {
+                updateProgressNotification();
+            }
+        }
+        
         if (uploadResult.isCancelled()) {
-            // / cancelled operation -> silent removal of progress notification
-            mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+            // / cancelled operation -> silent removal of progress notification, done above
 
         } else if (uploadResult.isSuccess()) {
-            // / success -> silent update of progress notification to success
-            // message
-            mNotificationBuilder
+            // / success -> silent notification of success
+            NotificationCompat.Builder successBuilder = new NotificationCompat.Builder(this);
+            successBuilder
+                .setSmallIcon(R.drawable.notification_icon)
                 .setOngoing(false)
                 .setAutoCancel(true)
                 .setProgress(0, 0, false);
@@ -747,7 +1224,7 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
             showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
             showDetailsIntent.putExtra(FileActivity.EXTRA_FROM_NOTIFICATION, true);;
-            mNotificationBuilder
+            successBuilder
                 .setContentIntent(PendingIntent.getActivity(
                         this, (int) System.currentTimeMillis(), showDetailsIntent, 0
                 ))
@@ -755,17 +1232,11 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 .setContentTitle(getString(R.string.uploader_upload_succeeded_ticker))
                 .setContentText(ErrorMessageAdapter.getErrorCauseMessage(uploadResult, upload, getResources()));
 
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());  // NOT
-                                                                                                                     // AN
-            DbHandler db = new DbHandler(this.getBaseContext());
-            db.removeIUPendingFile(mCurrentUpload.getOriginalStoragePath());
-            db.close();
+            mNotificationManager.notify(R.string.uploader_upload_succeeded_ticker, successBuilder.build());
 
         } else {
 
             // / fail -> explicit failure notification
-            mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);            
-            
             NotificationCompat.Builder errorBuilder = new NotificationCompat.Builder(this);
             
             String content = null;
@@ -773,7 +1244,7 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             // check credentials error
             boolean needsToUpdateCredentials = (uploadResult.getCode() == ResultCode.UNAUTHORIZED || 
                     (uploadResult.isIdPRedirection() &&
-                            mUploadClient.getCredentials() == null));
+                            client != null && client.getCredentials() == null));
             int tickerId = (needsToUpdateCredentials) ? 
                     R.string.uploader_upload_failed_credentials_error : R.string.uploader_upload_failed_ticker;
 
@@ -797,7 +1268,7 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                     this, (int) System.currentTimeMillis(), updateAccountCredentials, PendingIntent.FLAG_ONE_SHOT
                 ));
                 
-                mUploadClient = null;   // grant that future retries on the same account will get the fresh credentials
+                discardUploadClient(upload.getAccount(), client);   // grant that future retries on the same account will get the fresh credentials
             } else {
                 // TODO put something smart in the contentIntent below
 
@@ -816,26 +1287,6 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                         this, (int) System.currentTimeMillis(), detailUploadIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_ONE_SHOT
                     ))
                     .setContentText(content);
-    
-                if (upload.isInstant()) {
-                    DbHandler db = null;
-                    try {
-                        db = new DbHandler(this.getBaseContext());
-                        String message = uploadResult.getLogMessage() + " errorCode: " + uploadResult.getCode();
-                        Log_OC.e(TAG, message + " Http-Code: " + uploadResult.getHttpCode());
-                        if (uploadResult.getCode() == ResultCode.QUOTA_EXCEEDED) {
-                            message = getString(R.string.failed_upload_quota_exceeded_text);
-                            if (db.updateFileState(upload.getOriginalStoragePath(), DbHandler.UPLOAD_STATUS_UPLOAD_FAILED,
-                                    message) == 0) {
-                                db.putFileForLater(upload.getOriginalStoragePath(), upload.getAccount().name, message);
-                            }
-                        }
-                    } finally {
-                        if (db != null) {
-                            db.close();
-                        }
-                    }
-                }
             }
             
             errorBuilder.setContentText(content);
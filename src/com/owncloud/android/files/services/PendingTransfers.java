@@ -0,0 +1,114 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Transfers queued or in progress, by key (account name + remote path).
+ * 
+ * Besides the access by key, keeps the keys sorted so that the existence of transfers under a 
+ * folder can be answered in logarithmic time, instead of visiting every pending transfer.
+ * 
+ * Lookups by key don't block; changes and lookups under a folder are serialized in a lock held
+ * only for the update of the sorted keys.
+ *
+ * @param <T>   Class of the operations performing the transfers.
+ */
+public class PendingTransfers<T> {
+
+    private final ConcurrentMap<String, T> mTransfers = new ConcurrentHashMap<String, T>();
+    private final SortedSet<String> mSortedKeys = new TreeSet<String>();
+
+
+    /**
+     * Adds a transfer if there is none with the same key.
+     * 
+     * @return  Transfer previously pending for the key, or null if 'transfer' was added.
+     */
+    public T putIfAbsent(String key, T transfer) {
+        synchronized (mSortedKeys) {
+            T previous = mTransfers.putIfAbsent(key, transfer);
+            if (previous == null) {
+                mSortedKeys.add(key);
+            }
+            return previous;
+        }
+    }
+
+    public T get(String key) {
+        return mTransfers.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        return mTransfers.containsKey(key);
+    }
+
+    public int size() {
+        return mTransfers.size();
+    }
+
+    /**
+     * Removes the transfer pending for a key.
+     * 
+     * @return  Removed transfer, or null if there was none.
+     */
+    public T remove(String key) {
+        synchronized (mSortedKeys) {
+            T removed = mTransfers.remove(key);
+            if (removed != null) {
+                mSortedKeys.remove(key);
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Removes the transfer pending for a key only if it is 'transfer'.
+     * 
+     * @return  'true' if 'transfer' was removed.
+     */
+    public boolean remove(String key, T transfer) {
+        synchronized (mSortedKeys) {
+            boolean removed = mTransfers.remove(key, transfer);
+            if (removed) {
+                mSortedKeys.remove(key);
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Checks if there is some transfer pending whose key starts with a prefix; with the key of a 
+     * folder, ending in '/', checks if there is some transfer of a file in the folder or its descendants.
+     * 
+     * @param prefix    Beginning of the keys of interest.
+     * @return          'true' if there is some transfer pending with a key starting with 'prefix'.
+     */
+    public boolean containsKeyWithPrefix(String prefix) {
+        synchronized (mSortedKeys) {
+            // the first key not lower than the prefix is the only candidate
+            SortedSet<String> tail = mSortedKeys.tailSet(prefix);
+            return !tail.isEmpty() && tail.first().startsWith(prefix);
+        }
+    }
+
+}
@@ -442,14 +442,9 @@ public class MediaService extends Service implements OnCompletionListener, OnPre
 
             createMediaPlayerIfNeeded();
             mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            String url = mFile.getStoragePath();
-            /* Streaming is not possible right now
-            if (url == null || url.length() <= 0) {
-                url = AccountUtils.constructFullURLForAccount(this, mAccount) + mFile.getRemotePath();
-            }
-            mIsStreaming = url.startsWith("http:") || url.startsWith("https:");
-            */
-            mIsStreaming = false;
+            // files not downloaded are streamed through a proxy adding the credentials of the account
+            mIsStreaming = !mFile.isDown();
+            String url = StreamingProxy.getPlayablePath(this, mAccount, mFile);
             
             mPlayer.setDataSource(url);
 
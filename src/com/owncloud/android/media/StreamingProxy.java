@@ -0,0 +1,763 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.media;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import android.accounts.Account;
+import android.accounts.AccountsException;
+import android.content.Context;
+import android.net.Uri;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.utils.Log_OC;
+
+/**
+ * HTTP server in the loopback interface letting media players stream files from an ownCloud server.
+ *
+ * Players can't add the credentials of the account to their requests; the proxy receives the requests
+ * of the players for URLs got from {@link #getUrl(Account, OCFile)} and forwards them to the server
+ * with an {@link OwnCloudClient} of the account. Range requests are supported, so that players can seek.
+ *
+ * The bytes received from the server are stored in a disk cache limited in size, where the regions
+ * already fetched of every file are recorded; requests for them are served without accessing the
+ * server. Files are cached by remote path and ETag, so a file changed in the server is fetched again.
+ *
+ * URLs contain a random token, so that other apps can't access the files through the proxy.
+ */
+public class StreamingProxy {
+
+    private static final String TAG = StreamingProxy.class.getSimpleName();
+
+    private static final String CACHE_FOLDER = "streaming";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String RANGES_SUFFIX = ".ranges";
+
+    /** Maximum amount of bytes kept in the disk cache */
+    private static final long DISK_CACHE_SIZE = 200 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static StreamingProxy sInstance = null;
+
+    private final Context mContext;
+    private final File mCacheFolder;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final ExecutorService mConnectionHandlers = Executors.newCachedThreadPool();
+
+    private ServerSocket mServerSocket = null;
+
+    /** Files that can be streamed, by token */
+    private final Map<String, Stream> mStreams = new ConcurrentHashMap<String, Stream>();
+
+    /** Tokens given, by cache key */
+    private final Map<String, String> mTokens = new HashMap<String, String>();
+
+    /** Clients by account name, created in the threads handling requests */
+    private final Map<String, OwnCloudClient> mClients = new HashMap<String, OwnCloudClient>();
+
+    /** Files in the disk cache, by name; loaded on first use */
+    private Map<String, CachedFile> mCachedFiles = null;
+    private long mCachedBytes = 0;
+
+
+    public static synchronized StreamingProxy getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StreamingProxy(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * Path to give to a media player to play a file: its local path if downloaded, or a URL to stream
+     * it through the proxy.
+     */
+    public static String getPlayablePath(Context context, Account account, OCFile file) throws IOException {
+        if (file.isDown()) {
+            return file.getStoragePath();
+        }
+        return getInstance(context).getUrl(account, file);
+    }
+
+
+    private StreamingProxy(Context context) {
+        mContext = context;
+        mCacheFolder = new File(context.getCacheDir(), CACHE_FOLDER);
+    }
+
+
+    /**
+     * Returns the URL where a media player can stream a remote file from, starting the proxy if needed.
+     *
+     * Doesn't access the network nor the credentials of the account; can be called from the main thread.
+     *
+     * @param account       ownCloud account holding the file.
+     * @param file          Remote file to stream.
+     * @return              Local URL for the file.
+     */
+    public String getUrl(Account account, OCFile file) throws IOException {
+        return register(new Stream(account, null, file), account.name);
+    }
+
+
+    /**
+     * Same as {@link #getUrl(Account, OCFile)} for a client already created.
+     */
+    public String getUrl(OwnCloudClient client, OCFile file) throws IOException {
+        return register(new Stream(null, client, file), client.getWebdavUri().toString());
+    }
+
+
+    private synchronized String register(Stream stream, String owner) throws IOException {
+        start();
+        stream.mCacheName = hash(owner + stream.mRemotePath + "#" + stream.mEtag);
+        String token = mTokens.get(stream.mCacheName);
+        if (token == null) {
+            token = new BigInteger(128, mRandom).toString(16);
+            mTokens.put(stream.mCacheName, token);
+        }
+        mStreams.put(token, stream);
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + token + "/" + Uri.encode(stream.mFileName);
+    }
+
+
+    private void start() throws IOException {
+        if (mServerSocket != null && !mServerSocket.isClosed()) {
+            return;
+        }
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        final ServerSocket serverSocket = mServerSocket;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        mConnectionHandlers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        Log_OC.d(TAG, "Proxy stopped accepting connections: " + e.getMessage());
+                    }
+                }
+            }
+        }, TAG);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log_OC.d(TAG, "Proxy listening in port " + mServerSocket.getLocalPort());
+    }
+
+
+    private void handle(Socket socket) {
+        try {
+            serve(socket);
+        } catch (IOException e) {
+            // usual when players seek: they close the connection and open a new one
+            Log_OC.d(TAG, "Connection closed: " + e.getMessage());
+        } catch (AccountsException e) {
+            Log_OC.e(TAG, "Account for streaming not available", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+
+    private void serve(Socket socket) throws IOException, AccountsException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return;
+        }
+        String range = null;
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            if (line.toLowerCase().startsWith("range:")) {
+                range = line.substring(6).trim();
+            }
+        }
+
+        String[] request = requestLine.split(" ");
+        Stream stream = null;
+        if (request.length >= 2 && request[1].length() > 1) {
+            String path = request[1].substring(1);
+            int slash = path.indexOf('/');
+            stream = mStreams.get((slash >= 0) ? path.substring(0, slash) : path);
+        }
+        if (stream == null || stream.mLength <= 0) {
+            writeHeaders(out, "404 Not Found", "Content-Length: 0\r\n");
+            return;
+        }
+
+        /// range requested
+        long start = 0;
+        long end = stream.mLength - 1;
+        boolean partial = false;
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+            try {
+                String[] limits = range.substring(6).split("-", -1);
+                if (limits[0].length() == 0) {
+                    // suffix: last bytes of the file
+                    start = Math.max(0, stream.mLength - Long.parseLong(limits[1].trim()));
+                } else {
+                    start = Long.parseLong(limits[0].trim());
+                    if (limits.length > 1 && limits[1].trim().length() > 0) {
+                        end = Math.min(end, Long.parseLong(limits[1].trim()));
+                    }
+                }
+                partial = true;
+            } catch (NumberFormatException e) {
+                Log_OC.w(TAG, "Ignored invalid range " + range);
+            }
+        }
+        if (start > end) {
+            writeHeaders(out, "416 Requested Range Not Satisfiable",
+                    "Content-Range: bytes */" + stream.mLength + "\r\nContent-Length: 0\r\n");
+            return;
+        }
+
+        boolean head = "HEAD".equals(request[0]);
+        CachedFile cached = acquireCachedFile(stream);
+        GetMethod firstFetch = null;
+        try {
+            if (!head && cached.getCachedEnd(start) < 0) {
+                // the server is asked before answering the player, so that its failures can be reported
+                try {
+                    firstFetch = openFetch(stream, start, Math.min(cached.getNextCachedStart(start), end + 1));
+                } catch (IOException e) {
+                    Log_OC.w(TAG, "Could not fetch " + stream.mRemotePath + ": " + e.getMessage());
+                    writeHeaders(out, "502 Bad Gateway", "Content-Length: 0\r\n");
+                    return;
+                } catch (AccountsException e) {
+                    Log_OC.e(TAG, "Account for streaming not available", e);
+                    writeHeaders(out, "502 Bad Gateway", "Content-Length: 0\r\n");
+                    return;
+                }
+            }
+            
+            StringBuilder headers = new StringBuilder();
+            headers.append("Content-Type: ").append(stream.mMimeType).append("\r\n");
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            headers.append("Accept-Ranges: bytes\r\n");
+            if (partial) {
+                headers.append("Content-Range: bytes ").append(start).append("-").append(end)
+                        .append("/").append(stream.mLength).append("\r\n");
+            }
+            writeHeaders(out, partial ? "206 Partial Content" : "200 OK", headers.toString());
+            if (!head) {
+                sendBody(stream, cached, firstFetch, out, start, end + 1);
+            }
+            
+        } finally {
+            if (firstFetch != null) {
+                firstFetch.releaseConnection();
+            }
+            releaseCachedFile(cached);
+        }
+    }
+
+
+    /**
+     * Sends the bytes of a file between 'start' (inclusive) and 'end' (exclusive), from the cache if
+     * fetched before, or from the server.
+     * 
+     * @param firstFetch    Request already open for the bytes from 'start', if not cached; null if cached.
+     */
+    private void sendBody(Stream stream, CachedFile cached, GetMethod firstFetch, OutputStream out, long start, long end) 
+            throws IOException, AccountsException {
+        RandomAccessFile data = new RandomAccessFile(cached.mData, "rw");
+        try {
+            long position = start;
+            long fromCache = 0;
+            while (position < end) {
+                long cachedEnd = cached.getCachedEnd(position);
+                if (cachedEnd > position) {
+                    long copyEnd = Math.min(cachedEnd, end);
+                    copyFromCache(data, out, position, copyEnd);
+                    fromCache += copyEnd - position;
+                    position = copyEnd;
+                    
+                } else {
+                    long fetchEnd = Math.min(cached.getNextCachedStart(position), end);
+                    if (position == start && firstFetch != null) {
+                        position = relay(firstFetch, cached, data, out, position, fetchEnd);
+                    } else {
+                        // headers already sent; a failure here can only close the connection
+                        GetMethod get = openFetch(stream, position, fetchEnd);
+                        try {
+                            position = relay(get, cached, data, out, position, fetchEnd);
+                        } finally {
+                            get.releaseConnection();
+                        }
+                    }
+                }
+            }
+            Log_OC.d(TAG, "Sent bytes " + start + "-" + (end - 1) + " of " + stream.mRemotePath + ", " + fromCache + " from cache");
+
+        } finally {
+            data.close();
+        }
+    }
+
+
+    private void copyFromCache(RandomAccessFile data, OutputStream out, long start, long end) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        data.seek(start);
+        long position = start;
+        while (position < end) {
+            int read = data.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+            if (read < 0) {
+                throw new IOException("Cached data ended before expected");
+            }
+            out.write(buffer, 0, read);
+            position += read;
+        }
+        out.flush();
+    }
+
+
+    /**
+     * Requests bytes from 'start' to 'end' (exclusive) to the server.
+     *
+     * @return      Request with the response body ready to be read; the caller must release its connection.
+     * @throws IOException  If the server fails, or the file changed in the server after the stream was registered.
+     */
+    private GetMethod openFetch(Stream stream, long start, long end) throws IOException, AccountsException {
+        OwnCloudClient client = stream.getClient();
+        GetMethod get = new GetMethod(client.getWebdavUri() + WebdavUtils.encodePath(stream.mRemotePath));
+        boolean open = false;
+        try {
+            get.addRequestHeader("Range", "bytes=" + start + "-" + (end - 1));
+            int status = client.executeMethod(get);
+            if (status != HttpStatus.SC_PARTIAL_CONTENT && !(status == HttpStatus.SC_OK && start == 0)) {
+                client.exhaustResponse(get.getResponseBodyAsStream());
+                throw new IOException("Unexpected status " + status + " fetching " + stream.mRemotePath);
+            }
+            Header etag = get.getResponseHeader("ETag");
+            if (etag != null && stream.mEtag != null && !unquote(stream.mEtag).equals(unquote(etag.getValue()))) {
+                // bytes of a different version can't be mixed with those cached, nor match the length announced
+                throw new IOException(stream.mRemotePath + " changed in the server");
+            }
+            open = true;
+            return get;
+
+        } finally {
+            if (!open) {
+                get.abort();
+                get.releaseConnection();
+            }
+        }
+    }
+
+
+    /**
+     * Sends to the player the bytes from 'start' to 'end' (exclusive) received in an open request,
+     * while storing them in the cache, if there is room.
+     *
+     * @return      Position after the last byte sent.
+     */
+    private long relay(GetMethod get, CachedFile cached, RandomAccessFile data, OutputStream out, long start, long end)
+            throws IOException {
+
+        long position = start;
+        boolean store = true;
+        try {
+            InputStream body = get.getResponseBodyAsStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (position < end) {
+                int read = body.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (read < 0) {
+                    throw new IOException("Server closed the response at byte " + position);
+                }
+                if (store && reserve(cached, read)) {
+                    try {
+                        data.seek(position);
+                        data.write(buffer, 0, read);
+                        addCachedRange(cached, position, position + read);
+                    } catch (IOException e) {
+                        Log_OC.w(TAG, "Received bytes can't be cached: " + e.getMessage());
+                        store = false;
+                    }
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            out.flush();
+
+        } catch (IOException e) {
+            get.abort();
+            throw e;
+        }
+        return position;
+    }
+
+
+    /// disk cache
+
+    private synchronized CachedFile acquireCachedFile(Stream stream) throws IOException {
+        loadCachedFiles();
+        CachedFile cached = mCachedFiles.get(stream.mCacheName);
+        if (cached == null) {
+            mCacheFolder.mkdirs();
+            cached = new CachedFile(stream.mCacheName);
+            mCachedFiles.put(stream.mCacheName, cached);
+        }
+        cached.mUsers++;
+        cached.mData.createNewFile();
+        cached.mData.setLastModified(System.currentTimeMillis());
+        return cached;
+    }
+
+
+    private synchronized void releaseCachedFile(CachedFile cached) {
+        cached.mUsers--;
+        if (mCachedFiles.get(cached.mName) == cached) {
+            cached.save();
+        }
+    }
+
+
+    /**
+     * Makes room in the cache for 'size' bytes of 'cached', removing the least recently used files
+     * not being streamed.
+     *
+     * @return      'false' if there is no room enough.
+     */
+    private synchronized boolean reserve(CachedFile cached, long size) {
+        if (mCachedFiles.get(cached.mName) != cached) {
+            // removed while being streamed
+            return false;
+        }
+        if (mCachedBytes + size <= DISK_CACHE_SIZE) {
+            return true;
+        }
+        CachedFile[] candidates = mCachedFiles.values().toArray(new CachedFile[mCachedFiles.size()]);
+        Arrays.sort(candidates, new Comparator<CachedFile>() {
+            @Override
+            public int compare(CachedFile lhs, CachedFile rhs) {
+                long lhsUsed = lhs.mData.lastModified(), rhsUsed = rhs.mData.lastModified();
+                return (lhsUsed < rhsUsed) ? -1 : ((lhsUsed == rhsUsed) ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < candidates.length && mCachedBytes + size > DISK_CACHE_SIZE; i++) {
+            if (candidates[i].mUsers == 0) {
+                mCachedBytes -= candidates[i].getCachedBytes();
+                candidates[i].delete();
+                mCachedFiles.remove(candidates[i].mName);
+            }
+        }
+        return (mCachedBytes + size <= DISK_CACHE_SIZE);
+    }
+
+
+    private synchronized void addCachedRange(CachedFile cached, long start, long end) {
+        mCachedBytes += cached.add(start, end);
+    }
+
+
+    private void loadCachedFiles() {
+        if (mCachedFiles != null) {
+            return;
+        }
+        mCachedFiles = new HashMap<String, CachedFile>();
+        mCachedBytes = 0;
+        File[] stored = mCacheFolder.listFiles();
+        if (stored != null) {
+            for (File file : stored) {
+                String name = file.getName();
+                if (name.endsWith(RANGES_SUFFIX)) {
+                    CachedFile cached = new CachedFile(name.substring(0, name.length() - RANGES_SUFFIX.length()));
+                    if (cached.load()) {
+                        mCachedFiles.put(cached.mName, cached);
+                        mCachedBytes += cached.getCachedBytes();
+                    } else {
+                        cached.delete();
+                    }
+                } else if (name.endsWith(DATA_SUFFIX) &&
+                        !new File(mCacheFolder, name.substring(0, name.length() - DATA_SUFFIX.length()) + RANGES_SUFFIX).exists()) {
+                    // nothing known about its content
+                    file.delete();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * File of the disk cache keeping the bytes fetched of a remote file in the same positions, with the
+     * list of regions fetched.
+     */
+    private class CachedFile {
+
+        final String mName;
+        final File mData;
+        final File mRanges;
+
+        /** Fetched regions, sorted and disjoint, as {start, end (exclusive)} */
+        private List<long[]> mFetched = new ArrayList<long[]>();
+
+        /** Connections using the file; guarded by the proxy */
+        int mUsers = 0;
+
+        CachedFile(String name) {
+            mName = name;
+            mData = new File(mCacheFolder, name + DATA_SUFFIX);
+            mRanges = new File(mCacheFolder, name + RANGES_SUFFIX);
+        }
+
+        /**
+         * @return      End (exclusive) of the fetched region containing 'position', or -1 if not fetched.
+         */
+        synchronized long getCachedEnd(long position) {
+            for (long[] region : mFetched) {
+                if (region[0] <= position && position < region[1]) {
+                    return region[1];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return      Start of the first fetched region after 'position', or Long.MAX_VALUE if none.
+         */
+        synchronized long getNextCachedStart(long position) {
+            for (long[] region : mFetched) {
+                if (region[0] > position) {
+                    return region[0];
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        synchronized long getCachedBytes() {
+            long bytes = 0;
+            for (long[] region : mFetched) {
+                bytes += region[1] - region[0];
+            }
+            return bytes;
+        }
+
+        /**
+         * Records a fetched region, merging it with those overlapping or adjacent.
+         *
+         * @return      Number of bytes not fetched before.
+         */
+        synchronized long add(long start, long end) {
+            long added = end - start;
+            long mergedStart = start, mergedEnd = end;
+            List<long[]> fetched = new ArrayList<long[]>();
+            for (long[] region : mFetched) {
+                if (region[1] < start || region[0] > end) {
+                    fetched.add(region);
+                } else {
+                    added -= Math.max(0, Math.min(region[1], end) - Math.max(region[0], start));
+                    mergedStart = Math.min(mergedStart, region[0]);
+                    mergedEnd = Math.max(mergedEnd, region[1]);
+                }
+            }
+            int i = 0;
+            while (i < fetched.size() && fetched.get(i)[0] < mergedStart) {
+                i++;
+            }
+            fetched.add(i, new long[] { mergedStart, mergedEnd });
+            mFetched = fetched;
+            return added;
+        }
+
+        synchronized boolean load() {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(mRanges));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] limits = line.split("-");
+                    add(Long.parseLong(limits[0]), Long.parseLong(limits[1]));
+                }
+                return mData.exists();
+
+            } catch (IOException e) {
+                return false;
+            } catch (RuntimeException e) {
+                return false;
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                }
+            }
+        }
+
+        synchronized void save() {
+            FileWriter writer = null;
+            try {
+                writer = new FileWriter(mRanges);
+                for (long[] region : mFetched) {
+                    writer.write(region[0] + "-" + region[1] + "\n");
+                }
+            } catch (IOException e) {
+                Log_OC.w(TAG, "Regions cached of " + mName + " could not be saved: " + e.getMessage());
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                }
+            }
+        }
+
+        synchronized void delete() {
+            mFetched.clear();
+            mRanges.delete();
+            mData.delete();
+        }
+    }
+
+
+    /**
+     * Remote file available through the proxy.
+     */
+    private class Stream {
+
+        final Account mAccount;
+        final String mRemotePath;
+        final String mEtag;
+        final String mFileName;
+        final String mMimeType;
+        final long mLength;
+        String mCacheName;
+        private OwnCloudClient mClient;
+
+        Stream(Account account, OwnCloudClient client, OCFile file) {
+            mAccount = account;
+            mClient = client;
+            mRemotePath = file.getRemotePath();
+            mEtag = file.getEtag();
+            mFileName = file.getFileName();
+            mMimeType = (file.getMimetype() != null) ? file.getMimetype() : "application/octet-stream";
+            mLength = file.getFileLength();
+        }
+
+        /**
+         * Creation of clients may need to wait for the account manager; never in the main thread.
+         */
+        OwnCloudClient getClient() throws AccountsException, IOException {
+            synchronized (mClients) {
+                if (mClient == null) {
+                    mClient = mClients.get(mAccount.name);
+                    if (mClient == null) {
+                        mClient = OwnCloudClientFactory.createOwnCloudClient(mAccount, mContext);
+                        mClients.put(mAccount.name, mClient);
+                    }
+                }
+                return mClient;
+            }
+        }
+    }
+
+
+    /**
+     * @return      ETag without weak prefix nor quotes, so that values got from PROPFIND and GET can be compared.
+     */
+    private static String unquote(String etag) {
+        String value = etag.trim();
+        if (value.startsWith("W/")) {
+            value = value.substring(2);
+        }
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+
+    private static void writeHeaders(OutputStream out, String status, String headers) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n" + headers + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return (c == -1 && line.length() == 0) ? null : line.toString();
+    }
+
+
+    private static String hash(String key) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return new BigInteger(1, md5.digest(key.getBytes("UTF-8"))).toString(16);
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
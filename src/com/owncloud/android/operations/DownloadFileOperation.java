@@ -29,7 +29,6 @@ import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
-import com.owncloud.android.lib.resources.files.DownloadRemoteFileOperation;
 import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.Log_OC;
 
@@ -52,7 +51,7 @@ public class DownloadFileOperation extends RemoteOperation {
     private long mModificationTimestamp = 0;
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     
-    private DownloadRemoteFileOperation mDownloadOperation;
+    private ResumableDownloadRemoteOperation mDownloadOperation;
 
     
     public DownloadFileOperation(Account account, OCFile file) {
@@ -126,19 +125,19 @@ public class DownloadFileOperation extends RemoteOperation {
         File newFile = null;
         boolean moved = true;
         
-        /// download will be performed to a temporal file, then moved to the final location
+        /// download will be performed to a temporal file, then moved to the final location;
+        /// the temporal file is kept if the download fails, so that it can be resumed later, 
+        /// but not if it's cancelled
         File tmpFile = new File(getTmpPath());
         
-        String tmpFolder =  getTmpFolder();
-        
         /// perform the download
         synchronized(mCancellationRequested) {
             if (mCancellationRequested.get()) {
+                ResumableDownloadRemoteOperation.discardPartialDownload(getTmpPath());
                 return new RemoteOperationResult(new OperationCancelledException());
             }
+            mDownloadOperation = new ResumableDownloadRemoteOperation(mFile.getRemotePath(), getTmpPath());
         }
-        
-        mDownloadOperation = new DownloadRemoteFileOperation(mFile.getRemotePath(), tmpFolder);
         Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
         while (listener.hasNext()) {
             mDownloadOperation.addDatatransferProgressListener(listener.next());
@@ -161,9 +160,11 @@ public class DownloadFileOperation extends RemoteOperation {
     }
 
     public void cancel() {
-        mCancellationRequested.set(true);   // atomic set; there is no need of synchronizing it
-        if (mDownloadOperation != null) {
-            mDownloadOperation.cancel();
+        synchronized(mCancellationRequested) {
+            mCancellationRequested.set(true);
+            if (mDownloadOperation != null) {
+                mDownloadOperation.cancel();
+            }
         }
     }
 
@@ -0,0 +1,533 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
+import com.owncloud.android.utils.Log_OC;
+
+/**
+ * Remote operation uploading a file in chunks, several of them at the same time.
+ *
+ * Follows the chunking protocol of ownCloud servers since 4.5: every chunk is sent in a PUT request to
+ * '<remote path>-chunking-<transfer id>-<number of chunks>-<chunk index>' with the header 'OC-Chunked', and
+ * the server assembles the file when it has received all the chunks. All the missing chunks but one are sent
+ * in parallel; the remaining one is sent alone when all the others succeeded, so that only one request can
+ * complete the file.
+ *
+ * Chunks are read with a {@link FileChannel} into a fixed set of buffers, reused for all the chunks. A failed
+ * chunk is retried on its own a few times before giving up. The chunks accepted by the server are saved in a
+ * state file, so that a later upload of the same file to the same remote path sends only the missing ones.
+ */
+public class ParallelChunkedUploadRemoteOperation extends RemoteOperation {
+
+    private static final String TAG = ParallelChunkedUploadRemoteOperation.class.getSimpleName();
+
+    /** Size of every chunk but the last one */
+    public static final long CHUNK_SIZE = ChunkedUploadRemoteFileOperation.CHUNK_SIZE;
+
+    /** Default number of chunks sent at the same time */
+    public static final int DEFAULT_PARALLEL_CHUNKS = 3;
+
+    private static final String OC_CHUNKED_HEADER = "OC-Chunked";
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    private static final int WRITE_SLICE_SIZE = 4096;
+
+    /** Chunks sent by a previous upload are not reused after this time; servers discard them after one day */
+    private static final long MAX_RESUMABLE_AGE = 6 * 60 * 60 * 1000;
+
+    private String mStoragePath;
+    private String mRemotePath;
+    private String mMimeType;
+    private String mStatePath;
+    private int mParallelChunks;
+
+    private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private final AtomicBoolean mAborted = new AtomicBoolean(false);
+    private final Set<PutMethod> mActivePuts = new HashSet<PutMethod>();
+    private final AtomicLong mTransferred = new AtomicLong(0);
+    private long mTotalToTransfer;
+    private long mFileModified;
+    private String mFileName;
+
+    private long mTransferId;
+    private long mTransferStarted;
+    private BitSet mDoneChunks;
+    private int mResumedChunks = 0;
+
+
+    /**
+     * Constructor
+     *
+     * @param storagePath       Local path of the file to upload.
+     * @param remotePath        Remote path to upload the file to.
+     * @param mimeType          MIME type of the file.
+     * @param statePath         Local path of the file keeping the chunks already accepted by the server.
+     * @param parallelChunks    Maximum number of chunks sent at the same time.
+     */
+    public ParallelChunkedUploadRemoteOperation(String storagePath, String remotePath, String mimeType,
+            String statePath, int parallelChunks) {
+        mStoragePath = storagePath;
+        mRemotePath = remotePath;
+        mMimeType = mimeType;
+        mStatePath = statePath;
+        mParallelChunks = Math.max(1, parallelChunks);
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        File file = new File(mStoragePath);
+        File stateFile = new File(mStatePath);
+        mFileName = file.getName();
+        mTotalToTransfer = file.length();
+        mFileModified = file.lastModified();
+        int chunkCount = (int) Math.max(1, (mTotalToTransfer + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        loadState(stateFile, chunkCount);
+
+        RandomAccessFile raf = null;
+        ExecutorService executor = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<ByteBuffer>(mParallelChunks);
+            for (int i = 0; i < mParallelChunks; i++) {
+                buffers.add(ByteBuffer.allocate((int) CHUNK_SIZE));
+            }
+
+            /// all the missing chunks but the last one, in parallel
+            int lastChunk = chunkCount - 1;
+            while (mDoneChunks.get(lastChunk)) {
+                lastChunk--;
+            }
+            executor = Executors.newFixedThreadPool(mParallelChunks);
+            List<Future<RemoteOperationResult>> chunkResults = new ArrayList<Future<RemoteOperationResult>>();
+            for (int i = mDoneChunks.nextClearBit(0); i < lastChunk; i = mDoneChunks.nextClearBit(i + 1)) {
+                chunkResults.add(executor.submit(new ChunkTask(client, channel, buffers, i, chunkCount)));
+            }
+            Iterator<Future<RemoteOperationResult>> it = chunkResults.iterator();
+            while (it.hasNext() && result == null) {
+                RemoteOperationResult chunkResult = it.next().get();
+                if (!chunkResult.isSuccess()) {
+                    result = chunkResult;
+                    abortChunks();
+                }
+            }
+
+            /// the last one alone; the server assembles the file when it is received
+            if (result == null) {
+                result = uploadChunk(client, channel, buffers, lastChunk, chunkCount);
+                if (result.isSuccess()) {
+                    stateFile.delete();
+                }
+            }
+
+        } catch (Exception e) {
+            abortChunks();
+            result = new RemoteOperationResult(e);
+
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log_OC.w(TAG, "Could not close " + mStoragePath + ": " + e.getMessage());
+                }
+            }
+        }
+
+        if (mCancellationRequested.get() && !result.isSuccess()) {
+            result = new RemoteOperationResult(new OperationCancelledException());
+        }
+        Log_OC.i(TAG, "Upload of " + mStoragePath + " to " + mRemotePath + " in " + chunkCount + " chunks" +
+                (mResumedChunks > 0 ? ", " + mResumedChunks + " of them resumed" : "") + ": " + result.getLogMessage());
+        return result;
+    }
+
+
+    /**
+     * Sends a chunk, retrying it while it fails for reasons that could be temporal.
+     *
+     * @param client        Client to access the server.
+     * @param channel       Channel to read the file to upload.
+     * @param buffers       Free buffers to read the chunk into.
+     * @param index         Index of the chunk in the file.
+     * @param chunkCount    Number of chunks of the file.
+     * @return              Result of the last try.
+     */
+    private RemoteOperationResult uploadChunk(OwnCloudClient client, FileChannel channel,
+            BlockingQueue<ByteBuffer> buffers, int index, int chunkCount)
+                    throws InterruptedException, OperationCancelledException {
+        RemoteOperationResult result = null;
+        for (int attempt = 1; attempt <= MAX_CHUNK_ATTEMPTS; attempt++) {
+            if (isStopped()) {
+                throw new OperationCancelledException();
+            }
+            ByteBuffer buffer = buffers.take();
+            try {
+                readChunk(channel, buffer, index);
+                result = putChunk(client, buffer, index, chunkCount);
+
+            } catch (IOException e) {
+                if (isStopped()) {
+                    throw new OperationCancelledException();
+                }
+                result = new RemoteOperationResult(e);
+
+            } finally {
+                buffers.put(buffer);
+            }
+
+            if (result.isSuccess()) {
+                saveChunkDone(index);
+                return result;
+            }
+            if (!isRetriable(result)) {
+                break;
+            }
+            Log_OC.w(TAG, "Chunk " + index + " of " + mRemotePath + " failed in attempt " + attempt + ": " +
+                    result.getLogMessage());
+        }
+        return result;
+    }
+
+
+    private void readChunk(FileChannel channel, ByteBuffer buffer, int index) throws IOException {
+        long position = index * CHUNK_SIZE;
+        buffer.clear();
+        buffer.limit((int) Math.min(CHUNK_SIZE, mTotalToTransfer - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file in " + mStoragePath);
+            }
+        }
+        buffer.flip();
+    }
+
+
+    private RemoteOperationResult putChunk(OwnCloudClient client, ByteBuffer buffer, int index, int chunkCount)
+            throws IOException {
+        PutMethod put = new PutMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath + "-chunking-" +
+                mTransferId + "-" + chunkCount + "-" + index));
+        ChunkRequestEntity entity = new ChunkRequestEntity(buffer);
+        synchronized (mActivePuts) {
+            if (isStopped()) {
+                throw new IOException("Upload of " + mRemotePath + " stopped");
+            }
+            mActivePuts.add(put);
+        }
+        try {
+            put.addRequestHeader(OC_CHUNKED_HEADER, "1");
+            put.setRequestEntity(entity);
+            int status = client.executeMethod(put);
+            client.exhaustResponse(put.getResponseBodyAsStream());
+            boolean success = (status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED ||
+                    status == HttpStatus.SC_NO_CONTENT);
+            if (!success) {
+                entity.discardProgress();
+            }
+            return new RemoteOperationResult(success, status, put.getResponseHeaders());
+
+        } catch (IOException e) {
+            entity.discardProgress();
+            throw e;
+
+        } finally {
+            synchronized (mActivePuts) {
+                mActivePuts.remove(put);
+            }
+            put.releaseConnection();
+        }
+    }
+
+
+    private boolean isRetriable(RemoteOperationResult result) {
+        int status = result.getHttpCode();
+        return result.getException() != null ||
+                (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR && status != HttpStatus.SC_INSUFFICIENT_STORAGE);
+    }
+
+
+    private boolean isStopped() {
+        return mCancellationRequested.get() || mAborted.get();
+    }
+
+
+    /**
+     * Stops the chunks in progress and the ones waiting to be sent.
+     */
+    private void abortChunks() {
+        synchronized (mActivePuts) {
+            mAborted.set(true);
+            for (PutMethod put : mActivePuts) {
+                put.abort();
+            }
+        }
+    }
+
+
+    /**
+     * Reads the chunks accepted by the server in a previous upload of the same file, if still valid;
+     * else, starts a new transfer.
+     */
+    private void loadState(File stateFile, int chunkCount) {
+        mDoneChunks = new BitSet(chunkCount);
+        BufferedReader reader = null;
+        try {
+            if (stateFile.exists()) {
+                reader = new BufferedReader(new FileReader(stateFile));
+                long transferId = Long.parseLong(reader.readLine());
+                long length = Long.parseLong(reader.readLine());
+                long modified = Long.parseLong(reader.readLine());
+                long started = Long.parseLong(reader.readLine());
+                String doneChunks = reader.readLine();
+                if (length == mTotalToTransfer && modified == mFileModified &&
+                        System.currentTimeMillis() - started < MAX_RESUMABLE_AGE && doneChunks != null) {
+                    for (String chunk : doneChunks.split(",")) {
+                        if (chunk.length() > 0) {
+                            mDoneChunks.set(Integer.parseInt(chunk));
+                        }
+                    }
+                    if (mDoneChunks.cardinality() < chunkCount && mDoneChunks.length() <= chunkCount) {
+                        mTransferId = transferId;
+                        mTransferStarted = started;
+                        mResumedChunks = mDoneChunks.cardinality();
+                        mTransferred.set(mResumedChunks * CHUNK_SIZE -
+                                (mDoneChunks.get(chunkCount - 1) ? chunkCount * CHUNK_SIZE - mTotalToTransfer : 0));
+                        return;
+                    }
+                }
+            }
+
+        } catch (Exception e) {
+            Log_OC.w(TAG, "Could not read chunks sent previously for " + mRemotePath + ": " + e.getMessage());
+
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        mDoneChunks.clear();
+        mTransferId = Math.abs(new Random().nextInt());
+        mTransferStarted = System.currentTimeMillis();
+        stateFile.delete();
+    }
+
+
+    /**
+     * Saves that a chunk was accepted by the server.
+     */
+    private synchronized void saveChunkDone(int index) {
+        mDoneChunks.set(index);
+        File stateFile = new File(mStatePath);
+        FileWriter writer = null;
+        try {
+            stateFile.getParentFile().mkdirs();
+            writer = new FileWriter(stateFile);
+            writer.write(mTransferId + "\n" + mTotalToTransfer + "\n" + mFileModified + "\n" + mTransferStarted + "\n");
+            for (int i = mDoneChunks.nextSetBit(0); i >= 0; i = mDoneChunks.nextSetBit(i + 1)) {
+                writer.write(i + ",");
+            }
+            writer.write("\n");
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not save chunks sent for " + mRemotePath + ": " + e.getMessage());
+
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+
+    private void notifyProgress(long progressRate, long transferred) {
+        synchronized (mDataTransferListeners) {
+            Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+            while (it.hasNext()) {
+                it.next().onTransferProgress(progressRate, transferred, mTotalToTransfer, mFileName);
+            }
+        }
+    }
+
+
+    public void cancel() {
+        synchronized (mActivePuts) {
+            mCancellationRequested.set(true);
+            for (PutMethod put : mActivePuts) {
+                put.abort();
+            }
+        }
+    }
+
+
+    public void addDatatransferProgressListener (OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.remove(listener);
+        }
+    }
+
+
+    /**
+     * @return  Number of chunks accepted by the server in a previous upload, and not sent again.
+     */
+    public int getResumedChunks() {
+        return mResumedChunks;
+    }
+
+
+    /**
+     * Sends a single chunk; run by the workers of the operation.
+     */
+    private class ChunkTask implements Callable<RemoteOperationResult> {
+
+        private OwnCloudClient mClient;
+        private FileChannel mChannel;
+        private BlockingQueue<ByteBuffer> mBuffers;
+        private int mIndex;
+        private int mChunkCount;
+
+        ChunkTask(OwnCloudClient client, FileChannel channel, BlockingQueue<ByteBuffer> buffers, int index,
+                int chunkCount) {
+            mClient = client;
+            mChannel = channel;
+            mBuffers = buffers;
+            mIndex = index;
+            mChunkCount = chunkCount;
+        }
+
+        @Override
+        public RemoteOperationResult call() throws InterruptedException {
+            try {
+                return uploadChunk(mClient, mChannel, mBuffers, mIndex, mChunkCount);
+            } catch (OperationCancelledException e) {
+                return new RemoteOperationResult(e);
+            }
+        }
+    }
+
+
+    /**
+     * Request entity writing a chunk from its buffer, and reporting the progress of the upload.
+     */
+    private class ChunkRequestEntity implements RequestEntity {
+
+        private ByteBuffer mBuffer;
+        private int mWritten = 0;
+
+        ChunkRequestEntity(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mBuffer.limit();
+        }
+
+        @Override
+        public String getContentType() {
+            return mMimeType;
+        }
+
+        @Override
+        public void writeRequest(OutputStream out) throws IOException {
+            discardProgress();
+            byte[] data = mBuffer.array();
+            int length = mBuffer.limit();
+            while (mWritten < length) {
+                int slice = Math.min(WRITE_SLICE_SIZE, length - mWritten);
+                out.write(data, mWritten, slice);
+                mWritten += slice;
+                notifyProgress(slice, mTransferred.addAndGet(slice));
+            }
+        }
+
+        /**
+         * Takes back the bytes written by this entity from the progress of the upload, when the chunk failed.
+         */
+        void discardProgress() {
+            mTransferred.addAndGet(-mWritten);
+            mWritten = 0;
+        }
+    }
+
+}
@@ -0,0 +1,330 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.utils.Log_OC;
+
+/**
+ * Remote operation downloading a file to a temporal location, resuming a previous partial
+ * download when possible.
+ *
+ * Bytes downloaded are kept in the temporal file when the download fails, together with the 
+ * ETag of the remote file in a companion file. Next download of the same file to the same 
+ * temporal location requests only the missing bytes with a Range header, validated with 
+ * If-Range; if the remote file changed, the server sends the full file and the partial data 
+ * is discarded.
+ * 
+ * A download cancelled with {@link #cancel()} is not expected to be resumed; its partial data
+ * is deleted.
+ */
+public class ResumableDownloadRemoteOperation extends RemoteOperation {
+
+    private static final String TAG = ResumableDownloadRemoteOperation.class.getSimpleName();
+
+    /** Suffix of the companion file keeping the ETag of a partial download */
+    public static final String ETAG_FILE_SUFFIX = ".etag";
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private String mRemotePath;
+    private String mTmpPath;
+    private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private GetMethod mGet;
+
+    private long mModificationTimestamp = 0;
+    private String mEtag = null;
+    private long mResumedFrom = 0;
+
+
+    /**
+     * Constructor
+     *
+     * @param remotePath    Remote path of the file to download.
+     * @param tmpPath       Local path to download the file to; partial downloads found in it are resumed.
+     */
+    public ResumableDownloadRemoteOperation(String remotePath, String tmpPath) {
+        mRemotePath = remotePath;
+        mTmpPath = tmpPath;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        File tmpFile = new File(mTmpPath);
+        File etagFile = new File(mTmpPath + ETAG_FILE_SUFFIX);
+        tmpFile.getParentFile().mkdirs();
+
+        /// partial data can only be resumed if its ETag is known
+        String partialEtag = readEtag(etagFile);
+        long offset = 0;
+        if (tmpFile.exists() && partialEtag != null) {
+            offset = tmpFile.length();
+        } else {
+            tmpFile.delete();
+            etagFile.delete();
+        }
+
+        try {
+            result = download(client, tmpFile, etagFile, offset, partialEtag);
+            if (result.getHttpCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // partial data is not valid anymore; start again from zero
+                tmpFile.delete();
+                etagFile.delete();
+                result = download(client, tmpFile, etagFile, 0, null);
+            }
+            if (result.isSuccess()) {
+                etagFile.delete();
+            }
+
+        } catch (Exception e) {
+            result = new RemoteOperationResult(e);
+        }
+
+        if (mCancellationRequested.get()) {
+            discardPartialDownload(mTmpPath);
+        }
+
+        Log_OC.i(TAG, "Download of " + mRemotePath + " to " + mTmpPath +
+                (mResumedFrom > 0 ? " resumed from byte " + mResumedFrom : "") + ": " + result.getLogMessage());
+        return result;
+    }
+
+
+    /**
+     * Performs a single GET request, appending the received bytes to the partial data when the
+     * server accepts the requested range.
+     *
+     * @param client        Client to access the server.
+     * @param tmpFile       File to store the downloaded data.
+     * @param etagFile      File to store the ETag of the downloaded data.
+     * @param offset        Number of bytes already downloaded to 'tmpFile'.
+     * @param partialEtag   ETag of the bytes already downloaded to 'tmpFile'.
+     * @return              Result of the download.
+     */
+    private RemoteOperationResult download(OwnCloudClient client, File tmpFile, File etagFile, long offset, String partialEtag)
+            throws IOException, OperationCancelledException {
+
+        RemoteOperationResult result = null;
+        FileOutputStream fos = null;
+        BufferedInputStream bis = null;
+
+        synchronized (mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
+            }
+            mGet = new GetMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+        }
+        try {
+            if (offset > 0) {
+                mGet.addRequestHeader("Range", "bytes=" + offset + "-");
+                mGet.addRequestHeader("If-Range", partialEtag);
+            }
+            int status = client.executeMethod(mGet);
+
+            boolean append = false;
+            if (status == HttpStatus.SC_PARTIAL_CONTENT) {
+                append = true;
+                mResumedFrom = offset;
+
+            } else if (status == HttpStatus.SC_OK) {
+                offset = 0;     // full content; partial data, if any, is outdated
+
+            } else {
+                client.exhaustResponse(mGet.getResponseBodyAsStream());
+                return new RemoteOperationResult(false, status, mGet.getResponseHeaders());
+            }
+
+            Header etagHeader = mGet.getResponseHeader("ETag");
+            mEtag = (etagHeader != null) ? etagHeader.getValue() : null;
+            if (mEtag != null) {
+                writeEtag(etagFile, mEtag);
+            } else {
+                etagFile.delete();  // without ETag, next try can't be resumed safely
+            }
+            Header lastModified = mGet.getResponseHeader("Last-Modified");
+            if (lastModified != null) {
+                Date date = WebdavUtils.parseResponseDate(lastModified.getValue());
+                if (date != null) {
+                    mModificationTimestamp = date.getTime();
+                }
+            }
+
+            long contentLength = mGet.getResponseContentLength();
+            long totalToTransfer = (contentLength >= 0) ? offset + contentLength : -1;
+            long transferred = offset;
+
+            bis = new BufferedInputStream(mGet.getResponseBodyAsStream());
+            fos = new FileOutputStream(tmpFile, append);
+            byte[] bytes = new byte[BUFFER_SIZE];
+            int readResult = 0;
+            while ((readResult = bis.read(bytes)) != -1) {
+                synchronized (mCancellationRequested) {
+                    if (mCancellationRequested.get()) {
+                        mGet.abort();
+                        throw new OperationCancelledException();
+                    }
+                }
+                fos.write(bytes, 0, readResult);
+                transferred += readResult;
+                synchronized (mDataTransferListeners) {
+                    Iterator<OnDatatransferProgressListener> it = mDataTransferListeners.iterator();
+                    while (it.hasNext()) {
+                        it.next().onTransferProgress(readResult, transferred, totalToTransfer, tmpFile.getName());
+                    }
+                }
+            }
+
+            if (totalToTransfer < 0 || transferred == totalToTransfer) {
+                result = new RemoteOperationResult(true, status, mGet.getResponseHeaders());
+            } else {
+                // connection closed before the end; received data is kept for a later retry
+                result = new RemoteOperationResult(false, status, mGet.getResponseHeaders());
+            }
+
+        } finally {
+            if (fos != null) fos.close();
+            if (bis != null) bis.close();
+            mGet.releaseConnection();
+        }
+        return result;
+    }
+
+
+    /**
+     * Deletes the data of a partial download and the ETag kept to resume it.
+     *
+     * @param tmpPath       Local path where the file was being downloaded.
+     */
+    public static void discardPartialDownload(String tmpPath) {
+        new File(tmpPath).delete();
+        new File(tmpPath + ETAG_FILE_SUFFIX).delete();
+    }
+
+
+    private String readEtag(File etagFile) {
+        if (!etagFile.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(etagFile));
+            String etag = reader.readLine();
+            return (etag != null && etag.length() > 0) ? etag : null;
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not read ETag of partial download " + mTmpPath + ": " + e.getMessage());
+            return null;
+
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+
+    private void writeEtag(File etagFile, String etag) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(etagFile);
+            writer.write(etag);
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not save ETag of partial download " + mTmpPath + ": " + e.getMessage());
+            etagFile.delete();
+
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+
+    public void cancel() {
+        synchronized (mCancellationRequested) {
+            mCancellationRequested.set(true);
+            if (mGet != null) {
+                mGet.abort();
+            }
+        }
+    }
+
+
+    public void addDatatransferProgressListener (OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.remove(listener);
+        }
+    }
+
+
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    /**
+     * @return  Number of bytes reused from a previous partial download; 0 if the download was not resumed.
+     */
+    public long getResumedFrom() {
+        return mResumedFrom;
+    }
+
+}
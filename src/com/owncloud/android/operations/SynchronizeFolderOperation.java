@@ -18,11 +18,6 @@
 package com.owncloud.android.operations;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -314,6 +309,7 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         
         // loop to update every child
         OCFile remoteFile = null, localFile = null;
+        boolean subfoldersChanged = false;
         for (int i=1; i<folderAndFiles.size(); i++) {
             /// new OCFile instance with the data from the server
             remoteFile = fillOCFile((RemoteFile)folderAndFiles.get(i));
@@ -323,6 +319,10 @@ public class SynchronizeFolderOperation extends RemoteOperation {
             //localFile = mStorageManager.getFileByPath(remoteFile.getRemotePath());
             localFile = localFilesMap.remove(remoteFile.getRemotePath());
             
+            if (remoteFile.isFolder() && (localFile == null || !remoteFile.getEtag().equalsIgnoreCase(localFile.getEtag()))) {
+                subfoldersChanged = true;
+            }
+            
             /// add to the remoteFile (the new one) data about LOCAL STATE (not existing in the server side)
             remoteFile.setLastSyncDateForProperties(mCurrentSyncTime);
             if (localFile != null) {
@@ -334,7 +334,7 @@ public class SynchronizeFolderOperation extends RemoteOperation {
                 remoteFile.setStoragePath(localFile.getStoragePath());
                 remoteFile.setEtag(localFile.getEtag());    // eTag will not be updated unless contents are synchronized (Synchronize[File|Folder]Operation with remoteFile as parameter)
                 if (remoteFile.isFolder()) {
-                    remoteFile.setFileLength(localFile.getFileLength()); // TODO move operations about size of folders to FileContentProvider
+                    remoteFile.setFileLength(localFile.getFileLength()); // sizes of folders are computed by FileContentProvider
                 }
                 remoteFile.setPublicLink(localFile.getPublicLink());
                 remoteFile.setShareByLink(localFile.isShareByLink());
@@ -361,6 +361,12 @@ public class SynchronizeFolderOperation extends RemoteOperation {
             updatedFiles.add(remoteFile);
         }
 
+        if (subfoldersChanged && !mSyncFullAccount) {
+            // children folders are not synchronized now; a full synchronization must enter this folder later, 
+            // although its ETag in the server doesn't change again
+            remoteFolder.setEtag("");
+        }
+        
         // save updated contents in local database; all at once, trying to get a best performance in database update (not a big deal, indeed)
         mStorageManager.saveFolder(remoteFolder, updatedFiles, localFilesMap.values());
 
@@ -440,44 +446,14 @@ public class SynchronizeFolderOperation extends RemoteOperation {
                 file.setStoragePath(null);
                     
             } else {
-                InputStream in = null;
-                OutputStream out = null;
                 try {
-                    File expectedFile = new File(expectedPath);
-                    File expectedParent = expectedFile.getParentFile();
-                    expectedParent.mkdirs();
-                    if (!expectedParent.isDirectory()) {
-                        throw new IOException("Unexpected error: parent directory could not be created");
-                    }
-                    expectedFile.createNewFile();
-                    if (!expectedFile.isFile()) {
-                        throw new IOException("Unexpected error: target file could not be created");
-                    }                    
-                    in = new FileInputStream(originalFile);
-                    out = new FileOutputStream(expectedFile);
-                    byte[] buf = new byte[1024];
-                    int len;
-                    while ((len = in.read(buf)) > 0){
-                        out.write(buf, 0, len);
-                    }
+                    FileStorageUtils.copyFile(originalFile, new File(expectedPath));
                     file.setStoragePath(expectedPath);
                     
                 } catch (Exception e) {
                     Log_OC.e(TAG, "Exception while copying foreign file " + expectedPath, e);
                     mForgottenLocalFiles.put(file.getRemotePath(), storagePath);
                     file.setStoragePath(null);
-                    
-                } finally {
-                    try {
-                        if (in != null) in.close();
-                    } catch (Exception e) {
-                        Log_OC.d(TAG, "Weird exception while closing input stream for " + storagePath + " (ignoring)", e);
-                    }
-                    try {
-                        if (out != null) out.close();
-                    } catch (Exception e) {
-                        Log_OC.d(TAG, "Weird exception while closing output stream for " + expectedPath + " (ignoring)", e);
-                    }
                 }
             }
         }
@@ -18,11 +18,8 @@
 package com.owncloud.android.operations;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -31,6 +28,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
 
+import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.services.FileUploader;
 import com.owncloud.android.lib.common.network.ProgressiveDataTransferer;
@@ -40,8 +38,10 @@ import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
-import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
+import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
+import com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation;
+import com.owncloud.android.lib.resources.files.RemoteFile;
 import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
 import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.Log_OC;
@@ -59,11 +59,15 @@ public class UploadFileOperation extends RemoteOperation {
 
     private static final String TAG = UploadFileOperation.class.getSimpleName();
 
+    /** Suffix of the file keeping the chunks of an upload accepted by the server, in the temporal folder */
+    private static final String CHUNKS_STATE_SUFFIX = ".chunks";
+
     private Account mAccount;
     private OCFile mFile;
     private OCFile mOldFile;
     private String mRemotePath = null;
     private boolean mChunked = false;
+    private int mMaxParallelChunks = ParallelChunkedUploadRemoteOperation.DEFAULT_PARALLEL_CHUNKS;
     private boolean mIsInstant = false;
     private boolean mRemoteFolderToBeCreated = false;
     private boolean mForceOverwrite = false;
@@ -76,7 +80,7 @@ public class UploadFileOperation extends RemoteOperation {
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     private Context mContext;
     
-    private UploadRemoteFileOperation mUploadOperation;
+    private RemoteOperation mUploadOperation;
 
     protected RequestEntity mEntity = null;
 
@@ -159,6 +163,17 @@ public class UploadFileOperation extends RemoteOperation {
         return mForceOverwrite;
     }
 
+    public int getLocalBehaviour() {
+        return mLocalBehaviour;
+    }
+
+    /**
+     * @param maxParallelChunks     Maximum number of chunks sent at the same time in a chunked upload.
+     */
+    public void setMaxParallelChunks(int maxParallelChunks) {
+        mMaxParallelChunks = maxParallelChunks;
+    }
+
     public boolean wasRenamed() {
         return mWasRenamed;
     }
@@ -189,7 +204,7 @@ public class UploadFileOperation extends RemoteOperation {
     protected RemoteOperationResult run(OwnCloudClient client) {
         RemoteOperationResult result = null;
         boolean localCopyPassed = false, nameCheckPassed = false;
-        File temporalFile = null, originalFile = new File(mOriginalStoragePath), expectedFile = null;
+        File originalFile = new File(mOriginalStoragePath), expectedFile = null;
         try {
             // / rename the file to upload, if necessary
             if (!mForceOverwrite) {
@@ -208,101 +223,55 @@ public class UploadFileOperation extends RemoteOperation {
                                                                                                 // !!!
             expectedFile = new File(expectedPath);
 
-            // check location of local file; if not the expected, copy to a
-            // temporal file before upload (if COPY is the expected behaviour)
-            if (!mOriginalStoragePath.equals(expectedPath) && mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY) {
-
-                if (FileStorageUtils.getUsableSpace(mAccount.name) < originalFile.length()) {
-                    result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_FULL);
-                    return result; // error condition when the file should be
-                                   // copied
-
-                } else {
-                    String temporalPath = FileStorageUtils.getTemporalPath(mAccount.name) + mFile.getRemotePath();
-                    mFile.setStoragePath(temporalPath);
-                    temporalFile = new File(temporalPath);
-                    if (!mOriginalStoragePath.equals(temporalPath)) { // preventing
-                                                                      // weird
-                                                                      // but
-                                                                      // possible
-                                                                      // situation
-                        InputStream in = null;
-                        OutputStream out = null;
-                        try {
-                            File temporalParent = temporalFile.getParentFile();
-                            temporalParent.mkdirs();
-                            if (!temporalParent.isDirectory()) {
-                                throw new IOException("Unexpected error: parent directory could not be created");
-                            }
-                            temporalFile.createNewFile();
-                            if (!temporalFile.isFile()) {
-                                throw new IOException("Unexpected error: target file could not be created");
-                            }
-                            in = new FileInputStream(originalFile);
-                            out = new FileOutputStream(temporalFile);
-                            byte[] buf = new byte[1024];
-                            int len;
-                            while ((len = in.read(buf)) > 0) {
-                                out.write(buf, 0, len);
-                            }
-
-                        } catch (Exception e) {
-                            result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_COPIED);
-                            return result;
-
-                        } finally {
-                            try {
-                                if (in != null)
-                                    in.close();
-                            } catch (Exception e) {
-                                Log_OC.d(TAG, "Weird exception while closing input stream for " + mOriginalStoragePath + " (ignoring)", e);
-                            }
-                            try {
-                                if (out != null)
-                                    out.close();
-                            } catch (Exception e) {
-                                Log_OC.d(TAG, "Weird exception while closing output stream for " + expectedPath + " (ignoring)", e);
-                            }
-                        }
-                    }
-                }
+            // check location of local file; if not the expected, it will be copied there after the upload (if COPY
+            // is the expected behaviour); the upload reads the original file, so there is no temporal copy
+            if (!mOriginalStoragePath.equals(expectedPath) && mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY &&
+                    FileStorageUtils.getUsableSpace(mAccount.name) < originalFile.length()) {
+                result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_FULL);
+                return result; // error condition when the file should be
+                               // copied
             }
             localCopyPassed = true;
 
             /// perform the upload
-            if ( mChunked && (new File(mFile.getStoragePath())).length() > ChunkedUploadRemoteFileOperation.CHUNK_SIZE ) {
-                mUploadOperation = new ChunkedUploadRemoteFileOperation(mFile.getStoragePath(), mFile.getRemotePath(), 
-                        mFile.getMimetype());
-            } else {
-                mUploadOperation = new UploadRemoteFileOperation(mFile.getStoragePath(), mFile.getRemotePath(), 
-                        mFile.getMimetype());
-            }
             Iterator <OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
-            while (listener.hasNext()) {
-                mUploadOperation.addDatatransferProgressListener(listener.next());
+            if ( mChunked && (new File(mFile.getStoragePath())).length() > ParallelChunkedUploadRemoteOperation.CHUNK_SIZE ) {
+                ParallelChunkedUploadRemoteOperation chunkedUpload = new ParallelChunkedUploadRemoteOperation(
+                        mFile.getStoragePath(), mFile.getRemotePath(), mFile.getMimetype(), 
+                        FileStorageUtils.getTemporalPath(mAccount.name) + mFile.getRemotePath() + CHUNKS_STATE_SUFFIX,
+                        mMaxParallelChunks);
+                while (listener.hasNext()) {
+                    chunkedUpload.addDatatransferProgressListener(listener.next());
+                }
+                mUploadOperation = chunkedUpload;
+            } else {
+                UploadRemoteFileOperation upload = new UploadRemoteFileOperation(mFile.getStoragePath(), 
+                        mFile.getRemotePath(), mFile.getMimetype());
+                while (listener.hasNext()) {
+                    upload.addDatatransferProgressListener(listener.next());
+                }
+                mUploadOperation = upload;
             }
             result = mUploadOperation.execute(client);
 
-            /// move local temporal file or original file to its corresponding
-            // location in the ownCloud local folder
+            /// copy or move the original file to its corresponding location in the ownCloud local folder
             if (result.isSuccess()) {
                 if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_FORGET) {
                     mFile.setStoragePath(null);
 
                 } else {
                     mFile.setStoragePath(expectedPath);
-                    File fileToMove = null;
-                    if (temporalFile != null) { // FileUploader.LOCAL_BEHAVIOUR_COPY
-                                                // ; see where temporalFile was
-                                                // set
-                        fileToMove = temporalFile;
-                    } else { // FileUploader.LOCAL_BEHAVIOUR_MOVE
-                        fileToMove = originalFile;
-                    }
-                    if (!expectedFile.equals(fileToMove)) {
-                        File expectedFolder = expectedFile.getParentFile();
-                        expectedFolder.mkdirs();
-                        if (!expectedFolder.isDirectory() || !fileToMove.renameTo(expectedFile)) {
+                    if (!expectedFile.equals(originalFile)) {
+                        try {
+                            if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY) {
+                                FileStorageUtils.copyFile(originalFile, expectedFile);
+                            } else {
+                                FileStorageUtils.moveFile(originalFile, expectedFile);
+                            }
+
+                        } catch (IOException e) {
+                            Log_OC.e(TAG, "Uploaded file " + mOriginalStoragePath + " could not be placed in " + 
+                                    expectedPath, e);
                             mFile.setStoragePath(null); // forget the local file
                             // by now, treat this as a success; the file was
                             // uploaded; the user won't like that the local file
@@ -327,9 +296,6 @@ public class UploadFileOperation extends RemoteOperation {
             }
 
         } finally {
-            if (temporalFile != null && !originalFile.equals(temporalFile)) {
-                temporalFile.delete();
-            }
             if (result.isSuccess()) {
                 Log_OC.i(TAG, "Upload of " + mOriginalStoragePath + " to " + mRemotePath + ": " + result.getLogMessage());
             } else {
@@ -382,30 +348,91 @@ public class UploadFileOperation extends RemoteOperation {
             return remotePath;
         }
 
-        int pos = remotePath.lastIndexOf(".");
-        String suffix = "";
+        /// names in use are got at once from the parent folder, instead of probing candidates one by one 
+        String parentPath = new File(remotePath).getParent();
+        if (!parentPath.endsWith(OCFile.PATH_SEPARATOR)) {
+            parentPath += OCFile.PATH_SEPARATOR;
+        }
+        Set<String> usedNames = getNamesInFolder(wc, parentPath);
+        usedNames.add(new File(remotePath).getName());
+
+        String candidate;
+        do {
+            candidate = parentPath + getAvailableName(new File(remotePath).getName(), usedNames);
+            // the folder could change since it was listed
+            check = existsFile(wc, candidate);
+            if (check) {
+                usedNames.add(new File(candidate).getName());
+            }
+        } while (check);
+        return candidate;
+    }
+
+
+    /**
+     * Computes the first name in the sequence 'name (2).ext', 'name (3).ext', ... not included 
+     * in a set of names in use.
+     * 
+     * @param fileName      Name of the file to upload, with extension if any.
+     * @param usedNames     Names of the files in the target folder.
+     * @return              First name derived from 'fileName' not found in 'usedNames'.
+     */
+    public static String getAvailableName(String fileName, Set<String> usedNames) {
+        int pos = fileName.lastIndexOf(".");
+        String name = fileName;
         String extension = "";
         if (pos >= 0) {
-            extension = remotePath.substring(pos + 1);
-            remotePath = remotePath.substring(0, pos);
+            name = fileName.substring(0, pos);
+            extension = fileName.substring(pos);
         }
         int count = 2;
+        String candidate;
         do {
-            suffix = " (" + count + ")";
-            if (pos >= 0) {
-                check = existsFile(wc, remotePath + suffix + "." + extension);
-            }
-            else {
-                check = existsFile(wc, remotePath + suffix);
-            }
+            candidate = name + " (" + count + ")" + extension;
             count++;
-        } while (check);
+        } while (usedNames.contains(candidate));
+        return candidate;
+    }
 
-        if (pos >= 0) {
-            return remotePath + suffix + "." + extension;
+
+    /**
+     * Gets the names of the files in a remote folder.
+     * 
+     * The content known in the local database is used if the ETag of the folder in the server 
+     * matches the one saved locally, since the local ETag is not updated until the content is
+     * synchronized; else, the folder is listed with a single PROPFIND.
+     * 
+     * @param client        Client to access the server.
+     * @param folderPath    Remote path to the folder, ending in '/'.
+     * @return              Names of the files and folders in 'folderPath'; empty if they could not be got.
+     */
+    private Set<String> getNamesInFolder(OwnCloudClient client, String folderPath) {
+        Set<String> names = new HashSet<String>();
+        FileDataStorageManager storageManager = 
+                new FileDataStorageManager(mAccount, mContext.getContentResolver());
+        OCFile localFolder = storageManager.getFileByPath(folderPath);
+        if (localFolder != null && localFolder.getEtag() != null && localFolder.getEtag().length() > 0) {
+            RemoteOperationResult result = new ReadRemoteFileOperation(folderPath).execute(client);
+            if (result.isSuccess() && 
+                    localFolder.getEtag().equalsIgnoreCase(((RemoteFile) result.getData().get(0)).getEtag())) {
+                for (OCFile child : storageManager.getFolderContent(localFolder)) {
+                    names.add(child.getFileName());
+                }
+                Log_OC.d(TAG, "Names in " + folderPath + " got from local database");
+                return names;
+            }
+        }
+
+        RemoteOperationResult result = new ReadRemoteFolderOperation(folderPath).execute(client);
+        if (result.isSuccess()) {
+            ArrayList<Object> folderAndFiles = result.getData();
+            for (int i=1; i<folderAndFiles.size(); i++) {   // 0 is the folder itself
+                names.add(new File(((RemoteFile) folderAndFiles.get(i)).getRemotePath()).getName());
+            }
         } else {
-            return remotePath + suffix;
+            Log_OC.w(TAG, "Could not list " + folderPath + ": " + result.getLogMessage());
         }
+        return names;
     }
 
     private boolean existsFile(OwnCloudClient client, String remotePath){
@@ -415,7 +442,11 @@ public class UploadFileOperation extends RemoteOperation {
     }
     
     public void cancel() {
-        mUploadOperation.cancel();
+        if (mUploadOperation instanceof ParallelChunkedUploadRemoteOperation) {
+            ((ParallelChunkedUploadRemoteOperation) mUploadOperation).cancel();
+        } else if (mUploadOperation != null) {
+            ((UploadRemoteFileOperation) mUploadOperation).cancel();
+        }
     }
 
 }
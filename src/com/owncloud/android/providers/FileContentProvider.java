@@ -18,13 +18,18 @@
 
 package com.owncloud.android.providers;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 
 import com.owncloud.android.R;
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.db.ProviderMeta;
 import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
 import com.owncloud.android.lib.resources.shares.ShareType;
+import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.Log_OC;
 
 
@@ -38,11 +43,14 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
 /**
@@ -54,6 +62,9 @@ import android.text.TextUtils;
  */
 public class FileContentProvider extends ContentProvider {
 
+    /** Preference set while the local copies of files saved by old versions of the app are not bound yet */
+    private static final String PREF_LEGACY_LOCAL_FILES_PENDING = "legacy_local_files_pending";
+    
     private DataBaseHelper mDbHelper;
 
     // Projection for filelist table
@@ -102,6 +113,11 @@ public class FileContentProvider extends ContentProvider {
 
     private static final String TAG = FileContentProvider.class.getSimpleName();
     
+    private static final String FOLDER_CONTENT_TYPE = "DIR";
+    
+    /** Limit to the number of ancestors updated when a size changes, just in case of a corrupted tree */
+    private static final int MAX_FOLDER_DEPTH = 256;
+    
     // Projection for ocshares table
     private static HashMap<String, String> mOCSharesProjectionMap;
     static {
@@ -166,8 +182,7 @@ public class FileContentProvider extends ContentProvider {
             }
             Log_OC.d(TAG, "Removing FILE " + remotePath);
             */
-            count = db.delete(ProviderTableMeta.FILE_TABLE_NAME,
-                    ProviderTableMeta._ID
+            count = deleteFiles(db, ProviderTableMeta._ID
                             + "="
                             + uri.getPathSegments().get(1)
                             + (!TextUtils.isEmpty(where) ? " AND (" + where
@@ -180,50 +195,11 @@ public class FileContentProvider extends ContentProvider {
             break;
         case DIRECTORY:
             // deletion of folder is recursive
-            /*
-            Uri folderUri = ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, Long.parseLong(uri.getPathSegments().get(1)));
-            Cursor folder = query(db, folderUri, null, null, null, null);
-            String folderName = "(unknown)";
-            if (folder != null && folder.moveToFirst()) {
-                folderName = folder.getString(folder.getColumnIndex(ProviderTableMeta.FILE_PATH));
-            }
-            */
-            Cursor children = query(uri, null, null, null, null);
-            if (children != null && children.moveToFirst())  {
-                long childId;
-                boolean isDir; 
-                //String remotePath; 
-                while (!children.isAfterLast()) {
-                    childId = children.getLong(children.getColumnIndex(ProviderTableMeta._ID));
-                    isDir = "DIR".equals(children.getString(children.getColumnIndex(ProviderTableMeta.FILE_CONTENT_TYPE)));
-                    //remotePath = children.getString(children.getColumnIndex(ProviderTableMeta.FILE_PATH));
-                    if (isDir) {
-                        count += delete(db, ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_DIR, childId), null, null);
-                    } else {
-                        count += delete(db, ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, childId), null, null);
-                    }
-                    children.moveToNext();
-                }
-                children.close();
-            } /*else {
-                Log_OC.d(TAG, "No child to remove in DIRECTORY " + folderName);
-            }
-            Log_OC.d(TAG, "Removing DIRECTORY " + folderName + " (or maybe not) ");
-            */
-            count += db.delete(ProviderTableMeta.FILE_TABLE_NAME,
-                    ProviderTableMeta._ID
-                    + "="
-                    + uri.getPathSegments().get(1)
-                    + (!TextUtils.isEmpty(where) ? " AND (" + where
-                            + ")" : ""), whereArgs);
-            /* Just for log
-             if (folder != null) {
-                folder.close();
-            }*/
+            count = deleteFolder(db, uri.getPathSegments().get(1), where, whereArgs);
             break;
         case ROOT_DIRECTORY:
             //Log_OC.d(TAG, "Removing ROOT!");
-            count = db.delete(ProviderTableMeta.FILE_TABLE_NAME, where, whereArgs);
+            count = deleteFiles(db, where, whereArgs);
             break;
         case SHARES:
             count = db.delete(ProviderTableMeta.OCSHARES_TABLE_NAME, where, whereArgs);
@@ -236,6 +212,145 @@ public class FileContentProvider extends ContentProvider {
     }
     
 
+    /**
+     * Deletes a folder and all its descendants, with the shares bound to any of them.
+     * 
+     * Descendants are selected by the prefix of their remote paths, with a range over the index on 
+     * (account, path), so that the full subtree is removed by a single statement. 
+     * 
+     * @param db            Database to update; the caller is responsible for the transaction.
+     * @param folderId      Identifier of the folder to delete.
+     * @param where         Additional selection for the folder.
+     * @param whereArgs     Arguments for 'where'.
+     * @return              Number of files and folders deleted.
+     */
+    private int deleteFolder(SQLiteDatabase db, String folderId, String where, String[] whereArgs) {
+        int count = 0;
+        Cursor folder = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                new String[] { ProviderTableMeta.FILE_PATH, ProviderTableMeta.FILE_ACCOUNT_OWNER, 
+                        ProviderTableMeta.FILE_PARENT, ProviderTableMeta.FILE_CONTENT_LENGTH }, 
+                ProviderTableMeta._ID + "=" + folderId + (!TextUtils.isEmpty(where) ? " AND (" + where + ")" : ""), 
+                whereArgs, null, null, null);
+        try {
+            if (folder.moveToFirst()) {
+                String folderPath = folder.getString(0);
+                String accountName = folder.getString(1);
+                long parentId = folder.getLong(2);
+                long folderSize = folder.getLong(3);
+                if (!folderPath.endsWith(OCFile.PATH_SEPARATOR)) {
+                    folderPath += OCFile.PATH_SEPARATOR;
+                }
+                String pathUpperBound = getUpperBoundForPrefix(folderPath);
+                
+                count = db.delete(ProviderTableMeta.FILE_TABLE_NAME,
+                        ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                        ProviderTableMeta.FILE_PATH + ">=? AND " + 
+                        ProviderTableMeta.FILE_PATH + "<?", 
+                        new String[] { accountName, folderPath, pathUpperBound });
+                
+                // the folder itself, just in case its path was saved without trailing separator
+                count += db.delete(ProviderTableMeta.FILE_TABLE_NAME, ProviderTableMeta._ID + "=" + folderId, null);
+                
+                // shares of folders are saved without the trailing separator 
+                String folderSharePath = folderPath.substring(0, folderPath.length() - 1);
+                db.delete(ProviderTableMeta.OCSHARES_TABLE_NAME,
+                        ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + "=? AND (" + 
+                            ProviderTableMeta.OCSHARES_PATH + "=? OR (" + 
+                                ProviderTableMeta.OCSHARES_PATH + ">=? AND " +
+                                ProviderTableMeta.OCSHARES_PATH + "<?))",
+                        new String[] { accountName, folderSharePath, folderPath, pathUpperBound });
+                
+                propagateSizeChange(db, parentId, -folderSize);
+            }
+        } finally {
+            folder.close();
+        }
+        return count;
+    }
+    
+    
+    /**
+     * Deletes the files and folders selected, keeping up to date the sizes of the folders 
+     * containing them.
+     * 
+     * Descendants of deleted folders are not deleted. 
+     * 
+     * @param db            Database to update; the caller is responsible for the transaction.
+     * @param where         Selection of files to delete; NULL deletes all of them.
+     * @param whereArgs     Arguments for 'where'.
+     * @return              Number of files and folders deleted.
+     */
+    private int deleteFiles(SQLiteDatabase db, String where, String[] whereArgs) {
+        if (TextUtils.isEmpty(where)) {
+            return db.delete(ProviderTableMeta.FILE_TABLE_NAME, where, whereArgs);
+        }
+        // cursors are filled lazily; the selected rows must be read before they are deleted
+        long[] parentIds, sizes;
+        Cursor deleted = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                new String[] { ProviderTableMeta.FILE_PARENT, ProviderTableMeta.FILE_CONTENT_LENGTH }, 
+                where, whereArgs, null, null, null);
+        try {
+            parentIds = new long[deleted.getCount()];
+            sizes = new long[parentIds.length];
+            for (int i = 0; deleted.moveToNext(); i++) {
+                parentIds[i] = deleted.getLong(0);
+                sizes[i] = deleted.getLong(1);
+            }
+        } finally {
+            deleted.close();
+        }
+        
+        int count = db.delete(ProviderTableMeta.FILE_TABLE_NAME, where, whereArgs);
+        // if a deleted file is inside a deleted folder, propagation stops in the missing folder
+        for (int i = 0; i < parentIds.length; i++) {
+            propagateSizeChange(db, parentIds[i], -sizes[i]);
+        }
+        return count;
+    }
+    
+    
+    /**
+     * Applies a change in the size of a file or folder to the sizes of all the folders containing it.
+     * 
+     * @param db            Database to update; the caller is responsible for the transaction.
+     * @param parentId      Identifier of the folder containing the changed file or folder.
+     * @param sizeChange    Change in the size, in bytes.
+     */
+    private void propagateSizeChange(SQLiteDatabase db, long parentId, long sizeChange) {
+        if (sizeChange == 0) {
+            return;
+        }
+        String[] parentProjection = new String[] { ProviderTableMeta.FILE_PARENT };
+        long folderId = parentId;
+        for (int depth = 0; folderId > FileDataStorageManager.ROOT_PARENT_ID && depth < MAX_FOLDER_DEPTH; depth++) {
+            db.execSQL("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + 
+                    " SET " + ProviderTableMeta.FILE_CONTENT_LENGTH + " = IFNULL(" + ProviderTableMeta.FILE_CONTENT_LENGTH + ", 0) + ?" + 
+                    " WHERE " + ProviderTableMeta._ID + " = ?",
+                    new Object[] { sizeChange, folderId });
+            Cursor folder = db.query(ProviderTableMeta.FILE_TABLE_NAME, parentProjection, 
+                    ProviderTableMeta._ID + "=" + folderId, null, null, null, null);
+            try {
+                folderId = folder.moveToFirst() ? folder.getLong(0) : FileDataStorageManager.ROOT_PARENT_ID;
+            } finally {
+                folder.close();
+            }
+        }
+    }
+    
+    
+    /**
+     * Returns the lowest string greater than every string starting with the given prefix,
+     * in binary order.
+     * 
+     * @param prefix        Non empty prefix.
+     * @return              Prefix with its last character incremented.
+     */
+    private static String getUpperBoundForPrefix(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char)(prefix.charAt(last) + 1);
+    }
+    
+
     @Override
     public String getType(Uri uri) {
         switch (mUriMatcher.match(uri)) {
@@ -276,8 +391,17 @@ public class FileContentProvider extends ContentProvider {
             String[] whereArgs = new String[] {remotePath, accountName};
             Cursor doubleCheck = query(db, uri, projection, where, whereArgs, null);
             if (doubleCheck == null || !doubleCheck.moveToFirst()) {    // ugly patch; serious refactorization is needed to reduce work in FileDataStorageManager and bring it to FileContentProvider 
-                long rowId = db.insert(ProviderTableMeta.FILE_TABLE_NAME, null, values);
+                ContentValues fileValues = new ContentValues(values);
+                boolean isFolder = FOLDER_CONTENT_TYPE.equals(values.getAsString(ProviderTableMeta.FILE_CONTENT_TYPE));
+                if (isFolder) {
+                    fileValues.put(ProviderTableMeta.FILE_CONTENT_LENGTH, 0);   // sizes of folders are computed here from their contents
+                }
+                long rowId = db.insert(ProviderTableMeta.FILE_TABLE_NAME, null, fileValues);
                 if (rowId > 0) {
+                    if (!isFolder) {
+                        propagateSizeChange(db, getLong(values, ProviderTableMeta.FILE_PARENT), 
+                                getLong(values, ProviderTableMeta.FILE_CONTENT_LENGTH));
+                    }
                     Uri insertedFileUri = ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_FILE, rowId);
                     //Log_OC.d(TAG, "Inserted " + values.getAsString(ProviderTableMeta.FILE_PATH) + " at provider " + this);
                     return insertedFileUri;
@@ -443,66 +567,142 @@ public class FileContentProvider extends ContentProvider {
     private int update(SQLiteDatabase db, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         switch (mUriMatcher.match(uri)) {
             case DIRECTORY:
-                return  0; //updateFolderSize(db, selectionArgs[0]);
+                // sizes of folders are updated with every change in their contents; only paths can be updated
+                return moveFolder(db, uri.getPathSegments().get(1), values.getAsString(ProviderTableMeta.FILE_PATH), 
+                        selection, selectionArgs);
             case SHARES:
                 return db.update(ProviderTableMeta.OCSHARES_TABLE_NAME, values, selection, selectionArgs);
             default:
-                return db.update(ProviderTableMeta.FILE_TABLE_NAME, values, selection, selectionArgs);
+                return updateFiles(db, values, selection, selectionArgs);
         }
     }    
-
- /*   
-    private int updateFolderSize(SQLiteDatabase db, String folderId) {
-        int count = 0;
-        String [] whereArgs = new String[] { folderId };
-        
-        // read current size saved for the folder 
-        long folderSize = 0;
-        long folderParentId = -1;
-        Uri selectFolderUri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_FILE, folderId);
-        String[] folderProjection = new String[] { ProviderTableMeta.FILE_CONTENT_LENGTH,  ProviderTableMeta.FILE_PARENT};
-        String folderWhere = ProviderTableMeta._ID + "=?";
-        Cursor folderCursor = query(db, selectFolderUri, folderProjection, folderWhere, whereArgs, null);
-        if (folderCursor != null && folderCursor.moveToFirst()) {
-            folderSize = folderCursor.getLong(folderCursor.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH));;
-            folderParentId = folderCursor.getLong(folderCursor.getColumnIndex(ProviderTableMeta.FILE_PARENT));;
+    
+    
+    /**
+     * Updates the files and folders selected, keeping up to date the sizes of the folders 
+     * containing them.
+     * 
+     * Sizes received for folders are ignored; they are computed from their contents.
+     * 
+     * @param db                Database to update; the caller is responsible for the transaction.
+     * @param values            New values for the selected files.
+     * @param selection         Selection of files to update.
+     * @param selectionArgs     Arguments for 'selection'.
+     * @return                  Number of files and folders updated.
+     */
+    private int updateFiles(SQLiteDatabase db, ContentValues values, String selection, String[] selectionArgs) {
+        if (!values.containsKey(ProviderTableMeta.FILE_CONTENT_LENGTH) && !values.containsKey(ProviderTableMeta.FILE_PARENT)) {
+            // sizes are not affected
+            return db.update(ProviderTableMeta.FILE_TABLE_NAME, values, selection, selectionArgs);
         }
-        folderCursor.close();
         
-        // read and sum sizes of children
-        long childrenSize = 0;
-        Uri selectChildrenUri = Uri.withAppendedPath(ProviderTableMeta.CONTENT_URI_DIR, folderId);
-        String[] childrenProjection = new String[] { ProviderTableMeta.FILE_CONTENT_LENGTH,  ProviderTableMeta.FILE_PARENT};
-        String childrenWhere = ProviderTableMeta.FILE_PARENT + "=?";
-        Cursor childrenCursor = query(db, selectChildrenUri, childrenProjection, childrenWhere, whereArgs, null);
-        if (childrenCursor != null && childrenCursor.moveToFirst()) {
-            while (!childrenCursor.isAfterLast()) {
-                childrenSize += childrenCursor.getLong(childrenCursor.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH));
-                childrenCursor.moveToNext();
+        int count = 0;
+        Cursor c = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                new String[] { ProviderTableMeta._ID, ProviderTableMeta.FILE_PARENT, 
+                        ProviderTableMeta.FILE_CONTENT_LENGTH, ProviderTableMeta.FILE_CONTENT_TYPE }, 
+                selection, selectionArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                long oldParentId = c.getLong(1);
+                long oldSize = c.getLong(2);
+                boolean isFolder = FOLDER_CONTENT_TYPE.equals(c.getString(3));
+                
+                ContentValues fileValues = values;
+                long newSize = oldSize;
+                if (isFolder) {
+                    fileValues = new ContentValues(values);
+                    fileValues.remove(ProviderTableMeta.FILE_CONTENT_LENGTH);
+                } else if (values.containsKey(ProviderTableMeta.FILE_CONTENT_LENGTH)) {
+                    newSize = getLong(values, ProviderTableMeta.FILE_CONTENT_LENGTH);
+                }
+                long newParentId = values.containsKey(ProviderTableMeta.FILE_PARENT) ? 
+                        getLong(values, ProviderTableMeta.FILE_PARENT) : oldParentId;
+                
+                count += db.update(ProviderTableMeta.FILE_TABLE_NAME, fileValues, ProviderTableMeta._ID + "=" + id, null);
+                
+                if (newParentId != oldParentId) {
+                    propagateSizeChange(db, oldParentId, -oldSize);
+                    propagateSizeChange(db, newParentId, newSize);
+                } else {
+                    propagateSizeChange(db, oldParentId, newSize - oldSize);
+                }
             }
+        } finally {
+            c.close();
         }
-        childrenCursor.close();
-        
-        // update if needed
-        if (folderSize != childrenSize) {
-            Log_OC.d("FileContentProvider", "Updating " + folderSize + " to " + childrenSize);
-            ContentValues cv = new ContentValues();
-            cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, childrenSize);
-            count = db.update(ProviderTableMeta.FILE_TABLE_NAME, cv, folderWhere, whereArgs);
-            
-            // propagate update until root
-            if (folderParentId > FileDataStorageManager.ROOT_PARENT_ID) {
-                Log_OC.d("FileContentProvider", "Propagating update to " + folderParentId);
-                updateFolderSize(db, String.valueOf(folderParentId));
-            } else {
-                Log_OC.d("FileContentProvider", "NOT propagating to " + folderParentId);
+        return count;
+    }
+    
+    
+    /**
+     * Moves a folder and all its descendants to a new path, replacing the prefix of their remote 
+     * paths, and of their local paths when they are in the default location for the account.
+     * 
+     * Every path is rewritten by a single UPDATE statement, whatever the size of the folder.  
+     * 
+     * @param db            Database to update; the caller is responsible for the transaction.
+     * @param folderId      Identifier of the folder to move.
+     * @param newPath       New remote path for the folder.
+     * @param where         Additional selection for the folder.
+     * @param whereArgs     Arguments for 'where'.
+     * @return              Number of files and folders moved.
+     */
+    private int moveFolder(SQLiteDatabase db, String folderId, String newPath, String where, String[] whereArgs) {
+        if (TextUtils.isEmpty(newPath)) {
+            return 0;
+        }
+        int count = 0;
+        Cursor folder = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                new String[] { ProviderTableMeta.FILE_PATH, ProviderTableMeta.FILE_ACCOUNT_OWNER }, 
+                ProviderTableMeta._ID + "=" + folderId + (!TextUtils.isEmpty(where) ? " AND (" + where + ")" : ""), 
+                whereArgs, null, null, null);
+        try {
+            if (folder.moveToFirst()) {
+                String oldPath = folder.getString(0);
+                String accountName = folder.getString(1);
+                if (!oldPath.endsWith(OCFile.PATH_SEPARATOR)) {
+                    oldPath += OCFile.PATH_SEPARATOR;
+                }
+                if (!newPath.endsWith(OCFile.PATH_SEPARATOR)) {
+                    newPath += OCFile.PATH_SEPARATOR;
+                }
+                if (OCFile.ROOT_PATH.equals(oldPath) || oldPath.equals(newPath)) {
+                    return 0;
+                }
+                
+                // local paths first, while the descendants can still be selected by their old remote paths
+                String savePath = FileStorageUtils.getSavePath(accountName);
+                String oldStoragePath = savePath + oldPath;
+                db.execSQL("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + 
+                        " SET " + ProviderTableMeta.FILE_STORAGE_PATH + " = ? || substr(" + ProviderTableMeta.FILE_STORAGE_PATH + ", ?)" +
+                        " WHERE " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                        ProviderTableMeta.FILE_PATH + ">=? AND " + ProviderTableMeta.FILE_PATH + "<? AND " + 
+                        ProviderTableMeta.FILE_STORAGE_PATH + ">=? AND " + ProviderTableMeta.FILE_STORAGE_PATH + "<?", 
+                        new Object[] { savePath + newPath, oldStoragePath.length() + 1, accountName, 
+                                oldPath, getUpperBoundForPrefix(oldPath), 
+                                oldStoragePath, getUpperBoundForPrefix(oldStoragePath) });
+                
+                db.execSQL("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + 
+                        " SET " + ProviderTableMeta.FILE_PATH + " = ? || substr(" + ProviderTableMeta.FILE_PATH + ", ?)" +
+                        " WHERE " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                        ProviderTableMeta.FILE_PATH + ">=? AND " + ProviderTableMeta.FILE_PATH + "<?", 
+                        new Object[] { newPath, oldPath.length() + 1, accountName, 
+                                oldPath, getUpperBoundForPrefix(oldPath) });
+                count = (int) DatabaseUtils.longForQuery(db, "SELECT changes()", null);
             }
-        } else {
-            Log_OC.d("FileContentProvider", "NOT updating, sizes are " + folderSize + " and " + childrenSize);
+        } finally {
+            folder.close();
         }
         return count;
     }
-*/
+    
+    
+    private static long getLong(ContentValues values, String key) {
+        Long value = values.getAsLong(key);
+        return (value != null) ? value : 0;
+    }
+
     
     @Override
     public ContentProviderResult[] applyBatch (ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
@@ -528,9 +728,27 @@ public class FileContentProvider extends ContentProvider {
 
     class DataBaseHelper extends SQLiteOpenHelper {
 
+        private final Context mContext;
+        private boolean mBindingLegacyLocalFiles = false;
+        
         public DataBaseHelper(Context context) {
             super(context, ProviderMeta.DB_NAME, null, ProviderMeta.DB_VERSION);
-
+            mContext = context;
+        }
+        
+        @Override
+        public void onOpen(final SQLiteDatabase db) {
+            super.onOpen(db);
+            if (!mBindingLegacyLocalFiles && 
+                    PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(PREF_LEGACY_LOCAL_FILES_PENDING, false)) {
+                mBindingLegacyLocalFiles = true;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        bindLegacyLocalFiles(db);
+                    }
+                }, "Legacy local files binding").start();
+            }
         }
 
         @Override
@@ -574,6 +792,39 @@ public class FileContentProvider extends ContentProvider {
                     + ProviderTableMeta.OCSHARES_USER_ID + " INTEGER, "
                     + ProviderTableMeta.OCSHARES_ID_REMOTE_SHARED + " INTEGER," 
                     + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + " TEXT );" );
+            
+            createIndexes(db);
+        }
+        
+        /**
+         * Creates the indexes supporting the usual queries on files and shares: 
+         * by remote path, by parent folder, by local path and by keep-in-sync flag.
+         * 
+         * @param db        Database where the indexes will be created.
+         */
+        private void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_OWNER_PATH_INDEX + " ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "("
+                    + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", "
+                    + ProviderTableMeta.FILE_PATH + ");" );
+            
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_PARENT_INDEX + " ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "("
+                    + ProviderTableMeta.FILE_PARENT + ");" );
+            
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_STORAGE_PATH_INDEX + " ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "("
+                    + ProviderTableMeta.FILE_STORAGE_PATH + ", "
+                    + ProviderTableMeta.FILE_ACCOUNT_OWNER + ");" );
+            
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.FILE_KEEP_IN_SYNC_INDEX + " ON " 
+                    + ProviderTableMeta.FILE_TABLE_NAME + "("
+                    + ProviderTableMeta.FILE_KEEP_IN_SYNC + ");" );
+            
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ProviderTableMeta.OCSHARES_OWNER_PATH_INDEX + " ON " 
+                    + ProviderTableMeta.OCSHARES_TABLE_NAME + "("
+                    + ProviderTableMeta.OCSHARES_ACCOUNT_OWNER + ", "
+                    + ProviderTableMeta.OCSHARES_PATH + ");" );
         }
 
         @Override
@@ -682,6 +933,174 @@ public class FileContentProvider extends ContentProvider {
             }
             if (!upgraded)
                 Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
+            
+            if (oldVersion < 7 && newVersion >= 7) {
+                Log_OC.i("SQL", "Entering in the #6 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    // remove duplicated entries, if any, before creating the unique index; the oldest one is kept
+                    String keptIds = 
+                            " SELECT MIN(" + ProviderTableMeta._ID + ")" + 
+                            " FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+                            " GROUP BY " + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " + ProviderTableMeta.FILE_PATH;
+                    
+                    // children of removed folders are moved to the kept copy, at any depth, to not leave them orphan
+                    db.execSQL("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + 
+                            " SET " + ProviderTableMeta.FILE_PARENT + " = (" + 
+                                " SELECT MIN(kept." + ProviderTableMeta._ID + ")" + 
+                                " FROM " + ProviderTableMeta.FILE_TABLE_NAME + " kept, " + ProviderTableMeta.FILE_TABLE_NAME + " removed" + 
+                                " WHERE removed." + ProviderTableMeta._ID + " = " + 
+                                        ProviderTableMeta.FILE_TABLE_NAME + "." + ProviderTableMeta.FILE_PARENT + 
+                                " AND kept." + ProviderTableMeta.FILE_ACCOUNT_OWNER + " = removed." + ProviderTableMeta.FILE_ACCOUNT_OWNER + 
+                                " AND kept." + ProviderTableMeta.FILE_PATH + " = removed." + ProviderTableMeta.FILE_PATH + 
+                            ")" + 
+                            " WHERE " + ProviderTableMeta.FILE_PARENT + " IN (" + 
+                                " SELECT " + ProviderTableMeta._ID + " FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+                                " WHERE " + ProviderTableMeta._ID + " NOT IN (" + keptIds + ")" + 
+                            ")");
+                    
+                    db.execSQL("DELETE FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+                            " WHERE " + ProviderTableMeta._ID + " NOT IN (" + keptIds + ")");
+                    
+                    createIndexes(db);
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
+            
+            if (oldVersion < 8 && newVersion >= 8) {
+                Log_OC.i("SQL", "Entering in the #7 ADD in onUpgrade");
+                // checking the local file system for every file is too slow for the upgrade; see onOpen()
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                        .putBoolean(PREF_LEGACY_LOCAL_FILES_PENDING, true).commit();
+                upgraded = true;
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
+            
+            if (oldVersion < 9 && newVersion >= 9) {
+                Log_OC.i("SQL", "Entering in the #8 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    recomputeFolderSizes(db);
+                    
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + ", newVersion == " + newVersion);
+        }
+        
+        /**
+         * Computes from scratch the sizes of all the folders, as the sum of the sizes of all the 
+         * files below them.
+         * 
+         * Only folders are kept in memory; files are read once from a cursor.
+         * 
+         * @param db        Database to update.
+         */
+        private void recomputeFolderSizes(SQLiteDatabase db) {
+            String[] projection = new String[] { ProviderTableMeta._ID, ProviderTableMeta.FILE_PARENT, ProviderTableMeta.FILE_CONTENT_LENGTH };
+            
+            HashMap<Long, Long> folderParents = new HashMap<Long, Long>();
+            HashMap<Long, Long> folderSizes = new HashMap<Long, Long>();
+            Cursor folders = db.query(ProviderTableMeta.FILE_TABLE_NAME, projection, 
+                    ProviderTableMeta.FILE_CONTENT_TYPE + "=?", new String[] { FOLDER_CONTENT_TYPE }, null, null, null);
+            try {
+                while (folders.moveToNext()) {
+                    folderParents.put(folders.getLong(0), folders.getLong(1));
+                    folderSizes.put(folders.getLong(0), 0L);
+                }
+            } finally {
+                folders.close();
+            }
+            
+            Cursor files = db.query(ProviderTableMeta.FILE_TABLE_NAME, projection, 
+                    ProviderTableMeta.FILE_CONTENT_TYPE + " IS NULL OR " + ProviderTableMeta.FILE_CONTENT_TYPE + "!=?", 
+                    new String[] { FOLDER_CONTENT_TYPE }, null, null, null);
+            try {
+                while (files.moveToNext()) {
+                    long size = files.getLong(2);
+                    Long folderId = files.getLong(1);
+                    for (int depth = 0; size != 0 && folderId != null && folderSizes.containsKey(folderId) && depth < MAX_FOLDER_DEPTH; depth++) {
+                        folderSizes.put(folderId, folderSizes.get(folderId) + size);
+                        folderId = folderParents.get(folderId);
+                    }
+                }
+            } finally {
+                files.close();
+            }
+            
+            SQLiteStatement update = db.compileStatement("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME + 
+                    " SET " + ProviderTableMeta.FILE_CONTENT_LENGTH + " = ? WHERE " + ProviderTableMeta._ID + " = ?");
+            try {
+                for (Map.Entry<Long, Long> folderSize : folderSizes.entrySet()) {
+                    update.bindLong(1, folderSize.getValue());
+                    update.bindLong(2, folderSize.getKey());
+                    update.execute();
+                }
+            } finally {
+                update.close();
+            }
+        }
+        
+        /**
+         * Binds files without local path to the local copies found in their default location, if any.
+         * 
+         * Done once after the upgrade to database version 8 instead of every time a file is read from 
+         * the database; old versions of the app didn't save the local path of downloaded files.
+         * 
+         * Called from a background thread, out of the upgrade transaction; only the updates are done 
+         * in a transaction. Retried in the next start of the app if it doesn't finish.
+         * 
+         * @param db        Database to update.
+         */
+        private void bindLegacyLocalFiles(SQLiteDatabase db) {
+            ArrayList<Long> ids = new ArrayList<Long>();
+            ArrayList<File> localFiles = new ArrayList<File>();
+            Cursor c = db.query(ProviderTableMeta.FILE_TABLE_NAME, 
+                    new String[] { ProviderTableMeta._ID, ProviderTableMeta.FILE_PATH, ProviderTableMeta.FILE_ACCOUNT_OWNER }, 
+                    ProviderTableMeta.FILE_STORAGE_PATH + " IS NULL AND (" + 
+                            ProviderTableMeta.FILE_CONTENT_TYPE + " IS NULL OR " + 
+                            ProviderTableMeta.FILE_CONTENT_TYPE + " != ?)", 
+                    new String[] { FOLDER_CONTENT_TYPE }, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    File localFile = new File(FileStorageUtils.getSavePath(c.getString(2)) + c.getString(1));
+                    if (localFile.exists()) {
+                        ids.add(c.getLong(0));
+                        localFiles.add(localFile);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            
+            db.beginTransaction();
+            try {
+                ContentValues cv = new ContentValues();
+                for (int i = 0; i < ids.size(); i++) {
+                    cv.put(ProviderTableMeta.FILE_STORAGE_PATH, localFiles.get(i).getAbsolutePath());
+                    cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, localFiles.get(i).lastModified());
+                    // a synchronization could have bound the file meanwhile
+                    db.update(ProviderTableMeta.FILE_TABLE_NAME, cv, 
+                            ProviderTableMeta._ID + "=" + ids.get(i) + " AND " + ProviderTableMeta.FILE_STORAGE_PATH + " IS NULL", null);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                    .remove(PREF_LEGACY_LOCAL_FILES_PENDING).commit();
+            Log_OC.d("SQL", "Bound " + ids.size() + " local files saved by old versions of the app");
         }
     }
 
@@ -18,18 +18,33 @@
 package com.owncloud.android.services;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.owncloud.android.R;
 import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.lib.common.OwnCloudClientFactory;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.OnRemoteOperationListener;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
 import com.owncloud.android.lib.resources.shares.ShareType;
 import com.owncloud.android.lib.resources.users.GetRemoteUserNameOperation;
@@ -51,11 +66,9 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Pair;
 
 public class OperationsService extends Service {
@@ -97,12 +110,38 @@ public class OperationsService extends Service {
     public static final String ACTION_OPERATION_ADDED = OperationsService.class.getName() + ".OPERATION_ADDED";
     public static final String ACTION_OPERATION_FINISHED = OperationsService.class.getName() + ".OPERATION_FINISHED";
 
-    private ConcurrentLinkedQueue<Pair<Target, RemoteOperation>> mPendingOperations = 
-            new ConcurrentLinkedQueue<Pair<Target, RemoteOperation>>();
+    /** Maximum number of operations performed at the same time */
+    private static final int MAX_WORKERS = 3;
+    
+    /** 
+     * Actions performed in the background lane: they are started after the interactive operations
+     * that can be started, and never take the last free worker.
+     */
+    private static final Set<String> BACKGROUND_ACTIONS = new HashSet<String>(Arrays.asList(
+            ACTION_REMOVE, ACTION_SYNC_FILE, ACTION_GET_SERVER_INFO));
+    
+    /** Source of operation identifiers; shared by all the instances of the service in the process */
+    private static final AtomicLong sLastOperationId = new AtomicLong(0);
 
-    private ConcurrentMap<Integer, Pair<RemoteOperation, RemoteOperationResult>> 
+    /** Guards the queues of operations and the operations in progress */
+    private final Object mLock = new Object();
+    
+    /** Operations waiting for a worker in every lane, in order of arrival */
+    private final List<OperationRequest> mInteractiveQueue = new LinkedList<OperationRequest>();
+    private final List<OperationRequest> mBackgroundQueue = new LinkedList<OperationRequest>();
+    
+    /** Operations in progress, by identifier */
+    private final Map<Long, OperationRequest> mRunningOperations = new HashMap<Long, OperationRequest>();
+    
+    /** Identifiers of the operations created, while somebody keeps a reference to them */
+    private final Map<RemoteOperation, Long> mOperationIds = new WeakHashMap<RemoteOperation, Long>();
+    
+    private ConcurrentMap<Long, Pair<RemoteOperation, RemoteOperationResult>> 
         mUndispatchedFinishedOperations =
-            new ConcurrentHashMap<Integer, Pair<RemoteOperation, RemoteOperationResult>>();
+            new ConcurrentHashMap<Long, Pair<RemoteOperation, RemoteOperationResult>>();
+    
+    /** Times spent by the operations waiting in queue and in progress, by action */
+    private final Map<String, ActionStats> mStats = new TreeMap<String, ActionStats>();
     
     private static class Target {
         public Uri mServerUrl = null;
@@ -127,13 +166,79 @@ public class OperationsService extends Service {
         }
     }
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    
+    /**
+     * Operation queued or in progress, with the target to perform it against.
+     */
+    private static class OperationRequest {
+        final long mId;
+        final String mAction;
+        final Target mTarget;
+        final RemoteOperation mOperation;
+        final String mRemotePath;
+        final boolean mInteractive;
+        final long mQueuedAt = SystemClock.elapsedRealtime();
+        long mStartedAt;
+        
+        OperationRequest(long id, String action, Target target, RemoteOperation operation, String remotePath) {
+            mId = id;
+            mAction = action;
+            mTarget = target;
+            mOperation = operation;
+            mRemotePath = remotePath;
+            mInteractive = !BACKGROUND_ACTIONS.contains(action);
+        }
+        
+        /**
+         * Operations on the same account and on the same file, or on a folder and something inside it,
+         * must be performed in the order they were requested.
+         */
+        boolean mustFollow(OperationRequest other) {
+            if (mTarget.mAccount == null || other.mTarget.mAccount == null || 
+                    mRemotePath == null || other.mRemotePath == null ||
+                    !mTarget.mAccount.name.equals(other.mTarget.mAccount.name)) {
+                return false;
+            }
+            return isSameOrInside(mRemotePath, other.mRemotePath) || isSameOrInside(other.mRemotePath, mRemotePath);
+        }
+        
+        private static boolean isSameOrInside(String path, String folderPath) {
+            if (!folderPath.endsWith(OCFile.PATH_SEPARATOR)) {
+                folderPath += OCFile.PATH_SEPARATOR;
+            }
+            return path.startsWith(folderPath) || folderPath.equals(path + OCFile.PATH_SEPARATOR);
+        }
+    }
+    
+    
+    /**
+     * Accumulated times of the operations performed for an action.
+     */
+    private static class ActionStats {
+        int mPerformed = 0;
+        int mCancelled = 0;
+        long mTotalWait = 0;
+        long mMaxWait = 0;
+        long mTotalExecution = 0;
+        long mMaxExecution = 0;
+        
+        @Override
+        public String toString() {
+            return mPerformed + " performed, " + mCancelled + " cancelled" + 
+                    ((mPerformed > 0) ? 
+                            ", wait avg " + (mTotalWait / mPerformed) + " ms / max " + mMaxWait + " ms" +
+                            ", execution avg " + (mTotalExecution / mPerformed) + " ms / max " + mMaxExecution + " ms" 
+                            : "");
+        }
+    }
+    
+
+    private ExecutorService mWorkers;
     private OperationsServiceBinder mBinder;
-    private OwnCloudClient mOwnCloudClient = null;
-    private Target mLastTarget = null;
-    private FileDataStorageManager mStorageManager;
-    private RemoteOperation mCurrentOperation = null;
+    private int mLastStartId;
+    
+    /** Clients to access the server of every account, by account name; shared by all the workers */
+    private Map<String, OwnCloudClient> mClients = new HashMap<String, OwnCloudClient>();
     
     
     /**
@@ -142,10 +247,7 @@ public class OperationsService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        HandlerThread thread = new HandlerThread("Operations service thread", Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        mWorkers = Executors.newFixedThreadPool(MAX_WORKERS, new OperationThreadFactory());
         mBinder = new OperationsServiceBinder();
     }
 
@@ -162,9 +264,10 @@ public class OperationsService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         //Log_OC.wtf(TAG, "onStartCommand init" );
-        Message msg = mServiceHandler.obtainMessage();
-        msg.arg1 = startId;
-        mServiceHandler.sendMessage(msg);
+        synchronized (mLock) {
+            mLastStartId = startId;
+        }
+        stopIfIdle();
         //Log_OC.wtf(TAG, "onStartCommand end" );
         return START_NOT_STICKY;
     }
@@ -174,6 +277,8 @@ public class OperationsService extends Service {
         //Log_OC.wtf(TAG, "onDestroy init" );
         //Log_OC.wtf(TAG, "Clear mUndispatchedFinisiedOperations" );
         mUndispatchedFinishedOperations.clear();
+        mWorkers.shutdown();
+        Log_OC.d(TAG, "Operations performed: " + mBinder.getStats());
         //Log_OC.wtf(TAG, "onDestroy end" );
         super.onDestroy();
     }
@@ -214,12 +319,71 @@ public class OperationsService extends Service {
                 new ConcurrentHashMap<OnRemoteOperationListener, Handler>();
         
         /**
-         * Cancels an operation
+         * Cancels an operation waiting in queue; the listeners receive a result with code 
+         * {@link ResultCode#CANCELLED} right away.
+         * 
+         * Operations in progress are not cancelled: the requests sent to the server can't be undone,
+         * nor aborted from here. Their listeners receive the real result when they finish.
          *
-         * TODO
+         * @param operationId       Identifier of the operation, as returned by {@link #newOperation(Intent)}.
+         * @return                  'True' if the operation was waiting in queue.
          */
-        public void cancel() {
-            // TODO
+        public boolean cancel(long operationId) {
+            OperationRequest cancelled = null;
+            synchronized (mLock) {
+                cancelled = removeFromQueue(mInteractiveQueue, operationId);
+                if (cancelled == null) {
+                    cancelled = removeFromQueue(mBackgroundQueue, operationId);
+                }
+            }
+            if (cancelled == null) {
+                return false;
+            }
+            
+            Log_OC.d(TAG, "Cancelled " + cancelled.mAction + " operation " + operationId + " while queued");
+            recordCancellation(cancelled.mAction);
+            dispatchResultToOperationListeners(
+                    cancelled.mId, cancelled.mOperation, new RemoteOperationResult(ResultCode.CANCELLED));
+            // operations on the same files can go on now
+            scheduleOperations();
+            stopIfIdle();
+            return true;
+        }
+        
+        
+        private OperationRequest removeFromQueue(List<OperationRequest> queue, long operationId) {
+            Iterator<OperationRequest> it = queue.iterator();
+            while (it.hasNext()) {
+                OperationRequest request = it.next();
+                if (request.mId == operationId) {
+                    it.remove();
+                    return request;
+                }
+            }
+            return null;
+        }
+        
+        
+        /**
+         * @param operation     Operation received in a call to {@link OnRemoteOperationListener}.
+         * @return              Identifier returned by {@link #newOperation(Intent)} when 'operation' was created, 
+         *                      or Long.MAX_VALUE if unknown.
+         */
+        public long getOperationId(RemoteOperation operation) {
+            synchronized (mOperationIds) {
+                Long id = mOperationIds.get(operation);
+                return (id != null) ? id : Long.MAX_VALUE;
+            }
+        }
+        
+        
+        /**
+         * @return  Summary of the times spent by the operations of every action waiting in queue and in progress.
+         */
+        public String getStats() {
+            synchronized (mStats) {
+                return mStats.toString();
+            }
         }
         
         
@@ -260,7 +424,9 @@ public class OperationsService extends Service {
          * @return  'True' when an operation that enforces the user to wait for completion is in process.
          */
         public boolean isPerformingBlockingOperation() {
-            return (!mPendingOperations.isEmpty());
+            synchronized (mLock) {
+                return (!mInteractiveQueue.isEmpty() || !mBackgroundQueue.isEmpty() || !mRunningOperations.isEmpty());
+            }
         }
 
 
@@ -273,6 +439,7 @@ public class OperationsService extends Service {
         public long newOperation(Intent operationIntent) {
             RemoteOperation operation = null;
             Target target = null;
+            String action = null;
             try {
                 if (!operationIntent.hasExtra(EXTRA_ACCOUNT) && 
                         !operationIntent.hasExtra(EXTRA_SERVER_URL)) {
@@ -299,7 +466,7 @@ public class OperationsService extends Service {
                             cookie
                     );
                     
-                    String action = operationIntent.getAction();
+                    action = operationIntent.getAction();
                     if (action.equals(ACTION_CREATE_SHARE)) {  // Create Share
                         String remotePath = operationIntent.getStringExtra(EXTRA_REMOTE_PATH);
                         Intent sendIntent = operationIntent.getParcelableExtra(EXTRA_SEND_INTENT);
@@ -376,11 +543,23 @@ public class OperationsService extends Service {
             }
 
             if (operation != null) {
-                mPendingOperations.add(new Pair<Target , RemoteOperation>(target, operation));
+                long id = sLastOperationId.incrementAndGet();
+                OperationRequest request = new OperationRequest(id, action, target, operation, 
+                        operationIntent.getStringExtra(EXTRA_REMOTE_PATH));
+                synchronized (mOperationIds) {
+                    mOperationIds.put(operation, id);
+                }
+                synchronized (mLock) {
+                    if (request.mInteractive) {
+                        mInteractiveQueue.add(request);
+                    } else {
+                        mBackgroundQueue.add(request);
+                    }
+                }
                 startService(new Intent(OperationsService.this, OperationsService.class));
-                //Log_OC.wtf(TAG, "New operation added, opId: " + operation.hashCode());
-                // better id than hash? ; should be good enough by the time being
-                return operation.hashCode();
+                scheduleOperations();
+                //Log_OC.wtf(TAG, "New operation added, opId: " + id);
+                return id;
                 
             } else {
                 //Log_OC.wtf(TAG, "New operation failed, returned Long.MAX_VALUE");
@@ -388,7 +567,14 @@ public class OperationsService extends Service {
             }
         }
 
-        public boolean dispatchResultIfFinished(int operationId, OnRemoteOperationListener listener) {
+        /**
+         * Delivers to 'listener' the result of an operation finished while nobody was listening.
+         * 
+         * @param operationId   Identifier of the operation, as returned by {@link #newOperation(Intent)}.
+         * @param listener      Object to notify about the end of the operation.
+         * @return              'True' if the result was delivered, or the operation is still queued or in progress. 
+         */
+        public boolean dispatchResultIfFinished(long operationId, OnRemoteOperationListener listener) {
             Pair<RemoteOperation, RemoteOperationResult> undispatched = 
                     mUndispatchedFinishedOperations.remove(operationId);
             if (undispatched != null) {
@@ -396,120 +582,245 @@ public class OperationsService extends Service {
                 return true;
                 //Log_OC.wtf(TAG, "Sending callback later");
             } else {
-                if (!mPendingOperations.isEmpty()) {
-                    return true;
-                } else {
-                    return false;
+                synchronized (mLock) {
+                    return (mRunningOperations.containsKey(operationId) || 
+                            findIn(mInteractiveQueue, operationId) || findIn(mBackgroundQueue, operationId));
                 }
                 //Log_OC.wtf(TAG, "Not finished yet");
             }
         }
+        
+        
+        private boolean findIn(List<OperationRequest> queue, long operationId) {
+            for (OperationRequest request : queue) {
+                if (request.mId == operationId) {
+                    return true;
+                }
+            }
+            return false;
+        }
 
     }
     
     
-    /** 
-     * Operations worker. Performs the pending operations in the order they were requested. 
+    /**
+     * Starts the queued operations that can be started, while there are free workers.
      * 
-     * Created with the Looper of a new thread, started in {@link OperationsService#onCreate()}. 
+     * Interactive operations are started first; background operations leave always a worker free for
+     * them. An operation on the same files than an operation requested before, still queued or in
+     * progress, keeps on waiting.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a possible memory leak
-        OperationsService mService;
-        public ServiceHandler(Looper looper, OperationsService service) {
-            super(looper);
-            if (service == null) {
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
+    private void scheduleOperations() {
+        synchronized (mLock) {
+            startOperations(mInteractiveQueue, MAX_WORKERS);
+            startOperations(mBackgroundQueue, MAX_WORKERS - 1);
+        }
+    }
+    
+    
+    private void startOperations(List<OperationRequest> queue, int maxRunning) {
+        Iterator<OperationRequest> it = queue.iterator();
+        while (it.hasNext() && mRunningOperations.size() < maxRunning) {
+            final OperationRequest request = it.next();
+            if (!mustWait(request)) {
+                it.remove();
+                mRunningOperations.put(request.mId, request);
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        performOperation(request);
+                    }
+                });
             }
-            mService = service;
         }
-
-        @Override
-        public void handleMessage(Message msg) {
-            mService.nextOperation();
-            mService.stopSelf(msg.arg1);
+    }
+    
+    
+    private boolean mustWait(OperationRequest request) {
+        for (OperationRequest running : mRunningOperations.values()) {
+            if (request.mustFollow(running)) {
+                return true;
+            }
+        }
+        for (OperationRequest queued : mInteractiveQueue) {
+            if (queued.mId < request.mId && request.mustFollow(queued)) {
+                return true;
+            }
         }
+        for (OperationRequest queued : mBackgroundQueue) {
+            if (queued.mId < request.mId && request.mustFollow(queued)) {
+                return true;
+            }
+        }
+        return false;
     }
     
-
+    
     /**
-     * Performs the next operation in the queue
+     * Stops the service when there are no operations queued nor in progress.
      */
-    private void nextOperation() {
-        
-        //Log_OC.wtf(TAG, "nextOperation init" );
+    private void stopIfIdle() {
+        synchronized (mLock) {
+            if (mInteractiveQueue.isEmpty() && mBackgroundQueue.isEmpty() && mRunningOperations.isEmpty()) {
+                stopSelf(mLastStartId);
+            }
+        }
+    }
+    
+    
+    /**
+     * Performs an operation and notifies the result to the listeners.
+     * 
+     * Called from the workers; several operations can be in progress at the same time.
+     */
+    private void performOperation(OperationRequest request) {
+        request.mStartedAt = SystemClock.elapsedRealtime();
+        Process.setThreadPriority(request.mInteractive ? 
+                Process.THREAD_PRIORITY_DEFAULT : Process.THREAD_PRIORITY_BACKGROUND);
+        RemoteOperationResult result = executeOperation(request);
         
-        Pair<Target, RemoteOperation> next = null;
-        synchronized(mPendingOperations) {
-            next = mPendingOperations.peek();
+        synchronized (mLock) {
+            mRunningOperations.remove(request.mId);
         }
-
-        if (next != null) {
-            
-            mCurrentOperation = next.second;
-            RemoteOperationResult result = null;
-            try {
-                /// prepare client object to send the request to the ownCloud server
-                if (mLastTarget == null || !mLastTarget.equals(next.first)) {
-                    mLastTarget = next.first;
-                    if (mLastTarget.mAccount != null) {
-                        mOwnCloudClient = OwnCloudClientFactory.createOwnCloudClient(mLastTarget.mAccount, getApplicationContext());
-                        mStorageManager = new FileDataStorageManager(mLastTarget.mAccount, getContentResolver());
-                    } else {
-                        mOwnCloudClient = OwnCloudClientFactory.createOwnCloudClient(mLastTarget.mServerUrl, getApplicationContext(), 
-                                mLastTarget.mFollowRedirects);    // this is not good enough
-                        if (mLastTarget.mWebDavUrl != null) {
-                            mOwnCloudClient.setWebdavUri(Uri.parse(mLastTarget.mWebDavUrl));
-                        }
-                        if (mLastTarget.mUsername != null && mLastTarget.mPassword != null) {
-                            mOwnCloudClient.setBasicCredentials(mLastTarget.mUsername, mLastTarget.mPassword);
-                        } else if (mLastTarget.mAuthToken != null) {
-                            mOwnCloudClient.setBearerCredentials(mLastTarget.mAuthToken);
-                        } else if (mLastTarget.mCookie != null) {
-                            mOwnCloudClient.setSsoSessionCookie(mLastTarget.mCookie);
-                        }
-                        mStorageManager = null;
-                    }
-                }
-
-                /// perform the operation
-                if (mCurrentOperation instanceof SyncOperation) {
-                    result = ((SyncOperation)mCurrentOperation).execute(mOwnCloudClient, mStorageManager);
-                } else {
-                    result = mCurrentOperation.execute(mOwnCloudClient);
-                }
-                
-            } catch (AccountsException e) {
-                if (mLastTarget.mAccount == null) {
-                    Log_OC.e(TAG, "Error while trying to get authorization for a NULL account", e);
-                } else {
-                    Log_OC.e(TAG, "Error while trying to get authorization for " + mLastTarget.mAccount.name, e);
-                }
-                result = new RemoteOperationResult(e);
-                
-            } catch (IOException e) {
-                if (mLastTarget.mAccount == null) {
-                    Log_OC.e(TAG, "Error while trying to get authorization for a NULL account", e);
-                } else {
-                    Log_OC.e(TAG, "Error while trying to get authorization for " + mLastTarget.mAccount.name, e);
+        
+        long finishedAt = SystemClock.elapsedRealtime();
+        recordTimes(request.mAction, request.mStartedAt - request.mQueuedAt, finishedAt - request.mStartedAt);
+        Log_OC.d(TAG, request.mAction + " operation " + request.mId + " waited " + 
+                (request.mStartedAt - request.mQueuedAt) + " ms, performed in " + 
+                (finishedAt - request.mStartedAt) + " ms");
+        dispatchResultToOperationListeners(request.mId, request.mOperation, result);
+        
+        scheduleOperations();
+        stopIfIdle();
+    }
+    
+    
+    /**
+     * Performs an operation against its target.
+     */
+    private RemoteOperationResult executeOperation(OperationRequest request) {
+        Target target = request.mTarget;
+        RemoteOperation operation = request.mOperation;
+        RemoteOperationResult result = null;
+        try {
+            /// prepare client object to send the request to the ownCloud server
+            OwnCloudClient client;
+            FileDataStorageManager storageManager = null;
+            if (target.mAccount != null) {
+                client = getClient(target.mAccount);
+                storageManager = new FileDataStorageManager(target.mAccount, getContentResolver());
+            } else {
+                client = OwnCloudClientFactory.createOwnCloudClient(target.mServerUrl, getApplicationContext(), 
+                        target.mFollowRedirects);    // this is not good enough
+                if (target.mWebDavUrl != null) {
+                    client.setWebdavUri(Uri.parse(target.mWebDavUrl));
                 }
-                result = new RemoteOperationResult(e);
-            } catch (Exception e) {
-                if (mLastTarget.mAccount == null) {
-                    Log_OC.e(TAG, "Unexpected error for a NULL account", e);
-                } else {
-                    Log_OC.e(TAG, "Unexpected error for " + mLastTarget.mAccount.name, e);
+                if (target.mUsername != null && target.mPassword != null) {
+                    client.setBasicCredentials(target.mUsername, target.mPassword);
+                } else if (target.mAuthToken != null) {
+                    client.setBearerCredentials(target.mAuthToken);
+                } else if (target.mCookie != null) {
+                    client.setSsoSessionCookie(target.mCookie);
                 }
-                result = new RemoteOperationResult(e);
+            }
+
+            /// perform the operation
+            if (operation instanceof SyncOperation) {
+                result = ((SyncOperation)operation).execute(client, storageManager);
+            } else {
+                result = operation.execute(client);
+            }
             
-            } finally {
-                synchronized(mPendingOperations) {
-                    mPendingOperations.poll();
-                }
+        } catch (AccountsException e) {
+            if (target.mAccount == null) {
+                Log_OC.e(TAG, "Error while trying to get authorization for a NULL account", e);
+            } else {
+                Log_OC.e(TAG, "Error while trying to get authorization for " + target.mAccount.name, e);
             }
+            result = new RemoteOperationResult(e);
             
-            //sendBroadcastOperationFinished(mLastTarget, mCurrentOperation, result);
-            dispatchResultToOperationListeners(mLastTarget, mCurrentOperation, result);
+        } catch (IOException e) {
+            if (target.mAccount == null) {
+                Log_OC.e(TAG, "Error while trying to get authorization for a NULL account", e);
+            } else {
+                Log_OC.e(TAG, "Error while trying to get authorization for " + target.mAccount.name, e);
+            }
+            result = new RemoteOperationResult(e);
+        } catch (Exception e) {
+            if (target.mAccount == null) {
+                Log_OC.e(TAG, "Unexpected error for a NULL account", e);
+            } else {
+                Log_OC.e(TAG, "Unexpected error for " + target.mAccount.name, e);
+            }
+            result = new RemoteOperationResult(e);
+        }
+        return result;
+    }
+    
+    
+    /**
+     * Returns the client to access the server of an account, creating it if needed.
+     * 
+     * @param account       ownCloud account.
+     * @return              Client shared by all the operations on 'account'.
+     */
+    private OwnCloudClient getClient(Account account) throws AccountsException, IOException {
+        synchronized (mClients) {
+            OwnCloudClient client = mClients.get(account.name);
+            if (client == null) {
+                client = OwnCloudClientFactory.createOwnCloudClient(account, getApplicationContext());
+                mClients.put(account.name, client);
+            }
+            return client;
+        }
+    }
+    
+    
+    private void recordTimes(String action, long wait, long execution) {
+        synchronized (mStats) {
+            ActionStats stats = getActionStats(action);
+            stats.mPerformed++;
+            stats.mTotalWait += wait;
+            stats.mMaxWait = Math.max(stats.mMaxWait, wait);
+            stats.mTotalExecution += execution;
+            stats.mMaxExecution = Math.max(stats.mMaxExecution, execution);
+        }
+    }
+    
+    
+    private void recordCancellation(String action) {
+        synchronized (mStats) {
+            getActionStats(action).mCancelled++;
+        }
+    }
+    
+    
+    private ActionStats getActionStats(String action) {
+        ActionStats stats = mStats.get(action);
+        if (stats == null) {
+            stats = new ActionStats();
+            mStats.put(action, stats);
+        }
+        return stats;
+    }
+    
+    
+    /**
+     * Creates the workers, with background priority until they start an interactive operation.
+     */
+    private static class OperationThreadFactory implements ThreadFactory {
+        
+        private static final AtomicInteger sThreadCount = new AtomicInteger(0);
+        
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "Operations service thread " + sThreadCount.incrementAndGet());
         }
     }
 
@@ -563,12 +874,12 @@ public class OperationsService extends Service {
     /**
      * Notifies the currently subscribed listeners about the end of an operation.
      * 
-     * @param target            Account or URL pointing to an OC server.
+     * @param operationId       Identifier of the finished operation.
      * @param operation         Finished operation.
      * @param result            Result of the operation.
      */
     private void dispatchResultToOperationListeners(
-            Target target, final RemoteOperation operation, final RemoteOperationResult result) {
+            long operationId, final RemoteOperation operation, final RemoteOperationResult result) {
         int count = 0;
         Iterator<OnRemoteOperationListener> listeners = mBinder.mBoundListeners.keySet().iterator();
         while (listeners.hasNext()) {
@@ -588,7 +899,7 @@ public class OperationsService extends Service {
             //mOperationResults.put(operation.hashCode(), result);
             Pair<RemoteOperation, RemoteOperationResult> undispatched = 
                     new Pair<RemoteOperation, RemoteOperationResult>(operation, result);
-            mUndispatchedFinishedOperations.put(operation.hashCode(), undispatched);
+            mUndispatchedFinishedOperations.put(operationId, undispatched);
         }
         Log_OC.d(TAG, "Called " + count + " listeners");
     }
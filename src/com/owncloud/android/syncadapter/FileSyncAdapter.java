@@ -21,8 +21,17 @@ package com.owncloud.android.syncadapter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.jackrabbit.webdav.DavException;
 
@@ -66,6 +75,9 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     /** Maximum number of failed folder synchronizations that are supported before finishing the synchronization operation */
     private static final int MAX_FAILED_RESULTS = 3; 
     
+    /** Number of folders synchronized in parallel when no other value is requested in the extras of the synchronization */
+    private static final int DEFAULT_MAX_PARALLEL_FOLDER_SYNCS = 4;
+    
     
     public static final String EVENT_FULL_SYNC_START = FileSyncAdapter.class.getName() + ".EVENT_FULL_SYNC_START";
     public static final String EVENT_FULL_SYNC_END = FileSyncAdapter.class.getName() + ".EVENT_FULL_SYNC_END";
@@ -76,16 +88,27 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     public static final String EXTRA_FOLDER_PATH = FileSyncAdapter.class.getName() + ".EXTRA_FOLDER_PATH";
     public static final String EXTRA_RESULT = FileSyncAdapter.class.getName() + ".EXTRA_RESULT";
     
+    /** Key in the extras of a synchronization request for the maximum number of folders to synchronize in parallel */
+    public static final String EXTRA_MAX_PARALLEL_FOLDER_SYNCS = FileSyncAdapter.class.getName() + ".EXTRA_MAX_PARALLEL_FOLDER_SYNCS";
+    
     
     /** Time stamp for the current synchronization process, used to distinguish fresh data */
     private long mCurrentSyncTime;
     
-    /** Flag made 'true' when a request to cancel the synchronization is received */
-    private boolean mCancellation;
+    /** Flag made 'true' when a request to cancel the synchronization is received; set from a thread different to the synchronization one */
+    private volatile boolean mCancellation;
+    
+    /** Maximum number of folders synchronized in parallel */
+    private int mMaxParallelFolderSyncs;
     
     /** When 'true' the process was requested by the user through the user interface; when 'false', it was requested automatically by the system */
     private boolean mIsManualSync;
     
+    /* 
+     * Counters and results below are only accessed from the thread running onPerformSync(...); 
+     * folder synchronizations running in parallel hand their results back to that thread.
+     */
+    
     /** Counter for failed operations in the synchronization process */
     private int mFailedResultsCounter;
     
@@ -101,6 +124,9 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     /** Map of remote and local paths to files that where locally stored in a location out of the ownCloud folder and couldn't be copied automatically into it */
     private Map<String, String> mForgottenLocalFiles;
 
+    /** Ids of folders whose ETag, and the ETags of all their ancestors, were forgotten to force their synchronization in the future */
+    private Set<Long> mFoldersToRevisit;
+
     /** {@link SyncResult} instance to return to the system when the synchronization finish */
     private SyncResult mSyncResult;
 
@@ -138,11 +164,13 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
 
         mCancellation = false;
         mIsManualSync = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        mMaxParallelFolderSyncs = Math.max(1, extras.getInt(EXTRA_MAX_PARALLEL_FOLDER_SYNCS, DEFAULT_MAX_PARALLEL_FOLDER_SYNCS));
         mFailedResultsCounter = 0;
         mLastFailedResult = null;
         mConflictsFound = 0;
         mFailsInFavouritesFound = 0;
         mForgottenLocalFiles = new HashMap<String, String>();
+        mFoldersToRevisit = new HashSet<Long>();
         mSyncResult = syncResult;
         mSyncResult.fullSyncRequested = false;
         mSyncResult.delayUntil = 60*60*24; // avoid too many automatic synchronizations
@@ -172,7 +200,7 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             updateOCVersion();
             mCurrentSyncTime = System.currentTimeMillis();
             if (!mCancellation) {
-                synchronizeFolder(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
+                synchronizeAccountTree(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
                 
             } else {
                 Log_OC.d(TAG, "Leaving synchronization before synchronizing the root folder because cancelation request");
@@ -209,7 +237,7 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
      * locally saved. 
      * 
      * See {@link #onPerformSync(Account, Bundle, String, ContentProviderClient, SyncResult)}
-     * and {@link #synchronizeFolder(String, long)}.
+     * and {@link #synchronizeAccountTree(OCFile)}.
      */
     @Override
     public void onSyncCanceled() {
@@ -234,42 +262,88 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     
     
     /**
-     *  Synchronizes the list of files contained in a folder identified with its remote path.
+     *  Synchronizes the full tree of folders under the given one.
+     *  
+     *  Subtrees are not entered when the ETag of their root folder didn't change, since the server 
+     *  propagates changes in the ETags up to the root folder.
      *  
-     *  Fetches the list and properties of the files contained in the given folder, including their 
-     *  properties, and updates the local database with them.
+     *  Folders are synchronized in breadth first order by a pool of up to {@link #mMaxParallelFolderSyncs} 
+     *  worker threads, each one running a single {@link SynchronizeFolderOperation}. The results are 
+     *  processed in the calling thread, that decides which folders are synchronized next; so the state of 
+     *  the synchronization process is never modified concurrently.
      *  
-     *  Enters in the child folders to synchronize their contents also, following a recursive
-     *  depth first strategy. 
+     *  New folders are not started after a cancellation request or too many failures; the synchronizations 
+     *  already in progress are allowed to finish.
      * 
-     *  @param folder                   Folder to synchronize.
+     *  @param rootFolder       Folder where the synchronization starts.
      */
-    private void synchronizeFolder(OCFile folder) {
+    private void synchronizeAccountTree(OCFile rootFolder) {
+        ExecutorService executor = Executors.newFixedThreadPool(mMaxParallelFolderSyncs);
+        CompletionService<FolderSynchronization> completionService = 
+                new ExecutorCompletionService<FolderSynchronization>(executor);
+        LinkedList<OCFile> pendingFolders = new LinkedList<OCFile>();
+        pendingFolders.add(rootFolder);
+        int runningSyncs = 0;
         
-        if (mFailedResultsCounter > MAX_FAILED_RESULTS || isFinisher(mLastFailedResult))
-            return;
-        
-        /*
-        OCFile folder, 
-        long currentSyncTime, 
-        boolean updateFolderProperties,
-        boolean syncFullAccount,
-        DataStorageManager dataStorageManager, 
-        Account account, 
-        Context context ) {
+        try {
+            while (!pendingFolders.isEmpty() || runningSyncs > 0) {
+                while (!pendingFolders.isEmpty() && runningSyncs < mMaxParallelFolderSyncs && canGoOn()) {
+                    completionService.submit(new FolderSynchronization(pendingFolders.removeFirst()));
+                    runningSyncs++;
+                }
+                if (runningSyncs == 0) {
+                    break;
+                }
+                FolderSynchronization finished = completionService.take().get();
+                runningSyncs--;
+                processFolderSynchronization(finished, pendingFolders);
+            }
+            
+        } catch (InterruptedException e) {
+            Log_OC.e(TAG, "Synchronization of " + getAccount().name + " interrupted", e);
+            mCancellation = true;
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            
+        } catch (ExecutionException e) {
+            // not expected; FolderSynchronization#call() catches anything thrown by the operation 
+            Log_OC.e(TAG, "Unexpected error in synchronization of " + getAccount().name, e);
+            
+        } finally {
+            executor.shutdown();
         }
-        */
-        // folder synchronization
-        SynchronizeFolderOperation synchFolderOp = new SynchronizeFolderOperation(  folder, 
-                                                                                    mCurrentSyncTime, 
-                                                                                    true,
-                                                                                    mIsShareSupported,
-                                                                                    getStorageManager(), 
-                                                                                    getAccount(), 
-                                                                                    getContext()
-                                                                                  );
-        RemoteOperationResult result = synchFolderOp.execute(getClient());
         
+        if (!pendingFolders.isEmpty()) {
+            Log_OC.d(TAG, "Leaving synchronization before synchronizing " + pendingFolders.getFirst().getRemotePath() + 
+                    (mCancellation ? " due to cancelation request" : " due to failures"));
+            for (OCFile folder : pendingFolders) {
+                forgetEtagsUpToRoot(folder);
+            }
+        }
+    }
+    
+    
+    /**
+     * Checks if new folder synchronizations can be started.
+     * 
+     * @return      'False' if the synchronization was cancelled or failed too many times.
+     */
+    private boolean canGoOn() {
+        return (!mCancellation && mFailedResultsCounter <= MAX_FAILED_RESULTS && !isFinisher(mLastFailedResult));
+    }
+    
+    
+    /**
+     *  Processes the result of the synchronization of a single folder and adds its child 
+     *  folders to the list of folders pending to be synchronized.
+     *  
+     *  @param folderSync               Finished synchronization of a folder.
+     *  @param pendingFolders           List of folders waiting to be synchronized.
+     */
+    private void processFolderSynchronization(FolderSynchronization folderSync, List<OCFile> pendingFolders) {
+        OCFile folder = folderSync.mFolder;
+        SynchronizeFolderOperation synchFolderOp = folderSync.mOperation;
+        RemoteOperationResult result = folderSync.mResult;
         
         // synchronized folder -> notice to UI - ALWAYS, although !result.isSuccess
         sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED, folder.getRemotePath(), result);
@@ -280,14 +354,15 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             if (result.getCode() == ResultCode.SYNC_CONFLICT) {
                 mConflictsFound += synchFolderOp.getConflictsFound();
                 mFailsInFavouritesFound += synchFolderOp.getFailsInFavouritesFound();
+                forgetEtagsUpToRoot(folder);    // children folders are not synchronized in this case
             }
             if (synchFolderOp.getForgottenLocalFiles().size() > 0) {
                 mForgottenLocalFiles.putAll(synchFolderOp.getForgottenLocalFiles());
             }
             if (result.isSuccess()) {
-                // synchronize children folders 
+                // schedule synchronization of children folders 
                 List<OCFile> children = synchFolderOp.getChildren();
-                fetchChildren(folder, children, synchFolderOp.getRemoteFolderChanged());    // beware of the 'hidden' recursion here!
+                fetchChildren(folder, children, synchFolderOp.getRemoteFolderChanged(), pendingFolders);
             }
             
         } else {
@@ -306,6 +381,7 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             }
             mFailedResultsCounter++;
             mLastFailedResult = result;
+            forgetEtagsUpToRoot(folder);
         }
             
     }
@@ -329,29 +405,84 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     }
 
     /**
-     * Triggers the synchronization of any folder contained in the list of received files.
+     * Schedules the synchronization of any folder contained in the list of received files.
      * 
-     * @param files         Files to recursively synchronize.
+     * Nothing is scheduled if the ETag of the parent folder didn't change: nothing changed below it.
+     * 
+     * @param files             Files to recursively synchronize.
+     * @param pendingFolders    List of folders waiting to be synchronized.
      */
-    private void fetchChildren(OCFile parent, List<OCFile> files, boolean parentEtagChanged) {
-        int i;
-        OCFile newFile = null;
-        //String etag = null;
-        //boolean syncDown = false;
-        for (i=0; i < files.size() && !mCancellation; i++) {
-            newFile = files.get(i);
+    private void fetchChildren(OCFile parent, List<OCFile> files, boolean parentEtagChanged, List<OCFile> pendingFolders) {
+        if (!parentEtagChanged) {
+            Log_OC.d(TAG, "Skipping unchanged subtree " + parent.getRemotePath());
+            return;
+        }
+        for (OCFile newFile : files) {
             if (newFile.isFolder()) {
-                /*
-                etag = newFile.getEtag();
-                syncDown = (parentEtagChanged || etag == null || etag.length() == 0);
-                if(syncDown) { */
-                    synchronizeFolder(newFile);
-                    //sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_SIZE_SYNCED, parent.getRemotePath(), null);
-                //}
+                pendingFolders.add(newFile);
+            }
+        }
+    }
+    
+    
+    /**
+     * Forgets the ETag saved for a folder and all its ancestors, so that the next synchronization 
+     * enters it again although the ETags in the server didn't change.
+     * 
+     * Needed when the contents of a folder could not be synchronized after its parent's ETag 
+     * was updated; otherwise, the subtree would be skipped in every future synchronization.
+     * 
+     * @param folder        Folder whose contents were not completely synchronized.
+     */
+    private void forgetEtagsUpToRoot(OCFile folder) {
+        long id = folder.getFileId();
+        while (id > FileDataStorageManager.ROOT_PARENT_ID && mFoldersToRevisit.add(id)) {
+            OCFile current = getStorageManager().getFileById(id);
+            if (current == null) {
+                break;
+            }
+            current.setEtag("");
+            getStorageManager().saveFile(current);
+            id = current.getParentId();
+        }
+    }
+    
+    
+    /**
+     * Synchronization of a single folder, to run in a worker thread.
+     * 
+     * Results are kept in the instance to be processed by the thread coordinating the
+     * full synchronization. 
+     */
+    private class FolderSynchronization implements Callable<FolderSynchronization> {
+        
+        private OCFile mFolder;
+        private SynchronizeFolderOperation mOperation;
+        private RemoteOperationResult mResult;
+        
+        public FolderSynchronization(OCFile folder) {
+            mFolder = folder;
+            mOperation = new SynchronizeFolderOperation(folder, 
+                                                        mCurrentSyncTime, 
+                                                        true,
+                                                        mIsShareSupported,
+                                                        getStorageManager(), 
+                                                        getAccount(), 
+                                                        getContext()
+                                                        );
+        }
+        
+        @Override
+        public FolderSynchronization call() {
+            try {
+                mResult = mOperation.execute(getClient());     // the client shares a multi-threaded connection manager
+                
+            } catch (RuntimeException e) {
+                Log_OC.e(TAG, "Unexpected exception synchronizing " + mFolder.getRemotePath(), e);
+                mResult = new RemoteOperationResult(e);
             }
+            return this;
         }
-       
-        if (mCancellation && i <files.size()) Log_OC.d(TAG, "Leaving synchronization before synchronizing " + files.get(i).getRemotePath() + " due to cancelation request");
     }
 
     
@@ -305,7 +305,7 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
     private Fragment chooseInitialSecondFragment(OCFile file) {
         Fragment secondFragment = null;
         if (file != null && !file.isFolder()) {
-            if (file.isDown() && PreviewMediaFragment.canBePreviewed(file) 
+            if (PreviewMediaFragment.canBePreviewed(file) 
                     && file.getLastSyncDateForProperties() > 0  // temporal fix
                     ) {
                 int startPlaybackPosition = getIntent().getIntExtra(PreviewVideoActivity.EXTRA_START_POSITION, 0);
@@ -398,6 +398,18 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
         }
     }
 
+    /**
+     * Updates a single file in the list of files, instead of listing again all the current folder.
+     * 
+     * @param remotePath    Remote path of the file that changed.
+     */
+    protected void refreshFileInListOfFilesFragment(String remotePath) {
+        OCFileListFragment fileListFragment = getListOfFilesFragment();
+        if (fileListFragment != null) { 
+            fileListFragment.refreshFile(remotePath);
+        }
+    }
+
     protected void refreshSecondFragment(String downloadEvent, String downloadedRemotePath, boolean success) {
         FileFragment secondFragment = getSecondFragment();
         boolean waitedPreview = (mWaitingToPreview != null && mWaitingToPreview.getRemotePath().equals(downloadedRemotePath));
@@ -957,7 +969,11 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
                     (uploadedRemotePath.startsWith(currentDir.getRemotePath()));
             
             if (sameAccount && isDescendant) {
-                refreshListOfFilesFragment();
+                refreshFileInListOfFilesFragment(uploadedRemotePath);
+                String oldRemotePath = intent.getStringExtra(FileUploader.EXTRA_OLD_REMOTE_PATH);
+                if (oldRemotePath != null && !oldRemotePath.equals(uploadedRemotePath)) {
+                    refreshFileInListOfFilesFragment(oldRemotePath);
+                }
             }
             
             boolean uploadWasFine = intent.getBooleanExtra(FileUploader.EXTRA_UPLOAD_RESULT, false);
@@ -1016,7 +1032,7 @@ FileFragment.ContainerActivity, OnNavigationListener, OnSslUntrustedCertListener
             boolean isDescendant = isDescendant(downloadedRemotePath);
 
             if (sameAccount && isDescendant) {
-                refreshListOfFilesFragment();
+                refreshFileInListOfFilesFragment(downloadedRemotePath);
                 refreshSecondFragment(intent.getAction(), downloadedRemotePath, intent.getBooleanExtra(FileDownloader.EXTRA_DOWNLOAD_RESULT, false));
             }
 
@@ -18,7 +18,12 @@
 package com.owncloud.android.ui.adapter;
 
 import android.accounts.Account;
+import android.annotation.SuppressLint;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,16 +34,25 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.FileDataStorageManager.FolderContentCursor;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.files.services.FileUploader.FileUploaderBinder;
 import com.owncloud.android.ui.activity.ComponentsGetter;
 import com.owncloud.android.utils.DisplayUtils;
+import com.owncloud.android.utils.Log_OC;
 
 
 /**
@@ -49,14 +63,59 @@ import com.owncloud.android.utils.DisplayUtils;
  * 
  */
 public class FileListListAdapter extends BaseAdapter implements ListAdapter {
+    
+    private static final String TAG = FileListListAdapter.class.getSimpleName();
+    
+    /** 
+     * Folders with more files are listed from a cursor over the database, building {@link OCFile}s only 
+     * for the rows shown, instead of keeping an {@link OCFile} for every file in memory
+     */
+    private static final int MAX_FILES_IN_MEMORY = 1000;
+    
+    /** Delay to read again a directory adapted from a cursor, so that a burst of changes results in a single query */
+    private static final long CURSOR_RELOAD_DELAY_MS = 500;
+    
+    /** 
+     * Thumbnails are loaded in their own threads, so that they don't wait for, nor delay, the folder 
+     * loads and other tasks in the serial executor of {@link AsyncTask}
+     */
+    private static final Executor THUMBNAIL_EXECUTOR = Executors.newFixedThreadPool(2);
+    
     private Context mContext;
     private OCFile mFile = null;
     private Vector<OCFile> mFiles = null;
+    private FolderContentCursor mCursor = null;
 
     private FileDataStorageManager mStorageManager;
     private Account mAccount;
     private ComponentsGetter mTransferServiceGetter;
     
+    private FolderLoadTask mLoadTask = null;
+    private OnFolderLoadedListener mOnFolderLoadedListener = null;
+    
+    /** Files changed while a folder is loaded, to update when the load finishes */ 
+    private List<String> mPendingRefreshes = new ArrayList<String>();
+    
+    private Handler mHandler = new Handler();
+    private boolean mCursorReloadScheduled = false;
+    private Runnable mCursorReload = new Runnable() {
+        @Override
+        public void run() {
+            mCursorReloadScheduled = false;
+            if (mCursor != null && mFile != null) {
+                swapDirectory(mFile, null);
+            }
+        }
+    };
+    
+    
+    /**
+     * Interface to get notified when the content of a folder is completely loaded in the adapter.
+     */
+    public interface OnFolderLoadedListener {
+        public void onFolderLoaded(OCFile folder);
+    }
+    
     public FileListListAdapter(Context context, ComponentsGetter transferServiceGetter) {
         mContext = context;
         mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
@@ -75,11 +134,17 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
 
     @Override
     public int getCount() {
+        if (mCursor != null) {
+            return mCursor.getCount();
+        }
         return mFiles != null ? mFiles.size() : 0;
     }
 
     @Override
     public Object getItem(int position) {
+        if (mCursor != null) {
+            return mCursor.getFile(position);
+        }
         if (mFiles == null || mFiles.size() <= position)
             return null;
         return mFiles.get(position);
@@ -87,11 +152,32 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
 
     @Override
     public long getItemId(int position) {
+        if (mCursor != null) {
+            return Math.max(mCursor.getFileId(position), 0);
+        }
         if (mFiles == null || mFiles.size() <= position)
             return 0;
         return mFiles.get(position).getFileId();
     }
 
+    /**
+     * Items are read with the columns needed to show them in the list; this reads all the data of
+     * the file in a position, to operate on it.
+     * 
+     * @param position  Position of a file in the list.
+     * @return          Complete file in 'position', or null if not valid.
+     */
+    public OCFile getFileWithDetails(int position) {
+        OCFile file = (OCFile) getItem(position);
+        if (file != null && mStorageManager != null) {
+            OCFile detailed = mStorageManager.getFileById(file.getFileId());
+            if (detailed != null) {
+                return detailed;
+            }
+        }
+        return file;
+    }
+
     @Override
     public int getItemViewType(int position) {
         return 0;
@@ -106,14 +192,15 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
             view = inflator.inflate(R.layout.list_item, null);
         }
     
-        if (mFiles != null && mFiles.size() > position) {
-            OCFile file = mFiles.get(position);
+        OCFile file = (OCFile) getItem(position);
+        if (file != null) {
             TextView fileName = (TextView) view.findViewById(R.id.Filename);
             String name = file.getFileName();
 
             fileName.setText(name);
             ImageView fileIcon = (ImageView) view.findViewById(R.id.imageView1);
             fileIcon.setImageResource(DisplayUtils.getResourceId(file.getMimetype(), file.getFileName()));
+            bindThumbnail(fileIcon, file);
             ImageView localStateView = (ImageView) view.findViewById(R.id.imageView2);
             FileDownloaderBinder downloaderBinder = mTransferServiceGetter.getFileDownloaderBinder();
             FileUploaderBinder uploaderBinder = mTransferServiceGetter.getFileUploaderBinder();
@@ -162,8 +249,8 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
             } 
             else {
                 
-                fileSizeV.setVisibility(View.INVISIBLE);
-                //fileSizeV.setText(DisplayUtils.bytesToHumanReadable(file.getFileLength()));
+                fileSizeV.setVisibility(View.VISIBLE);
+                fileSizeV.setText(DisplayUtils.bytesToHumanReadable(file.getFileLength()));
                 lastModV.setVisibility(View.VISIBLE);
                 lastModV.setText(DisplayUtils.unixTimeToHumanReadable(file.getModificationTimestamp()));
                 checkBoxV.setVisibility(View.GONE);
@@ -181,6 +268,43 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
         return view;
     }
 
+    /**
+     * Shows the thumbnail of an image file in the icon of its row, if available. 
+     * 
+     * Thumbnails not in memory are read or generated in background; the icon of the type of file is 
+     * kept meanwhile.
+     */
+    private void bindThumbnail(ImageView fileIcon, OCFile file) {
+        ThumbnailLoadTask previousTask = (ThumbnailLoadTask) fileIcon.getTag();
+        if (previousTask != null) {
+            if (previousTask.mTargetFile.equals(file)) {
+                return;
+            }
+            previousTask.cancel(false);
+            fileIcon.setTag(null);
+        }
+        if (!file.isImage() || mAccount == null) {
+            return;
+        }
+        Bitmap thumbnail = ThumbnailsCacheManager.getInstance(mContext).getThumbnailFromMemory(mAccount, file);
+        if (thumbnail != null) {
+            fileIcon.setImageBitmap(thumbnail);
+        } else {
+            ThumbnailLoadTask task = new ThumbnailLoadTask(fileIcon, file);
+            fileIcon.setTag(task);
+            executeThumbnailTask(task);
+        }
+    }
+    
+    @SuppressLint("NewApi")
+    private void executeThumbnailTask(ThumbnailLoadTask task) {
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(THUMBNAIL_EXECUTOR);
+        } else {
+            task.execute();     // a pool of threads before API 11
+        }
+    }
+    
     @Override
     public int getViewTypeCount() {
         return 1;
@@ -193,26 +317,246 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
 
     @Override
     public boolean isEmpty() {
-        return (mFiles == null || mFiles.isEmpty());
+        return (getCount() == 0);
+    }
+
+    public void setOnFolderLoadedListener(OnFolderLoadedListener listener) {
+        mOnFolderLoadedListener = listener;
     }
 
     /**
      * Change the adapted directory for a new one
+     * 
+     * The content of the directory is read from the database in a background thread; the load of the
+     * directory adapted before, if still running, is cancelled. When the directory is the same already
+     * adapted, its current content is kept in the list until the new one is read, so that the position
+     * of the list is not lost.
+     * 
+     * Big directories are adapted from a cursor over the database.
+     * 
      * @param directory                 New file to adapt. Can be NULL, meaning "no content to adapt".
      * @param updatedStorageManager     Optional updated storage manager; used to replace mStorageManager if is different (and not NULL)
      */
     public void swapDirectory(OCFile directory, FileDataStorageManager updatedStorageManager) {
+        boolean reload = ((mFiles != null || mCursor != null) && mFile != null && mFile.equals(directory));
         mFile = directory;
         if (updatedStorageManager != null && updatedStorageManager != mStorageManager) {
             mStorageManager = updatedStorageManager;
             mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
         }
-        if (mStorageManager != null) {
-            mFiles = mStorageManager.getFolderContent(mFile);
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        mPendingRefreshes.clear();
+        if (mCursorReloadScheduled) {
+            mHandler.removeCallbacks(mCursorReload);
+            mCursorReloadScheduled = false;
+        }
+        if (mStorageManager != null && mFile != null) {
+            if (!reload) {
+                swapContent(new Vector<OCFile>(), null);
+            }
+            mLoadTask = new FolderLoadTask(mFile, mStorageManager);
+            mLoadTask.execute();
+        } else {
+            swapContent(null, null);
+        }
+    }
+
+    /**
+     * Replaces the adapted content, closing the cursor adapted before, if any.
+     */
+    private void swapContent(Vector<OCFile> files, FolderContentCursor cursor) {
+        if (mCursor != null && mCursor != cursor) {
+            mCursor.close();
+        }
+        mFiles = files;
+        mCursor = cursor;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * @return  'true' while the content of the adapted directory is being read.
+     */
+    public boolean isLoading() {
+        return mLoadTask != null;
+    }
+
+    /**
+     * Updates the entry of a single file in the adapted directory, instead of reloading all its content.
+     * 
+     * The file is read again from the local database and inserted, replaced or removed in its position
+     * in the sorted list of files. A change in a descendant of a child folder updates the entry of the
+     * child folder.
+     * 
+     * Directories adapted from a cursor are read again, once for all the changes received in 
+     * {@link #CURSOR_RELOAD_DELAY_MS}.
+     * 
+     * @param remotePath    Remote path of the file that changed.
+     */
+    public void refreshFile(String remotePath) {
+        if (mLoadTask != null) {
+            // the change could be missed by the query in progress; applied when finished 
+            mPendingRefreshes.add(remotePath);
+            return;
+        }
+        if (mCursor != null) {
+            if (mFile != null && remotePath != null && remotePath.startsWith(mFile.getRemotePath()) && 
+                    !mCursorReloadScheduled) {
+                mCursorReloadScheduled = true;
+                mHandler.postDelayed(mCursorReload, CURSOR_RELOAD_DELAY_MS);
+            }
+            return;
+        }
+        if (mFiles == null || mFile == null || mStorageManager == null || remotePath == null ||
+                !remotePath.startsWith(mFile.getRemotePath()) || remotePath.equals(mFile.getRemotePath())) {
+            return;     // nothing to update in the adapted directory
+        }
+
+        /// the changed file, or the child folder containing it
+        String childPath = remotePath;
+        int separatorPos = remotePath.indexOf(OCFile.PATH_SEPARATOR, mFile.getRemotePath().length());
+        if (separatorPos >= 0) {
+            childPath = remotePath.substring(0, separatorPos + 1);
+        }
+        OCFile updatedFile = mStorageManager.getFileByPath(childPath);
+
+        OCFile key = updatedFile;
+        if (key == null) {
+            // removed; only the path and type are needed to find it
+            key = new OCFile(childPath);
+            if (childPath.endsWith(OCFile.PATH_SEPARATOR)) {
+                key.setMimetype("DIR");
+            }
+        }
+        int position = Collections.binarySearch(mFiles, key);
+        if (position >= 0 && !mFiles.get(position).getRemotePath().equals(childPath)) {
+            // other file with the same name in different case; the sort order can't tell them apart
+            swapDirectory(mFile, null);
+            return;
+        }
+
+        if (position >= 0) {
+            if (updatedFile != null) {
+                mFiles.set(position, updatedFile);
+            } else {
+                mFiles.remove(position);
+            }
+        } else if (updatedFile != null) {
+            mFiles.add(-(position + 1), updatedFile);
         } else {
-            mFiles = null;
+            return;     // not known before, not known now
         }
         notifyDataSetChanged();
     }
+
+
+    /**
+     * Gets the thumbnail of a file in background, and shows it in the icon of its row if the row 
+     * was not reused for other file meanwhile.
+     */
+    private class ThumbnailLoadTask extends AsyncTask<Void, Void, Bitmap> {
+        
+        private final WeakReference<ImageView> mIconRef;
+        private final OCFile mTargetFile;
+        private final Account mTaskAccount;
+        
+        public ThumbnailLoadTask(ImageView fileIcon, OCFile file) {
+            mIconRef = new WeakReference<ImageView>(fileIcon);
+            mTargetFile = file;
+            mTaskAccount = mAccount;
+        }
+        
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            return ThumbnailsCacheManager.getInstance(mContext).getThumbnail(mTaskAccount, mTargetFile);
+        }
+        
+        @Override
+        protected void onPostExecute(Bitmap thumbnail) {
+            ImageView fileIcon = mIconRef.get();
+            if (fileIcon != null && fileIcon.getTag() == this) {
+                fileIcon.setTag(null);
+                if (thumbnail != null) {
+                    fileIcon.setImageBitmap(thumbnail);
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Reads the content of a folder from the database; big folders are kept in a cursor, the rest
+     * is read into {@link OCFile} instances.
+     */
+    private class FolderLoadTask extends AsyncTask<Void, Void, Void> {
+
+        private final OCFile mFolder;
+        private final FileDataStorageManager mLoadStorageManager;
+        private final long mStartTime;
+        private Vector<OCFile> mLoadedFiles = null;
+        private FolderContentCursor mLoadedCursor = null;
+
+        FolderLoadTask(OCFile folder, FileDataStorageManager storageManager) {
+            mFolder = folder;
+            mLoadStorageManager = storageManager;
+            mStartTime = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            FolderContentCursor c = mLoadStorageManager.getFolderContentCursor(mFolder);
+            if (c == null) {
+                mLoadedFiles = new Vector<OCFile>();
+                return null;
+            }
+            if (c.getCount() > MAX_FILES_IN_MEMORY) {   // the first window of rows is read here
+                mLoadedCursor = c;
+            } else {
+                try {
+                    mLoadedFiles = c.getAllFiles();
+                } finally {
+                    c.close();
+                }
+                // sorted by the database; sorted again for the binary searches in refreshFile, 
+                // in case the database ignores case of non-ASCII characters differently; cheap on sorted data
+                Collections.sort(mLoadedFiles);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onCancelled() {
+            if (mLoadedCursor != null) {
+                mLoadedCursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            if (mLoadTask != this) {
+                onCancelled();  // stale
+                return;
+            }
+            mLoadTask = null;
+            swapContent(mLoadedFiles, mLoadedCursor);
+            Log_OC.d(TAG, "First rows of " + mFolder.getRemotePath() + " (" + getCount() + " files" + 
+                    (mLoadedCursor != null ? ", from cursor" : "") + ") shown after " + 
+                    (SystemClock.uptimeMillis() - mStartTime) + " ms");
+
+            List<String> refreshes = new ArrayList<String>(mPendingRefreshes);
+            mPendingRefreshes.clear();
+            for (String remotePath : refreshes) {
+                refreshFile(remotePath);
+                if (mLoadTask != null) {
+                    break;  // read again, all the refreshes are included
+                }
+            }
+            if (mOnFolderLoadedListener != null) {
+                mOnFolderLoadedListener.onFolderLoaded(mFolder);
+            }
+        }
+    }
     
 }
@@ -51,7 +51,7 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
  * @author masensio
  * @author David A. Velasco
  */
-public class OCFileListFragment extends ExtendedListFragment {
+public class OCFileListFragment extends ExtendedListFragment implements FileListListAdapter.OnFolderLoadedListener {
     
     private static final String TAG = OCFileListFragment.class.getSimpleName();
 
@@ -77,6 +77,9 @@ public class OCFileListFragment extends ExtendedListFragment {
 
     private int mHeightCell = 0;
     
+    /** Set when the position in the list must be restored once the content of the folder is loaded */
+    private boolean mRestorePositionOnLoad = false;
+    
     /**
      * {@inheritDoc}
      */
@@ -93,6 +96,15 @@ public class OCFileListFragment extends ExtendedListFragment {
     }
 
     
+    @Override
+    public void onDestroyView() {
+        if (mAdapter != null) {
+            mAdapter.swapDirectory(null, null);     // cancels the load in progress and closes the cursor, if any
+        }
+        super.onDestroyView();
+    }
+
+    
     @Override
     public void onDetach() {
         mContainerActivity = null;
@@ -124,6 +136,7 @@ public class OCFileListFragment extends ExtendedListFragment {
         }
         
         mAdapter = new FileListListAdapter(getSherlockActivity(), mContainerActivity);
+        mAdapter.setOnFolderLoadedListener(this);
         
         setListAdapter(mAdapter);
         
@@ -183,14 +196,29 @@ public class OCFileListFragment extends ExtendedListFragment {
 
             ((FileDisplayActivity)mContainerActivity).startSyncFolderOperation(mFile);
             
-            // restore index and top position
-            restoreIndexAndTopPosition();
+            // restore index and top position, when the content of the folder is loaded
+            if (mAdapter.isLoading()) {
+                mRestorePositionOnLoad = true;
+            } else {
+                restoreIndexAndTopPosition();
+            }
             
         }   // else - should never happen now
    
         return moveCount;
     }
     
+    /**
+     * Restores the position in the list saved when the folder was left, if a browse-up is waiting for it.
+     */
+    @Override
+    public void onFolderLoaded(OCFile folder) {
+        if (mRestorePositionOnLoad && folder.equals(mFile)) {
+            mRestorePositionOnLoad = false;
+            restoreIndexAndTopPosition();
+        }
+    }
+    
     /*
      * Restore index and position
      */
@@ -245,7 +273,7 @@ public class OCFileListFragment extends ExtendedListFragment {
     
     @Override
     public void onItemClick(AdapterView<?> l, View v, int position, long id) {
-        OCFile file = (OCFile) mAdapter.getItem(position);
+        OCFile file = mAdapter.getFileWithDetails(position);
         if (file != null) {
             if (file.isFolder()) { 
                 // update state and view of this fragment
@@ -260,13 +288,12 @@ public class OCFileListFragment extends ExtendedListFragment {
                     // preview image - it handles the download, if needed
                     ((FileDisplayActivity)mContainerActivity).startImagePreview(file);
                     
+                } else if (PreviewMediaFragment.canBePreviewed(file)) {
+                    // media preview - streamed from the server if not downloaded
+                    ((FileDisplayActivity)mContainerActivity).startMediaPreview(file, 0, true);
+                    
                 } else if (file.isDown()) {
-                    if (PreviewMediaFragment.canBePreviewed(file)) {
-                        // media preview
-                        ((FileDisplayActivity)mContainerActivity).startMediaPreview(file, 0, true);
-                    } else {
-                        mContainerActivity.getFileOperationsHelper().openFile(file);
-                    }
+                    mContainerActivity.getFileOperationsHelper().openFile(file);
                     
                 } else {
                     // automatic download, preview on finish
@@ -290,7 +317,7 @@ public class OCFileListFragment extends ExtendedListFragment {
         MenuInflater inflater = getSherlockActivity().getMenuInflater();
         inflater.inflate(R.menu.file_actions_menu, menu);
         AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
-        OCFile targetFile = (OCFile) mAdapter.getItem(info.position);
+        OCFile targetFile = mAdapter.getFileWithDetails(info.position);
         
         if (mContainerActivity.getStorageManager() != null) {
             FileMenuFilter mf = new FileMenuFilter(
@@ -330,7 +357,7 @@ public class OCFileListFragment extends ExtendedListFragment {
     @Override
     public boolean onContextItemSelected (MenuItem item) {
         AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();        
-        mTargetFile = (OCFile) mAdapter.getItem(info.position);
+        mTargetFile = mAdapter.getFileWithDetails(info.position);
         switch (item.getItemId()) {                
             case R.id.action_share_file: {
                 mContainerActivity.getFileOperationsHelper().shareFileWithLink(mTargetFile);
@@ -428,9 +455,21 @@ public class OCFileListFragment extends ExtendedListFragment {
             mAdapter.swapDirectory(directory, storageManager);
             if (mFile == null || !mFile.equals(directory)) {
                 mList.setSelectionFromTop(0, 0);
+                mRestorePositionOnLoad = false;
             }
             mFile = directory;
         }
     }
     
+    /**
+     * Updates the entry of a single file in the listed directory, without listing it again.
+     * 
+     * @param remotePath    Remote path of the file that changed; ignored if not in the listed directory.
+     */
+    public void refreshFile(String remotePath) {
+        if (mContainerActivity.getStorageManager() != null) {
+            mAdapter.refreshFile(remotePath);
+        }
+    }
+    
 }
@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.graphics.Point;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
@@ -36,6 +37,7 @@ import com.actionbarsherlock.view.MenuItem;
 import com.actionbarsherlock.view.Window;
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
+import com.owncloud.android.datamodel.BitmapCache;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.services.FileDownloader;
@@ -230,6 +232,7 @@ ViewPager.OnPageChangeListener, OnRemoteOperationListener {
     
     @Override
     public void onDestroy() {
+        Log_OC.d(TAG, "Bitmap cache: " + BitmapCache.getInstance(this).getStats());
         super.onDestroy();
     }
     
@@ -322,6 +325,27 @@ ViewPager.OnPageChangeListener, OnRemoteOperationListener {
                     requestForDownload(currentFile);
                 }
             }
+            prefetchNeighbours(position);
+        }
+    }
+    
+    
+    /**
+     * Decodes in background the images next to the selected one, so that they are ready when
+     * the user swipes to them.
+     * 
+     * @param position      Position of the selected image in the pager.
+     */
+    private void prefetchNeighbours(int position) {
+        Point targetSize = PreviewImageFragment.getTargetSize(this);
+        BitmapCache cache = BitmapCache.getInstance(this);
+        for (int i = position - 1; i <= position + 1; i += 2) {
+            if (i >= 0 && i < mPreviewImagePagerAdapter.getCount()) {
+                OCFile file = mPreviewImagePagerAdapter.getFileAt(i);
+                if (file.isDown()) {
+                    cache.prefetch(file.getStoragePath(), targetSize.x, targetSize.y);
+                }
+            }
         }
     }
     
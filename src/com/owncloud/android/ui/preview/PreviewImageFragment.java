@@ -22,15 +22,16 @@ import java.lang.ref.WeakReference;
 import android.accounts.Account;
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
 import android.graphics.Point;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentStatePagerAdapter;
 import android.view.Display;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
 import android.view.ViewGroup;
@@ -42,6 +43,7 @@ import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.owncloud.android.R;
+import com.owncloud.android.datamodel.BitmapCache;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.FileMenuFilter;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
@@ -71,6 +73,9 @@ public class PreviewImageFragment extends FileFragment {
 
     public Bitmap mBitmap = null;
     
+    /** Shows images too big to be decoded at once; null for other images */
+    private TiledImageView mTiledView = null;
+    
     private static final String TAG = PreviewImageFragment.class.getSimpleName();
 
     private boolean mIgnoreFirstSavedState;
@@ -306,10 +311,61 @@ public class PreviewImageFragment extends FileFragment {
 
     @Override
     public void onDestroy() {
+        releaseTiledView();
+        releaseBitmap();
+        super.onDestroy();
+    }
+    
+    
+    /**
+     * Shows an image too big to be decoded at once in a {@link TiledImageView} replacing the {@link ImageView}.
+     * 
+     * @param imageView     View where normal images are shown.
+     * @param source        Decoder for regions of the image.
+     * @param overview      Scaled down version of the whole image.
+     */
+    private void showTiledImage(ImageView imageView, TiledImageView.Source source, Bitmap overview) {
+        releaseTiledView();
+        mTiledView = new TiledImageView(imageView.getContext());
+        mTiledView.setImage(source, overview);
+        mTiledView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // same reaction as to a touch in any other place of the preview
+                Activity activity = getActivity();
+                if (activity != null) {
+                    long now = SystemClock.uptimeMillis();
+                    MotionEvent up = MotionEvent.obtain(now, now, MotionEvent.ACTION_UP, 0, 0, 0);
+                    ((OnTouchListener) activity).onTouch(v, up);
+                    up.recycle();
+                }
+            }
+        });
+        ((ViewGroup) imageView.getParent()).addView(mTiledView, 
+                new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        imageView.setVisibility(View.GONE);
+    }
+    
+    
+    private void releaseTiledView() {
+        if (mTiledView != null) {
+            mTiledView.recycle();
+            if (mTiledView.getParent() != null) {
+                ((ViewGroup) mTiledView.getParent()).removeView(mTiledView);
+            }
+            mTiledView = null;
+        }
+    }
+    
+    
+    /**
+     * Hands the bitmap shown back to the {@link BitmapCache}; it's shared, so it must not be recycled here.
+     */
+    private void releaseBitmap() {
         if (mBitmap != null) {
-            mBitmap.recycle();
+            BitmapCache.getInstance(getActivity()).release(mBitmap);
+            mBitmap = null;
         }
-        super.onDestroy();
     }
 
     
@@ -352,6 +408,23 @@ public class PreviewImageFragment extends FileFragment {
          */
         private int mErrorMessageId;
         
+        /**
+         * Size, in pixels, the bitmap will be scaled down to fit in. 
+         */
+        private final Point mTargetSize;
+        
+        private final Context mContext;
+        
+        /**
+         * Images with more pixels than this are shown in a {@link TiledImageView}
+         */
+        private final long mTiledImageMinPixels;
+        
+        /**
+         * Decoder of regions of the image, when shown in a {@link TiledImageView}
+         */
+        private TiledImageView.Source mTiledSource = null;
+        
         
         /**
          * Constructor.
@@ -362,65 +435,27 @@ public class PreviewImageFragment extends FileFragment {
             mImageViewRef = new WeakReference<ImageView>(imageView);
             mMessageViewRef = new WeakReference<TextView>(messageView);
             mProgressWheelRef = new WeakReference<ProgressBar>(progressWheel);
+            mTargetSize = getTargetSize(getActivity());
+            mContext = getActivity().getApplicationContext();
+            mTiledImageMinPixels = getResources().getInteger(R.integer.preview_tiled_image_min_pixels);
         }
         
         
-        @SuppressWarnings("deprecation")
-        @SuppressLint({ "NewApi", "NewApi", "NewApi" }) // to avoid Lint errors since Android SDK r20
-		@Override
+        @Override
         protected Bitmap doInBackground(String... params) {
             Bitmap result = null;
             if (params.length != 1) return result;
             String storagePath = params[0];
             try {
-                // set desired options that will affect the size of the bitmap
-                BitmapFactory.Options options = new Options();
-                options.inScaled = true;
-                options.inPurgeable = true;
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.GINGERBREAD_MR1) {
-                    options.inPreferQualityOverSpeed = false;
-                }
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB) {
-                    options.inMutable = false;
-                }
-                // make a false load of the bitmap - just to be able to read outWidth, outHeight and outMimeType
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(storagePath, options);   
-                
-                int width = options.outWidth;
-                int height = options.outHeight;
-                int scale = 1;
-                
-                Display display = getActivity().getWindowManager().getDefaultDisplay();
-                Point size = new Point();
-                int screenWidth;
-                int screenHeight;
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB_MR2) {
-                    display.getSize(size);
-                    screenWidth = size.x;
-                    screenHeight = size.y;
-                } else {
-                    screenWidth = display.getWidth();
-                    screenHeight = display.getHeight();
-                }
-
-                if (width > screenWidth) {
-                    // second try to scale down the image , this time depending upon the screen size 
-                    scale = (int) Math.floor((float)width / screenWidth);
-                }
-                if (height > screenHeight) {
-                    scale = Math.max(scale, (int) Math.floor((float)height / screenHeight));
-                }
-                options.inSampleSize = scale;
-
-                // really load the bitmap
-                options.inJustDecodeBounds = false; // the next decodeFile call will be real
-                result = BitmapFactory.decodeFile(storagePath, options);
-                //Log_OC.d(TAG, "Image loaded - width: " + options.outWidth + ", loaded height: " + options.outHeight);
+                result = BitmapCache.getInstance(mContext).getBitmap(storagePath, mTargetSize.x, mTargetSize.y);
 
                 if (result == null) {
                     mErrorMessageId = R.string.preview_image_error_unknown_format;
                     Log_OC.e(TAG, "File could not be loaded as a bitmap: " + storagePath);
+                    
+                } else if (TiledImageView.isSupported()) {
+                    // the bitmap got is used as overview of the whole image
+                    mTiledSource = TiledImageView.openSource(storagePath, mTiledImageMinPixels);
                 }
                 
             } catch (OutOfMemoryError e) {
@@ -450,13 +485,22 @@ public class PreviewImageFragment extends FileFragment {
         }
         
         private void showLoadedImage(Bitmap result) {
-            if (mImageViewRef != null) {
-                final ImageView imageView = mImageViewRef.get();
-                if (imageView != null) {
+            final ImageView imageView = (mImageViewRef != null) ? mImageViewRef.get() : null;
+            if (imageView != null) {
+                releaseBitmap();
+                mBitmap  = result;
+                if (mTiledSource != null) {
+                    showTiledImage(imageView, mTiledSource, result);
+                } else {
                     imageView.setImageBitmap(result);
                     imageView.setVisibility(View.VISIBLE);
-                    mBitmap  = result;
-                } // else , silently finish, the fragment was destroyed
+                }
+            } else {
+                // the fragment was destroyed
+                BitmapCache.getInstance(mContext).release(result);
+                if (mTiledSource != null) {
+                    mTiledSource.recycle();
+                }
             }
             if (mMessageViewRef != null) {
                 final TextView messageView = mMessageViewRef.get();
@@ -494,6 +538,26 @@ public class PreviewImageFragment extends FileFragment {
         
     }
 
+    /**
+     * Size the previewed images are scaled down to fit in: the size of the screen.
+     * 
+     * @param activity  Activity showing the previews.
+     * @return          Width and height of the screen, in pixels.
+     */
+    @SuppressWarnings("deprecation")
+    @SuppressLint("NewApi")
+    public static Point getTargetSize(Activity activity) {
+        Display display = activity.getWindowManager().getDefaultDisplay();
+        Point size = new Point();
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB_MR2) {
+            display.getSize(size);
+        } else {
+            size.set(display.getWidth(), display.getHeight());
+        }
+        return size;
+    }
+    
+    
     /**
      * Helper method to test if an {@link OCFile} can be passed to a {@link PreviewImageFragment} to be previewed.
      * 
@@ -16,6 +16,8 @@
  */
 package com.owncloud.android.ui.preview;
 
+import java.io.IOException;
+
 import android.accounts.Account;
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -50,6 +52,7 @@ import com.owncloud.android.files.FileMenuFilter;
 import com.owncloud.android.media.MediaControlView;
 import com.owncloud.android.media.MediaService;
 import com.owncloud.android.media.MediaServiceBinder;
+import com.owncloud.android.media.StreamingProxy;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
 import com.owncloud.android.ui.dialog.RemoveFileDialogFragment;
@@ -176,9 +179,6 @@ public class PreviewMediaFragment extends FileFragment implements
             if (mAccount == null) {
                 throw new IllegalStateException("Instanced with a NULL ownCloud Account");
             }
-            if (!file.isDown()) {
-                throw new IllegalStateException("There is no local file to preview");
-            }
             
         } else {
             file = (OCFile)savedInstanceState.getParcelable(PreviewMediaFragment.EXTRA_FILE);
@@ -189,7 +189,7 @@ public class PreviewMediaFragment extends FileFragment implements
             mAutoplay = savedInstanceState.getBoolean(PreviewMediaFragment.EXTRA_PLAYING);
             
         }
-        if (file != null && file.isDown()) {
+        if (file != null) {
             if (file.isVideo()) {
                 mVideoPreview.setVisibility(View.VISIBLE);
                 mImagePreview.setVisibility(View.GONE);
@@ -236,7 +236,7 @@ public class PreviewMediaFragment extends FileFragment implements
         Log_OC.e(TAG, "onStart");
 
         OCFile file = getFile();
-        if (file != null && file.isDown()) {
+        if (file != null) {
            if (file.isAudio()) {
                bindMediaService();
                
@@ -371,7 +371,19 @@ public class PreviewMediaFragment extends FileFragment implements
         
         // load the video file in the video player ; 
         // when done, VideoHelper#onPrepared() will be called
-        mVideoPreview.setVideoPath(getFile().getStoragePath()); 
+        loadVideo();
+    }
+    
+    /**
+     * Loads the video in the player, from the local file or streamed from the server if not downloaded.
+     */
+    private void loadVideo() {
+        try {
+            mVideoPreview.setVideoPath(StreamingProxy.getPlayablePath(getSherlockActivity(), mAccount, getFile()));
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Streaming proxy not available for " + getFile().getRemotePath(), e);
+            mVideoHelper.onError(null, MediaService.OC_MEDIA_ERROR, R.string.media_err_io);
+        }
     }
     
 
@@ -420,7 +432,7 @@ public class PreviewMediaFragment extends FileFragment implements
                     mVideoPreview.stopPlayback();
                     mAutoplay = false;
                     mSavedPlaybackPosition = 0;
-                    mVideoPreview.setVideoPath(getFile().getStoragePath());
+                    loadVideo();
                 }
             } // else : called from onError()
             mMediaController.updatePausePlay();
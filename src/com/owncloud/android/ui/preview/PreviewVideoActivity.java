@@ -17,9 +17,12 @@
 
 package com.owncloud.android.ui.preview;
 
+import java.io.IOException;
+
 import com.owncloud.android.R;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.media.MediaService;
+import com.owncloud.android.media.StreamingProxy;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.utils.Log_OC;
 
@@ -31,14 +34,10 @@ import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnPreparedListener;
-import android.net.Uri;
 import android.os.Bundle;
 import android.widget.MediaController;
 import android.widget.VideoView;
 
-import com.owncloud.android.lib.common.accounts.AccountUtils;
-import com.owncloud.android.lib.common.accounts.AccountUtils.AccountNotFoundException;
-
 /**
  *  Activity implementing a basic video player.
  * 
@@ -202,18 +201,12 @@ public class PreviewVideoActivity extends FileActivity implements OnCompletionLi
             }
             file = getStorageManager().getFileById(file.getFileId()); 
             if (file != null) {
-                if (file.isDown()) {
-                    mVideoPlayer.setVideoPath(file.getStoragePath());
-                    
-                } else {
-                    // not working yet
-                    String url;
-                    try {
-                        url = AccountUtils.constructFullURLForAccount(this, getAccount()) + file.getRemotePath();
-                        mVideoPlayer.setVideoURI(Uri.parse(url));
-                    } catch (AccountNotFoundException e) {
-                        onError(null, MediaService.OC_MEDIA_ERROR, R.string.media_err_no_account);
-                    }
+                // files not downloaded are streamed through a local proxy adding the credentials
+                try {
+                    mVideoPlayer.setVideoPath(StreamingProxy.getPlayablePath(this, getAccount(), file));
+                } catch (IOException e) {
+                    Log_OC.e(TAG, "Streaming proxy not available for " + file.getRemotePath(), e);
+                    onError(null, MediaService.OC_MEDIA_ERROR, R.string.media_err_io);
                 }
                 
                 // create and prepare control panel for the user
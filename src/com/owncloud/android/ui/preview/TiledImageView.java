@@ -0,0 +1,393 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.ui.preview;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.v4.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.owncloud.android.utils.Log_OC;
+
+/**
+ * View showing an image too big to be decoded at once.
+ *
+ * A scaled down overview of the whole image is drawn first; when zoomed in beyond the resolution of the
+ * overview, only the tiles of the image in the visible area are decoded, with the sample size suitable
+ * for the zoom, in a background thread.
+ *
+ * Zoom in with a pinch or a double tap; a double tap at the maximum zoom shows the whole image again.
+ * While zoomed in, drags pan the image instead of swiping to the next one.
+ *
+ * Uses {@link BitmapRegionDecoder}, available from Android 2.3.3 (API 10); check {@link #isSupported()}
+ * before using the class.
+ */
+@SuppressLint("NewApi")
+public class TiledImageView extends View {
+
+    private static final String TAG = TiledImageView.class.getSimpleName();
+
+    /** Side of the tiles, in pixels of the sampled image */
+    private static final int TILE_SIZE = 256;
+
+    /** Maximum amount of bytes held by decoded tiles; a few screens */
+    private static final int TILES_CACHE_SIZE = 12 * 1024 * 1024;
+
+
+    /**
+     * Decoder of regions of an image, with its full size.
+     */
+    public static class Source {
+        private final BitmapRegionDecoder mDecoder;
+        private final int mWidth;
+        private final int mHeight;
+        private final boolean mOpaque;
+
+        private Source(BitmapRegionDecoder decoder, int width, int height, boolean opaque) {
+            mDecoder = decoder;
+            mWidth = width;
+            mHeight = height;
+            mOpaque = opaque;
+        }
+
+        /**
+         * Releases the decoder; safe while a tile is being decoded.
+         */
+        public void recycle() {
+            synchronized (mDecoder) {
+                mDecoder.recycle();
+            }
+        }
+    }
+
+
+    public static boolean isSupported() {
+        return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.GINGERBREAD_MR1;
+    }
+
+
+    /**
+     * Opens an image to be shown in tiles, if it has more pixels than the given threshold. Call it
+     * out of the main thread.
+     *
+     * @param storagePath   Full path to the image file.
+     * @param minPixels     Minimum number of pixels in the image to show it in tiles.
+     * @return              Decoder for regions of the image, or null if the image is smaller than
+     *                      the threshold or its format can't be decoded in regions.
+     */
+    public static Source openSource(String storagePath, long minPixels) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(storagePath, bounds);
+        if ((long) bounds.outWidth * bounds.outHeight < minPixels) {
+            return null;
+        }
+        try {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(storagePath, false);
+            return new Source(decoder, decoder.getWidth(), decoder.getHeight(), "image/jpeg".equals(bounds.outMimeType));
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Image can't be decoded in regions: " + storagePath + "; " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    private Source mSource = null;
+    private Bitmap mOverview = null;
+
+    /** Zoom over the scale fitting the whole image in the view */
+    private float mZoom = 1f;
+
+    /** Point of the image, in image pixels, shown at the center of the view */
+    private float mCenterX;
+    private float mCenterY;
+
+    private final LruCache<String, Bitmap> mTiles;
+    private final Set<String> mPendingTiles = new HashSet<String>();
+    private final ExecutorService mTileDecoder = Executors.newSingleThreadExecutor();
+    private volatile int mCurrentSample = 1;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mTileRect = new Rect();
+    private final GestureDetector mGestureDetector;
+    private final ScaleGestureDetector mScaleDetector;
+
+
+    public TiledImageView(Context context) {
+        super(context);
+        mTiles = new LruCache<String, Bitmap>(TILES_CACHE_SIZE) {
+            @Override
+            protected int sizeOf(String key, Bitmap tile) {
+                return tile.getRowBytes() * tile.getHeight();
+            }
+        };
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapConfirmed(MotionEvent e) {
+                return performClick();
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                float maxZoom = getMaxZoom();
+                if (mZoom >= maxZoom) {
+                    mZoom = 1f;
+                } else {
+                    // keeps the tapped point of the image in the center
+                    float scale = getScale();
+                    mCenterX += (e.getX() - getWidth() / 2f) / scale;
+                    mCenterY += (e.getY() - getHeight() / 2f) / scale;
+                    mZoom = Math.min(mZoom * 2, maxZoom);
+                }
+                invalidate();
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                float scale = getScale();
+                mCenterX += distanceX / scale;
+                mCenterY += distanceY / scale;
+                invalidate();
+                return true;
+            }
+        });
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                mZoom = Math.max(1f, Math.min(mZoom * detector.getScaleFactor(), getMaxZoom()));
+                invalidate();
+                return true;
+            }
+        });
+    }
+
+
+    /**
+     * Sets the image to show.
+     *
+     * @param source        Decoder for regions of the image; recycled by the view in {@link #recycle()}.
+     * @param overview      Scaled down version of the whole image; not recycled by the view.
+     */
+    public void setImage(Source source, Bitmap overview) {
+        mSource = source;
+        mOverview = overview;
+        mZoom = 1f;
+        mCenterX = source.mWidth / 2f;
+        mCenterY = source.mHeight / 2f;
+        mTiles.evictAll();
+        invalidate();
+    }
+
+
+    /**
+     * Stops decoding tiles and releases the decoder of the image.
+     */
+    public void recycle() {
+        mTileDecoder.shutdownNow();
+        mTiles.evictAll();
+        if (mSource != null) {
+            mSource.recycle();
+            mSource = null;
+        }
+        mOverview = null;
+    }
+
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (event.getAction() == MotionEvent.ACTION_DOWN && getParent() != null) {
+            // while zoomed in, drags pan the image instead of swiping the pager
+            getParent().requestDisallowInterceptTouchEvent(mZoom > 1f);
+        }
+        mScaleDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
+        return true;
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mSource == null || mOverview == null || getWidth() == 0) {
+            return;
+        }
+        float scale = getScale();
+        clampCenter(scale);
+
+        canvas.save();
+        canvas.translate(getWidth() / 2f - mCenterX * scale, getHeight() / 2f - mCenterY * scale);
+        canvas.scale(scale, scale);
+        mTileRect.set(0, 0, mSource.mWidth, mSource.mHeight);
+        canvas.drawBitmap(mOverview, null, mTileRect, mPaint);
+
+        float overviewScale = (float) mOverview.getWidth() / mSource.mWidth;
+        if (scale > overviewScale) {
+            drawTiles(canvas, scale);
+        }
+        canvas.restore();
+    }
+
+
+    /**
+     * Draws the tiles in the visible area decoded at the sample size suitable for the scale, and requests
+     * those not decoded yet.
+     *
+     * The canvas is transformed to draw in image pixels.
+     */
+    private void drawTiles(Canvas canvas, float scale) {
+        int sample = 1;
+        while (sample * 2 <= 1 / scale) {
+            sample *= 2;
+        }
+        mCurrentSample = sample;
+        int tileSide = TILE_SIZE * sample;
+
+        float halfWidth = getWidth() / 2f / scale;
+        float halfHeight = getHeight() / 2f / scale;
+        int firstColumn = Math.max(0, (int) ((mCenterX - halfWidth) / tileSide));
+        int lastColumn = Math.min((mSource.mWidth - 1) / tileSide, (int) ((mCenterX + halfWidth) / tileSide));
+        int firstRow = Math.max(0, (int) ((mCenterY - halfHeight) / tileSide));
+        int lastRow = Math.min((mSource.mHeight - 1) / tileSide, (int) ((mCenterY + halfHeight) / tileSide));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                mTileRect.set(column * tileSide, row * tileSide,
+                        Math.min((column + 1) * tileSide, mSource.mWidth),
+                        Math.min((row + 1) * tileSide, mSource.mHeight));
+                String key = sample + ":" + column + ":" + row;
+                Bitmap tile = mTiles.get(key);
+                if (tile != null) {
+                    canvas.drawBitmap(tile, null, mTileRect, mPaint);
+                } else {
+                    requestTile(key, new Rect(mTileRect), sample);
+                }
+            }
+        }
+    }
+
+
+    private void requestTile(final String key, final Rect region, final int sample) {
+        synchronized (mPendingTiles) {
+            if (!mPendingTiles.add(key)) {
+                return;
+            }
+        }
+        final Source source = mSource;
+        mTileDecoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (sample != mCurrentSample) {
+                        // zoom changed before the tile was decoded
+                        return;
+                    }
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = sample;
+                    if (source.mOpaque) {
+                        options.inPreferredConfig = Bitmap.Config.RGB_565;
+                    }
+                    Bitmap tile = null;
+                    synchronized (source.mDecoder) {
+                        if (!source.mDecoder.isRecycled()) {
+                            tile = source.mDecoder.decodeRegion(region, options);
+                        }
+                    }
+                    if (tile != null) {
+                        mTiles.put(key, tile);
+                        postInvalidate();
+                    }
+
+                } catch (OutOfMemoryError e) {
+                    Log_OC.e(TAG, "Out of memory decoding a tile; releasing tiles", e);
+                    mTiles.evictAll();
+
+                } finally {
+                    synchronized (mPendingTiles) {
+                        mPendingTiles.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Keeps the image covering the view as much as possible; dimensions smaller than the view are centered.
+     */
+    private void clampCenter(float scale) {
+        float halfWidth = getWidth() / 2f / scale;
+        float halfHeight = getHeight() / 2f / scale;
+        if (mSource.mWidth <= halfWidth * 2) {
+            mCenterX = mSource.mWidth / 2f;
+        } else {
+            mCenterX = Math.max(halfWidth, Math.min(mCenterX, mSource.mWidth - halfWidth));
+        }
+        if (mSource.mHeight <= halfHeight * 2) {
+            mCenterY = mSource.mHeight / 2f;
+        } else {
+            mCenterY = Math.max(halfHeight, Math.min(mCenterY, mSource.mHeight - halfHeight));
+        }
+    }
+
+
+    /**
+     * @return  View pixels per image pixel at the current zoom.
+     */
+    private float getScale() {
+        return getFitScale() * mZoom;
+    }
+
+
+    private float getFitScale() {
+        if (mSource == null || getWidth() == 0 || getHeight() == 0) {
+            return 1f;
+        }
+        return Math.min((float) getWidth() / mSource.mWidth, (float) getHeight() / mSource.mHeight);
+    }
+
+
+    /**
+     * @return  Zoom showing every pixel of the image.
+     */
+    private float getMaxZoom() {
+        return Math.max(1f, 1f / getFitScale());
+    }
+
+}
@@ -21,8 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
@@ -46,6 +45,9 @@ import android.util.Log;
  */
 public class FileStorageUtils {
     //private static final String LOG_TAG = "FileStorageUtils";
+
+    /** Maximum number of bytes copied in a single call to {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} */
+    private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
 	
   
     /**
@@ -202,17 +204,68 @@ public class FileStorageUtils {
                 throw new IOException("Cannot create dir " + directory.getAbsolutePath());
             }
     
-            InputStream in = new FileInputStream(sourceLocation);
-            OutputStream out = new FileOutputStream(targetLocation);
-    
-            // Copy the bits from instream to outstream
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
+            copyFile(sourceLocation, targetLocation);
+        }
+    }
+
+    /**
+     * Copies a file with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * so that the system moves the data without passing it through buffers in the Java heap.
+     * 
+     * The parent folder of the target file is created if needed.
+     * 
+     * @param source    File to copy.
+     * @param target    File to write the copy to; overwritten if it exists.
+     * @return          Number of bytes copied.
+     */
+    public static long copyFile(File source, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create dir " + parent.getAbsolutePath());
+        }
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    long transferred = inChannel.transferTo(position, Math.min(MAX_TRANSFER_SIZE, size - position),
+                            outChannel);
+                    if (transferred <= 0) {
+                        throw new IOException("Unexpected end of " + source.getAbsolutePath() + " at byte " + position);
+                    }
+                    position += transferred;
+                }
+                return position;
+
+            } finally {
+                out.close();
             }
+        } finally {
             in.close();
-            out.close();
+        }
+    }
+
+    /**
+     * Moves a file, just renaming it when source and target are in the same volume; 
+     * else, the file is copied and the source deleted.
+     * 
+     * The parent folder of the target file is created if needed.
+     * 
+     * @param source    File to move.
+     * @param target    New location of the file; overwritten if it exists.
+     */
+    public static void moveFile(File source, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create dir " + parent.getAbsolutePath());
+        }
+        if (!source.renameTo(target)) {
+            copyFile(source, target);
+            source.delete();
         }
     }
 }
\ No newline at end of file
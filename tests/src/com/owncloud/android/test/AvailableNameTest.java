@@ -0,0 +1,57 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.owncloud.android.operations.UploadFileOperation;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the computation of conflict-free names in {@link UploadFileOperation#getAvailableName(String, Set)}.
+ */
+public class AvailableNameTest extends TestCase {
+
+    public void testFirstFreeNameIsChosen() {
+        Set<String> used = new HashSet<String>();
+        used.add("IMG.jpg");
+        for (int i=2; i<=40; i++) {
+            used.add("IMG (" + i + ").jpg");
+        }
+        assertEquals("IMG (41).jpg", UploadFileOperation.getAvailableName("IMG.jpg", used));
+
+        used.remove("IMG (7).jpg");
+        assertEquals("IMG (7).jpg", UploadFileOperation.getAvailableName("IMG.jpg", used));
+    }
+
+    public void testNameWithoutExtension() {
+        Set<String> used = new HashSet<String>();
+        used.add("README");
+        assertEquals("README (2)", UploadFileOperation.getAvailableName("README", used));
+    }
+
+    public void testOnlyLastDotStartsExtension() {
+        Set<String> used = new HashSet<String>();
+        used.add("backup.tar.gz");
+        used.add("backup.tar (2).gz");
+        assertEquals("backup.tar (3).gz", UploadFileOperation.getAvailableName("backup.tar.gz", used));
+    }
+
+}
@@ -0,0 +1,110 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.owncloud.android.datamodel.BitmapCache;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the reuse of decoded bitmaps by {@link BitmapCache}.
+ */
+public class BitmapCacheTest extends AndroidTestCase {
+
+    private File mImage;
+    private BitmapCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mImage = new File(getContext().getCacheDir(), "bitmap_cache_test.png");
+        writeImage(400, 200);
+        mCache = BitmapCache.getInstance(getContext());
+        mCache.evictAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mImage.delete();
+        super.tearDown();
+    }
+
+    public void testSecondRequestIsHit() {
+        long hits = mCache.getHitCount();
+        Bitmap first = mCache.getBitmap(mImage.getAbsolutePath(), 200, 200);
+        Bitmap second = mCache.getBitmap(mImage.getAbsolutePath(), 200, 200);
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals(hits + 1, mCache.getHitCount());
+        assertEquals(200, first.getWidth());
+        mCache.release(first);
+        mCache.release(second);
+    }
+
+    public void testModifiedFileIsDecodedAgain() throws IOException {
+        Bitmap first = mCache.getBitmap(mImage.getAbsolutePath(), 400, 400);
+        writeImage(100, 100);
+        mImage.setLastModified(mImage.lastModified() + 2000);
+        Bitmap second = mCache.getBitmap(mImage.getAbsolutePath(), 400, 400);
+        assertNotSame(first, second);
+        assertEquals(100, second.getWidth());
+        mCache.release(first);
+        mCache.release(second);
+    }
+
+    public void testSampleSizeIsPowerOfTwo() throws IOException {
+        writeImage(1000, 500);
+        Bitmap bitmap = mCache.getBitmap(mImage.getAbsolutePath(), 300, 300);
+        // 1000 / 300 would be 3; 2 is the biggest power of two keeping the width over 300
+        assertEquals(500, bitmap.getWidth());
+        assertEquals(Bitmap.Config.ARGB_8888, bitmap.getConfig());
+        mCache.release(bitmap);
+    }
+
+    public void testJpegDecodedWithoutAlpha() throws IOException {
+        mImage.delete();
+        mImage = new File(getContext().getCacheDir(), "bitmap_cache_test.jpg");
+        writeImage(400, 200, Bitmap.CompressFormat.JPEG);
+        Bitmap bitmap = mCache.getBitmap(mImage.getAbsolutePath(), 400, 400);
+        assertEquals(Bitmap.Config.RGB_565, bitmap.getConfig());
+        mCache.release(bitmap);
+    }
+
+    private void writeImage(int width, int height) throws IOException {
+        writeImage(width, height, Bitmap.CompressFormat.PNG);
+    }
+
+    private void writeImage(int width, int height, Bitmap.CompressFormat format) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        FileOutputStream out = new FileOutputStream(mImage);
+        try {
+            bitmap.compress(format, 100, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import com.owncloud.android.utils.FileStorageUtils;
+
+import android.os.StatFs;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares the throughput of {@link FileStorageUtils#copyFile(File, File)} with the stream copy
+ * through a 1 KB buffer formerly used, for files of 10 MB and 1 GB.
+ *
+ * The 1 GB case is skipped when the device has not room enough for the source and two copies.
+ */
+public class CopyFileBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = CopyFileBenchmarkTest.class.getSimpleName();
+
+    private static final long MB = 1024 * 1024;
+
+    private File mSource;
+    private File mStreamCopy;
+    private File mChannelCopy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File dir = getContext().getCacheDir();
+        mSource = new File(dir, "benchmark_source");
+        mStreamCopy = new File(dir, "benchmark_stream_copy");
+        mChannelCopy = new File(dir, "benchmark_channel_copy");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSource.delete();
+        mStreamCopy.delete();
+        mChannelCopy.delete();
+        super.tearDown();
+    }
+
+    public void testCopy10MB() throws IOException {
+        runBenchmark(10 * MB);
+    }
+
+    public void testCopy1GB() throws IOException {
+        long size = 1024 * MB;
+        StatFs stats = new StatFs(getContext().getCacheDir().getAbsolutePath());
+        long available = (long) stats.getAvailableBlocks() * stats.getBlockSize();
+        if (available < 3 * size) {
+            Log.i(TAG, "Skipping copy of 1 GB; only " + (available / MB) + " MB available");
+            return;
+        }
+        runBenchmark(size);
+    }
+
+    private void runBenchmark(long size) throws IOException {
+        createSource(size);
+
+        long start = System.currentTimeMillis();
+        streamCopy(mSource, mStreamCopy);
+        long streamTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        long copied = FileStorageUtils.copyFile(mSource, mChannelCopy);
+        long channelTime = System.currentTimeMillis() - start;
+
+        Log.i(TAG, "Copy of " + (size / MB) + " MB: stream " + streamTime + " ms (" +
+                throughput(size, streamTime) + " MB/s), transferTo " + channelTime + " ms (" +
+                throughput(size, channelTime) + " MB/s)");
+
+        assertEquals(size, copied);
+        assertEquals(size, mStreamCopy.length());
+        assertEquals(size, mChannelCopy.length());
+    }
+
+    private void createSource(long size) throws IOException {
+        byte[] block = new byte[(int) MB];
+        for (int i=0; i<block.length; i++) {
+            block[i] = (byte) i;
+        }
+        RandomAccessFile raf = new RandomAccessFile(mSource, "rw");
+        try {
+            raf.setLength(0);
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Reference: copy as done by FileStorageUtils before transferTo was used */
+    private void streamCopy(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        OutputStream out = new FileOutputStream(target);
+        try {
+            byte[] buf = new byte[1024];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private long throughput(long size, long millis) {
+        return (millis > 0) ? (size / MB) * 1000 / millis : 0;
+    }
+
+}
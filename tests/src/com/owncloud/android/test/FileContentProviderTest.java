@@ -1,8 +1,14 @@
 package com.owncloud.android.test;
 
+import com.owncloud.android.db.ProviderMeta;
 import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
 import com.owncloud.android.providers.FileContentProvider;
 import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
 import android.test.ProviderTestCase2;
@@ -49,5 +55,234 @@ public class FileContentProviderTest extends ProviderTestCase2<FileContentProvid
 		Uri testuri = Uri.parse("content://org.owncloud/");
 		assertEquals(ProviderTableMeta.CONTENT_TYPE, resolve.getType(testuri));
 	}
+	
+	public void testQueryByPathUsesIndex() {
+		// as in FileDataStorageManager#getCursorForValue and #fileExists
+		assertUsesIndex(ProviderTableMeta.FILE_OWNER_PATH_INDEX,
+				"SELECT * FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+				" WHERE " + ProviderTableMeta.FILE_PATH + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?" +
+				" ORDER BY " + ProviderTableMeta.FILE_DEFAULT_SORT_ORDER, 
+				new String[] { "/folder/file.txt", "user@server" });
+	}
+	
+	public void testQueryByLocalPathUsesIndex() {
+		assertUsesIndex(ProviderTableMeta.FILE_STORAGE_PATH_INDEX,
+				"SELECT * FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+				" WHERE " + ProviderTableMeta.FILE_STORAGE_PATH + "=? AND " + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?" +
+				" ORDER BY " + ProviderTableMeta.FILE_DEFAULT_SORT_ORDER, 
+				new String[] { "/sdcard/owncloud/user@server/file.txt", "user@server" });
+	}
+	
+	public void testFolderContentUsesIndex() {
+		// as in FileDataStorageManager#getFolderContent, through the DIRECTORY uri
+		assertUsesIndex(ProviderTableMeta.FILE_PARENT_INDEX,
+				"SELECT * FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+				" WHERE (" + ProviderTableMeta.FILE_PARENT + "=5) AND (" + ProviderTableMeta.FILE_PARENT + "=?)" +
+				" ORDER BY " + ProviderTableMeta.FILE_DEFAULT_SORT_ORDER, 
+				new String[] { "5" });
+	}
+	
+	public void testQueryByKeepInSyncUsesIndex() {
+		// as in FileObserverService
+		assertUsesIndex(ProviderTableMeta.FILE_KEEP_IN_SYNC_INDEX,
+				"SELECT * FROM " + ProviderTableMeta.FILE_TABLE_NAME + 
+				" WHERE " + ProviderTableMeta.FILE_KEEP_IN_SYNC + " = ?", 
+				new String[] { "1" });
+	}
+	
+	public void testDeleteLargeFolder() {
+		final String account = "user@server";
+		final int numSubfolders = 100;
+		final int numFilesPerSubfolder = 499;
+		
+		SQLiteDatabase db = openDatabase();
+		long folderId;
+		try {
+			db.beginTransaction();
+			long rootId = insertFile(db, account, "/", 0, true);
+			folderId = insertFile(db, account, "/big/", rootId, true);
+			for (int i=0; i<numSubfolders; i++) {
+				String subfolderPath = "/big/sub" + i + "/";
+				long subfolderId = insertFile(db, account, subfolderPath, folderId, true);
+				for (int j=0; j<numFilesPerSubfolder; j++) {
+					insertFile(db, account, subfolderPath + "file" + j + ".txt", subfolderId, false);
+				}
+			}
+			// siblings and files in other accounts that must survive
+			long siblingId = insertFile(db, account, "/bigger/", rootId, true);
+			insertFile(db, account, "/bigger/file.txt", siblingId, false);
+			insertFile(db, account, "/big.txt", rootId, false);
+			insertFile(db, "other@server", "/big/file.txt", 1000000, false);
+			
+			insertShare(db, account, "/big");
+			insertShare(db, account, "/big/sub0/file0.txt");
+			insertShare(db, account, "/bigger");
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			db.close();
+		}
+		
+		long start = System.currentTimeMillis();
+		int deleted = getProvider().delete(Uri.parse("content://org.owncloud/dir/" + folderId),
+				ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", new String[] { account });
+		long elapsed = System.currentTimeMillis() - start;
+		Log.i(TAG, "Deleted " + deleted + " files in " + elapsed + " ms");
+		
+		assertEquals(1 + numSubfolders * (1 + numFilesPerSubfolder), deleted);
+		assertEquals(5, countRows(ProviderTableMeta.FILE_TABLE_NAME));
+		assertEquals(1, countRows(ProviderTableMeta.OCSHARES_TABLE_NAME));
+		assertTrue("Deletion took " + elapsed + " ms", elapsed < 10000);
+	}
+	
+	public void testFolderSizesFollowChanges() {
+		final String account = "user@server";
+		long rootId = insertFile(account, "/", 0, "DIR", 0);
+		long folderId = insertFile(account, "/folder/", rootId, "DIR", 0);
+		long subfolderId = insertFile(account, "/folder/sub/", folderId, "DIR", 0);
+		long fileId = insertFile(account, "/folder/sub/a.txt", subfolderId, "text/plain", 100);
+		insertFile(account, "/folder/b.txt", folderId, "text/plain", 10);
+		assertSize(110, folderId);
+		assertSize(100, subfolderId);
+		assertSize(110, rootId);
+		
+		// new size
+		ContentValues cv = new ContentValues();
+		cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, 150);
+		getProvider().update(Uri.parse("content://org.owncloud/"), cv, ProviderTableMeta._ID + "=?", 
+				new String[] { String.valueOf(fileId) });
+		assertSize(160, rootId);
+		assertSize(150, subfolderId);
+		
+		// sizes received for folders are ignored
+		cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, 5000);
+		getProvider().update(Uri.parse("content://org.owncloud/"), cv, ProviderTableMeta._ID + "=?", 
+				new String[] { String.valueOf(folderId) });
+		assertSize(160, folderId);
+		
+		// move out of the folder
+		cv = new ContentValues();
+		cv.put(ProviderTableMeta.FILE_PARENT, rootId);
+		getProvider().update(Uri.parse("content://org.owncloud/"), cv, ProviderTableMeta._ID + "=?", 
+				new String[] { String.valueOf(fileId) });
+		assertSize(10, folderId);
+		assertSize(0, subfolderId);
+		assertSize(160, rootId);
+		
+		// removal of a folder
+		getProvider().delete(Uri.parse("content://org.owncloud/dir/" + folderId), null, null);
+		assertSize(150, rootId);
+		
+		// removal of a file
+		getProvider().delete(Uri.parse("content://org.owncloud/file/" + fileId), null, null);
+		assertSize(0, rootId);
+	}
+	
+	public void testMoveFolder() {
+		final String account = "user@server";
+		long rootId = insertFile(account, "/", 0, "DIR", 0);
+		long folderId = insertFile(account, "/foo/", rootId, "DIR", 0);
+		long subfolderId = insertFile(account, "/foo/sub/", folderId, "DIR", 0);
+		long fileId = insertFile(account, "/foo/sub/a.txt", subfolderId, "text/plain", 1);
+		long siblingId = insertFile(account, "/foobar/", rootId, "DIR", 0);
+		long siblingFileId = insertFile(account, "/foobar/b.txt", siblingId, "text/plain", 1);
+		long otherAccountFileId = insertFile("other@server", "/foo/c.txt", 1000000, "text/plain", 1);
+		
+		ContentValues cv = new ContentValues();
+		cv.put(ProviderTableMeta.FILE_PATH, "/renamed/");
+		int moved = getProvider().update(Uri.parse("content://org.owncloud/dir/" + folderId), cv, 
+				ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", new String[] { account });
+		
+		assertEquals(3, moved);
+		assertPath("/renamed/", folderId);
+		assertPath("/renamed/sub/", subfolderId);
+		assertPath("/renamed/sub/a.txt", fileId);
+		assertPath("/foobar/", siblingId);
+		assertPath("/foobar/b.txt", siblingFileId);
+		assertPath("/foo/c.txt", otherAccountFileId);
+	}
+	
+	private void assertPath(String expectedPath, long fileId) {
+		Cursor c = getProvider().query(Uri.parse("content://org.owncloud/file/" + fileId), 
+				new String[] { ProviderTableMeta.FILE_PATH }, null, null, null);
+		try {
+			assertTrue(c.moveToFirst());
+			assertEquals(expectedPath, c.getString(0));
+		} finally {
+			c.close();
+		}
+	}
+	
+	private long insertFile(String account, String path, long parentId, String mimeType, long size) {
+		ContentValues cv = new ContentValues();
+		cv.put(ProviderTableMeta.FILE_PATH, path);
+		cv.put(ProviderTableMeta.FILE_NAME, path);
+		cv.put(ProviderTableMeta.FILE_PARENT, parentId);
+		cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, account);
+		cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, mimeType);
+		cv.put(ProviderTableMeta.FILE_CONTENT_LENGTH, size);
+		Uri uri = getProvider().insert(Uri.parse("content://org.owncloud/file"), cv);
+		return Long.parseLong(uri.getPathSegments().get(1));
+	}
+	
+	private void assertSize(long expectedSize, long folderId) {
+		Cursor c = getProvider().query(Uri.parse("content://org.owncloud/file/" + folderId), 
+				new String[] { ProviderTableMeta.FILE_CONTENT_LENGTH }, null, null, null);
+		try {
+			assertTrue(c.moveToFirst());
+			assertEquals(expectedSize, c.getLong(0));
+		} finally {
+			c.close();
+		}
+	}
+	
+	private long insertFile(SQLiteDatabase db, String account, String path, long parentId, boolean isFolder) {
+		ContentValues cv = new ContentValues();
+		cv.put(ProviderTableMeta.FILE_PATH, path);
+		cv.put(ProviderTableMeta.FILE_NAME, path);
+		cv.put(ProviderTableMeta.FILE_PARENT, parentId);
+		cv.put(ProviderTableMeta.FILE_ACCOUNT_OWNER, account);
+		cv.put(ProviderTableMeta.FILE_CONTENT_TYPE, isFolder ? "DIR" : "text/plain");
+		return db.insert(ProviderTableMeta.FILE_TABLE_NAME, null, cv);
+	}
+	
+	private void insertShare(SQLiteDatabase db, String account, String path) {
+		ContentValues cv = new ContentValues();
+		cv.put(ProviderTableMeta.OCSHARES_PATH, path);
+		cv.put(ProviderTableMeta.OCSHARES_ACCOUNT_OWNER, account);
+		db.insert(ProviderTableMeta.OCSHARES_TABLE_NAME, null, cv);
+	}
+	
+	private int countRows(String table) {
+		SQLiteDatabase db = openDatabase();
+		try {
+			return (int) DatabaseUtils.queryNumEntries(db, table);
+		} finally {
+			db.close();
+		}
+	}
+	
+	private SQLiteDatabase openDatabase() {
+		// grants the database is created by the provider
+		getProvider().query(Uri.parse("content://org.owncloud/"), null, null, null, null).close();
+		return getMockContext().openOrCreateDatabase(ProviderMeta.DB_NAME, Context.MODE_PRIVATE, null);
+	}
+	
+	private void assertUsesIndex(String indexName, String sql, String[] args) {
+		SQLiteDatabase db = openDatabase();
+		Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+		StringBuilder details = new StringBuilder();
+		try {
+			int detailIndex = plan.getColumnIndex("detail");
+			while (plan.moveToNext()) {
+				details.append(plan.getString(detailIndex)).append("; ");
+			}
+		} finally {
+			plan.close();
+			db.close();
+		}
+		Log.i(TAG, "Query plan for " + sql + " : " + details);
+		assertTrue("Index " + indexName + " not used: " + details, details.toString().contains(indexName));
+	}
 
 }
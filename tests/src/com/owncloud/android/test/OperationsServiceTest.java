@@ -0,0 +1,143 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.owncloud.android.lib.common.operations.OnRemoteOperationListener;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.services.OperationsService;
+import com.owncloud.android.services.OperationsService.OperationsServiceBinder;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.ServiceTestCase;
+import android.util.Pair;
+
+/**
+ * Tests the identifiers and the cancellation of operations in {@link OperationsService}, against a
+ * local server that never answers until closed.
+ */
+public class OperationsServiceTest extends ServiceTestCase<OperationsService> {
+
+    private static final int WORKERS = 3;
+
+    private SilentServer mServer;
+    private HandlerThread mCallbackThread;
+    private OperationsServiceBinder mBinder;
+    private LinkedBlockingQueue<Pair<RemoteOperation, RemoteOperationResult>> mResults =
+            new LinkedBlockingQueue<Pair<RemoteOperation, RemoteOperationResult>>();
+
+    private OnRemoteOperationListener mListener = new OnRemoteOperationListener() {
+        @Override
+        public void onRemoteOperationFinish(RemoteOperation operation, RemoteOperationResult result) {
+            mResults.add(new Pair<RemoteOperation, RemoteOperationResult>(operation, result));
+        }
+    };
+
+    public OperationsServiceTest() {
+        super(OperationsService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new SilentServer();
+        mServer.start();
+        mCallbackThread = new HandlerThread("OperationsServiceTest callbacks");
+        mCallbackThread.start();
+        mBinder = (OperationsServiceBinder) bindService(new Intent(getContext(), OperationsService.class));
+        mBinder.addOperationListener(mListener, new Handler(mCallbackThread.getLooper()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBinder.removeOperationListener(mListener);
+        mServer.close();
+        mCallbackThread.quit();
+        super.tearDown();
+    }
+
+    public void testIdsIncrease() {
+        long first = mBinder.newOperation(buildUserNameIntent());
+        long second = mBinder.newOperation(buildUserNameIntent());
+        assertTrue(first < second);
+        assertTrue(mBinder.dispatchResultIfFinished(second, mListener));
+    }
+
+    public void testCancelOnlyQueued() throws InterruptedException {
+        long[] ids = new long[WORKERS + 1];
+        for (int i=0; i<ids.length; i++) {
+            ids[i] = mBinder.newOperation(buildUserNameIntent());
+        }
+
+        // the last one waits for a free worker
+        assertTrue(mBinder.cancel(ids[WORKERS]));
+        Pair<RemoteOperation, RemoteOperationResult> cancelled = mResults.poll(5, TimeUnit.SECONDS);
+        assertNotNull(cancelled);
+        assertEquals(ResultCode.CANCELLED, cancelled.second.getCode());
+        assertEquals(ids[WORKERS], mBinder.getOperationId(cancelled.first));
+
+        assertFalse(mBinder.cancel(ids[WORKERS]));
+        assertFalse(mBinder.dispatchResultIfFinished(ids[WORKERS], mListener));
+
+        // the first one is waiting for the server; it goes on until the server answers
+        assertFalse(mBinder.cancel(ids[0]));
+        assertNull(mResults.poll(1, TimeUnit.SECONDS));
+        assertTrue(mBinder.dispatchResultIfFinished(ids[0], mListener));
+
+        // its real result arrives when the connection is closed
+        mServer.close();
+        Pair<RemoteOperation, RemoteOperationResult> finished = mResults.poll(30, TimeUnit.SECONDS);
+        assertNotNull(finished);
+        assertFalse(ResultCode.CANCELLED == finished.second.getCode());
+    }
+
+    private Intent buildUserNameIntent() {
+        Intent intent = new Intent(OperationsService.ACTION_GET_USER_NAME);
+        intent.putExtra(OperationsService.EXTRA_SERVER_URL, mServer.getUrl());
+        return intent;
+    }
+
+
+    /**
+     * Server that never answers, keeping the requests in progress until closed.
+     */
+    private static class SilentServer extends StandInServer {
+
+        SilentServer() throws IOException {
+            super();
+        }
+
+        @Override
+        protected void serve(Request request, OutputStream out) throws IOException {
+            InputStream in = request.getBody();
+            while (in.read() != -1) {
+                // wait until the client or the server closes the connection
+            }
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.operations.ParallelChunkedUploadRemoteOperation;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests {@link ParallelChunkedUploadRemoteOperation} against a local HTTP server
+ * that can fail the upload of given chunks.
+ */
+public class ParallelChunkedUploadTest extends AndroidTestCase {
+
+    private static final String REMOTE_PATH = "/video.mp4";
+    private static final int CHUNK_COUNT = 4;
+    private static final int CONTENT_LENGTH = (int) (ParallelChunkedUploadRemoteOperation.CHUNK_SIZE * 7 / 2);
+
+    private ChunkServer mServer;
+    private OwnCloudClient mClient;
+    private String mLocalPath;
+    private String mStatePath;
+    private byte[] mContent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContent = new byte[CONTENT_LENGTH];
+        for (int i=0; i<CONTENT_LENGTH; i++) {
+            mContent[i] = (byte) (i / 7);
+        }
+        mLocalPath = getContext().getCacheDir().getAbsolutePath() + REMOTE_PATH;
+        mStatePath = mLocalPath + ".chunks";
+        FileOutputStream out = new FileOutputStream(mLocalPath);
+        try {
+            out.write(mContent);
+        } finally {
+            out.close();
+        }
+        new File(mStatePath).delete();
+
+        mServer = new ChunkServer();
+        mServer.start();
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse(mServer.getUrl()), getContext(), true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        new File(mLocalPath).delete();
+        new File(mStatePath).delete();
+        super.tearDown();
+    }
+
+    public void testChunksAssembledInParallel() throws Exception {
+        mServer.failChunk(1, 500, 1);   // temporal failure, retried
+        RemoteOperationResult result = newUpload(3).execute(mClient);
+        assertTrue(result.isSuccess());
+        assertTrue(Arrays.equals(mContent, mServer.assemble()));
+        assertEquals(CHUNK_COUNT - 1, mServer.getLastRequestedChunk());
+        assertFalse(new File(mStatePath).exists());
+    }
+
+    public void testResumeFromChunksSentBefore() throws Exception {
+        mServer.failChunk(2, 403, 1);   // not retried
+        ParallelChunkedUploadRemoteOperation upload = newUpload(1);
+        RemoteOperationResult result = upload.execute(mClient);
+        assertFalse(result.isSuccess());
+        assertFalse(mServer.hasChunk(2));
+        assertFalse(mServer.hasChunk(3));
+        assertTrue(new File(mStatePath).exists());
+
+        mServer.clearRequests();
+        upload = newUpload(3);
+        result = upload.execute(mClient);
+        assertTrue(result.isSuccess());
+        assertEquals(2, upload.getResumedChunks());
+        assertEquals(Arrays.asList(2, 3), mServer.getRequestedChunks());
+        assertTrue(Arrays.equals(mContent, mServer.assemble()));
+    }
+
+    private ParallelChunkedUploadRemoteOperation newUpload(int parallelChunks) {
+        return new ParallelChunkedUploadRemoteOperation(mLocalPath, REMOTE_PATH, "video/mp4", mStatePath, parallelChunks);
+    }
+
+
+    /**
+     * Server accepting the chunks of a single file, several of them at the same time.
+     */
+    private static class ChunkServer extends StandInServer {
+
+        private Map<Integer, byte[]> mChunks = new ConcurrentHashMap<Integer, byte[]>();
+        private Map<Integer, int[]> mFailures = new ConcurrentHashMap<Integer, int[]>();
+        private List<Integer> mRequestedChunks = new Vector<Integer>();
+
+        ChunkServer() throws IOException {
+            super();
+        }
+
+        /** The next 'times' requests for chunk 'index' will fail with 'status' */
+        void failChunk(int index, int status, int times) {
+            mFailures.put(index, new int[] { status, times });
+        }
+
+        boolean hasChunk(int index) {
+            return mChunks.containsKey(index);
+        }
+
+        void clearRequests() {
+            mRequestedChunks.clear();
+        }
+
+        List<Integer> getRequestedChunks() {
+            return mRequestedChunks;
+        }
+
+        int getLastRequestedChunk() {
+            return mRequestedChunks.get(mRequestedChunks.size() - 1);
+        }
+
+        byte[] assemble() {
+            byte[] data = new byte[CONTENT_LENGTH];
+            int offset = 0;
+            for (int i=0; i<CHUNK_COUNT; i++) {
+                byte[] chunk = mChunks.get(i);
+                System.arraycopy(chunk, 0, data, offset, chunk.length);
+                offset += chunk.length;
+            }
+            return data;
+        }
+
+        @Override
+        protected void serve(Request request, OutputStream out) throws IOException {
+            String path = request.getPath();
+            String[] chunking = path.substring(path.lastIndexOf("-chunking-") + 10).split("-");
+            int index = Integer.parseInt(chunking[2]);
+            mRequestedChunks.add(index);
+
+            int status = 201;
+            int[] failure = mFailures.get(index);
+            if (failure != null && failure[1] > 0) {
+                failure[1]--;
+                status = failure[0];
+            }
+            String expect = request.getHeader("Expect");
+            if (expect != null && expect.toLowerCase().contains("100-continue")) {
+                out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+                out.flush();
+            }
+            String contentLength = request.getHeader("Content-Length");
+            byte[] body = new byte[(contentLength != null) ? Integer.parseInt(contentLength) : 0];
+            new DataInputStream(request.getBody()).readFully(body);
+            if (status == 201) {
+                mChunks.put(index, body);
+            }
+            writeHead(out, status + " Status", "Content-Length: 0");
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import com.owncloud.android.files.services.PendingTransfers;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the lookup of transfers under a folder in {@link PendingTransfers}.
+ */
+public class PendingTransfersTest extends TestCase {
+
+    private static final String ACCOUNT = "user@server";
+
+    private PendingTransfers<Object> mTransfers;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTransfers = new PendingTransfers<Object>();
+        for (int i=0; i<5000; i++) {
+            mTransfers.putIfAbsent(ACCOUNT + "/Photos/2014/IMG_" + i + ".jpg", new Object());
+        }
+        mTransfers.putIfAbsent(ACCOUNT + "/Documents/notes.txt", new Object());
+    }
+
+    public void testFoldersWithTransfers() {
+        assertTrue(mTransfers.containsKeyWithPrefix(ACCOUNT + "/"));
+        assertTrue(mTransfers.containsKeyWithPrefix(ACCOUNT + "/Photos/"));
+        assertTrue(mTransfers.containsKeyWithPrefix(ACCOUNT + "/Photos/2014/"));
+        assertTrue(mTransfers.containsKeyWithPrefix(ACCOUNT + "/Documents/"));
+    }
+
+    public void testFoldersWithoutTransfers() {
+        assertFalse(mTransfers.containsKeyWithPrefix(ACCOUNT + "/Music/"));
+        assertFalse(mTransfers.containsKeyWithPrefix(ACCOUNT + "/Photos/2013/"));
+        assertFalse(mTransfers.containsKeyWithPrefix(ACCOUNT + "/Photos/2014/IMG_0/"));
+        assertFalse(mTransfers.containsKeyWithPrefix("other@server/"));
+    }
+
+    public void testRemovalsUpdateFolders() {
+        Object transfer = mTransfers.get(ACCOUNT + "/Documents/notes.txt");
+        assertFalse(mTransfers.remove(ACCOUNT + "/Documents/notes.txt", new Object()));
+        assertTrue(mTransfers.containsKeyWithPrefix(ACCOUNT + "/Documents/"));
+        assertTrue(mTransfers.remove(ACCOUNT + "/Documents/notes.txt", transfer));
+        assertFalse(mTransfers.containsKeyWithPrefix(ACCOUNT + "/Documents/"));
+
+        for (int i=0; i<5000; i++) {
+            assertNotNull(mTransfers.remove(ACCOUNT + "/Photos/2014/IMG_" + i + ".jpg"));
+        }
+        assertFalse(mTransfers.containsKeyWithPrefix(ACCOUNT + "/"));
+        assertEquals(0, mTransfers.size());
+    }
+
+}
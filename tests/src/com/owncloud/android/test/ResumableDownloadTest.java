@@ -0,0 +1,164 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.operations.ResumableDownloadRemoteOperation;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests {@link ResumableDownloadRemoteOperation} against a local HTTP server
+ * that can cut responses at a given byte.
+ */
+public class ResumableDownloadTest extends AndroidTestCase {
+
+    private static final String REMOTE_PATH = "/video.mp4";
+    private static final int CONTENT_LENGTH = 100000;
+
+    private CuttingServer mServer;
+    private OwnCloudClient mClient;
+    private String mTmpPath;
+    private byte[] mContent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContent = new byte[CONTENT_LENGTH];
+        for (int i=0; i<CONTENT_LENGTH; i++) {
+            mContent[i] = (byte) i;
+        }
+        mServer = new CuttingServer();
+        mServer.start();
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse(mServer.getUrl()), getContext(), true);
+        mTmpPath = getContext().getCacheDir().getAbsolutePath() + REMOTE_PATH;
+        new File(mTmpPath).delete();
+        new File(mTmpPath + ResumableDownloadRemoteOperation.ETAG_FILE_SUFFIX).delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testResumeAfterInterruption() throws Exception {
+        mServer.setResponse(mContent, "\"etag1\"", CONTENT_LENGTH * 95 / 100);
+        RemoteOperationResult result = new ResumableDownloadRemoteOperation(REMOTE_PATH, mTmpPath).execute(mClient);
+        assertFalse(result.isSuccess());
+        assertEquals(CONTENT_LENGTH * 95 / 100, new File(mTmpPath).length());
+
+        mServer.setResponse(mContent, "\"etag1\"", -1);
+        ResumableDownloadRemoteOperation resumed = new ResumableDownloadRemoteOperation(REMOTE_PATH, mTmpPath);
+        result = resumed.execute(mClient);
+        assertTrue(result.isSuccess());
+        assertEquals("bytes=" + (CONTENT_LENGTH * 95 / 100) + "-", mServer.getLastRangeHeader());
+        assertEquals(CONTENT_LENGTH * 95 / 100, resumed.getResumedFrom());
+        assertTrue(Arrays.equals(mContent, readFile(mTmpPath)));
+        assertFalse(new File(mTmpPath + ResumableDownloadRemoteOperation.ETAG_FILE_SUFFIX).exists());
+    }
+
+    public void testFullDownloadWhenRemoteFileChanged() throws Exception {
+        mServer.setResponse(mContent, "\"etag1\"", CONTENT_LENGTH / 2);
+        new ResumableDownloadRemoteOperation(REMOTE_PATH, mTmpPath).execute(mClient);
+
+        byte[] newContent = new byte[CONTENT_LENGTH];
+        Arrays.fill(newContent, (byte) 7);
+        mServer.setResponse(newContent, "\"etag2\"", -1);
+        ResumableDownloadRemoteOperation retry = new ResumableDownloadRemoteOperation(REMOTE_PATH, mTmpPath);
+        RemoteOperationResult result = retry.execute(mClient);
+        assertTrue(result.isSuccess());
+        assertEquals(0, retry.getResumedFrom());
+        assertTrue(Arrays.equals(newContent, readFile(mTmpPath)));
+    }
+
+    private byte[] readFile(String path) throws IOException {
+        File file = new File(path);
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                read += in.read(data, read, data.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+
+    /**
+     * Server of a single resource; honours Range and If-Range, and can close the connection
+     * after a number of bytes of the body to simulate a network failure.
+     */
+    private static class CuttingServer extends StandInServer {
+
+        private volatile byte[] mBody;
+        private volatile String mEtag;
+        private volatile int mCutAt;
+        private volatile String mLastRangeHeader;
+
+        CuttingServer() throws IOException {
+            super();
+        }
+
+        void setResponse(byte[] body, String etag, int cutAt) {
+            mBody = body;
+            mEtag = etag;
+            mCutAt = cutAt;
+        }
+
+        String getLastRangeHeader() {
+            return mLastRangeHeader;
+        }
+
+        @Override
+        protected void serve(Request request, OutputStream out) throws IOException {
+            String range = request.getHeader("Range");
+            mLastRangeHeader = range;
+
+            int start = 0;
+            String status = "200 OK";
+            if (range != null && mEtag.equals(request.getHeader("If-Range"))) {
+                start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                status = "206 Partial Content";
+            }
+            int length = mBody.length - start;
+            if (start > 0) {
+                writeHead(out, status, "ETag: " + mEtag, "Content-Length: " + length, 
+                        "Content-Range: bytes " + start + "-" + (mBody.length - 1) + "/" + mBody.length);
+            } else {
+                writeHead(out, status, "ETag: " + mEtag, "Content-Length: " + length);
+            }
+            int toWrite = (mCutAt >= 0) ? Math.min(length, mCutAt - start) : length;
+            out.write(mBody, start, toWrite);
+        }
+    }
+
+}
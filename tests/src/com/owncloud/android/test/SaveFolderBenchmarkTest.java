@@ -0,0 +1,113 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.providers.FileContentProvider;
+
+import android.accounts.Account;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+/**
+ * Times {@link FileDataStorageManager#saveFolder(OCFile, java.util.Collection, java.util.Collection)}
+ * for folders with 100, 1.000 and 10.000 children.
+ *
+ * The time spent in the per-child existence lookups done before the bulk lookup was introduced
+ * (two queries per child) is measured over the same data as reference.
+ */
+public class SaveFolderBenchmarkTest extends ProviderTestCase2<FileContentProvider> {
+
+    private static final String TAG = SaveFolderBenchmarkTest.class.getSimpleName();
+
+    private static final String AUTHORITY = "org.owncloud";
+
+    private FileDataStorageManager mStorageManager;
+
+    public SaveFolderBenchmarkTest() {
+        super(FileContentProvider.class, AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mStorageManager = new FileDataStorageManager(
+                new Account("benchmark@localhost", "owncloud"),
+                getMockContentResolver());
+    }
+
+    public void testSaveFolder100() {
+        runBenchmark(100);
+    }
+
+    public void testSaveFolder1000() {
+        runBenchmark(1000);
+    }
+
+    public void testSaveFolder10000() {
+        runBenchmark(10000);
+    }
+
+    private void runBenchmark(int numChildren) {
+        OCFile root = mStorageManager.getFileByPath(OCFile.ROOT_PATH);
+        OCFile folder = new OCFile("/benchmark" + numChildren + OCFile.PATH_SEPARATOR);
+        folder.setMimetype("DIR");
+        folder.setParentId(root.getFileId());
+        mStorageManager.saveFile(folder);
+
+        ArrayList<OCFile> children = new ArrayList<OCFile>(numChildren);
+        for (int i=0; i<numChildren; i++) {
+            OCFile child = new OCFile(folder.getRemotePath() + "IMG_" + i + ".jpg");
+            child.setMimetype("image/jpeg");
+            child.setFileLength(i);
+            child.setParentId(folder.getFileId());
+            children.add(child);
+        }
+
+        // first save: every child is inserted
+        long start = System.currentTimeMillis();
+        mStorageManager.saveFolder(folder, children, new ArrayList<OCFile>());
+        long insertTime = System.currentTimeMillis() - start;
+
+        // second save: every child is updated
+        start = System.currentTimeMillis();
+        mStorageManager.saveFolder(folder, children, new ArrayList<OCFile>());
+        long updateTime = System.currentTimeMillis() - start;
+
+        // reference: cost of the former per-child lookups
+        start = System.currentTimeMillis();
+        for (OCFile child : children) {
+            if (!mStorageManager.fileExists(child.getRemotePath())) {
+                mStorageManager.fileExists(child.getFileId());
+            }
+        }
+        long legacyLookupTime = System.currentTimeMillis() - start;
+
+        Log.i(TAG, "saveFolder with " + numChildren + " children: insert " + insertTime +
+                " ms, update " + updateTime + " ms; per-child lookups alone " + legacyLookupTime + " ms");
+
+        assertEquals(numChildren, mStorageManager.getFolderContent(folder).size());
+        for (OCFile child : children) {
+            assertTrue(child.getFileId() != -1);
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal local HTTP server standing for the ownCloud server in tests.
+ *
+ * Every connection is served in its own thread; subclasses write the response in
+ * {@link #serve(Request, OutputStream)}. Connections are closed after it returns, or when
+ * the server is closed.
+ */
+abstract class StandInServer extends Thread {
+
+    private final ServerSocket mServerSocket;
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+    private volatile int mRequestCount = 0;
+
+    StandInServer() throws IOException {
+        mServerSocket = new ServerSocket(0);
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Stops accepting connections and closes the ones still open.
+     */
+    void close() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+            mSockets.clear();
+        }
+    }
+
+    /**
+     * Answers a request.
+     *
+     * @param request       Request received; its body is not read yet.
+     * @param out           Stream to write the response to.
+     */
+    protected abstract void serve(Request request, OutputStream out) throws IOException;
+
+    @Override
+    public void run() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                synchronized (mSockets) {
+                    mSockets.add(socket);
+                }
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Request request = Request.read(socket.getInputStream());
+                            if (request != null) {
+                                mRequestCount++;
+                                serve(request, socket.getOutputStream());
+                                socket.getOutputStream().flush();
+                            }
+                        } catch (IOException e) {
+                            // connection lost or server closed
+                        } finally {
+                            synchronized (mSockets) {
+                                mSockets.remove(socket);
+                            }
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // nothing to do
+                            }
+                        }
+                    }
+                }.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Writes the status line and the headers of a response; the connection is always closed after it.
+     *
+     * @param out           Stream to write to.
+     * @param status        Status code and reason, e.g. "200 OK".
+     * @param headers       Complete header lines, e.g. "Content-Length: 0".
+     */
+    static void writeHead(OutputStream out, String status, String... headers) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        for (String header : headers) {
+            head.append(header).append("\r\n");
+        }
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+    }
+
+
+    /**
+     * Request line and headers of a request received.
+     */
+    static class Request {
+
+        private final String mMethod;
+        private final String mPath;
+        private final Map<String, String> mHeaders;
+        private final InputStream mBody;
+
+        private Request(String method, String path, Map<String, String> headers, InputStream body) {
+            mMethod = method;
+            mPath = path;
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        String getMethod() {
+            return mMethod;
+        }
+
+        String getPath() {
+            return mPath;
+        }
+
+        /**
+         * @param name      Name of the header, in any case.
+         * @return          Value of the header, or null if not received.
+         */
+        String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase());
+        }
+
+        /**
+         * @return          Stream to read the body of the request.
+         */
+        InputStream getBody() {
+            return mBody;
+        }
+
+        private static Request read(InputStream in) throws IOException {
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            return new Request(parts[0], (parts.length > 1) ? parts[1] : "/", headers, in);
+        }
+
+        /** Reads a line without buffering, so that the body is left in the stream */
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return (c == -1 && line.length() == 0) ? null : line.toString();
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.media.StreamingProxy;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests {@link StreamingProxy} against a local HTTP server standing for the ownCloud server.
+ */
+public class StreamingProxyTest extends AndroidTestCase {
+
+    private static final String REMOTE_PATH = "/Music/song.mp3";
+    private static final int CONTENT_LENGTH = 300000;
+
+    private RangeServer mServer;
+    private OwnCloudClient mClient;
+    private OCFile mFile;
+    private byte[] mContent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContent = new byte[CONTENT_LENGTH];
+        for (int i=0; i<CONTENT_LENGTH; i++) {
+            mContent[i] = (byte) i;
+        }
+        mServer = new RangeServer(mContent);
+        mServer.start();
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse(mServer.getUrl()), getContext(), true);
+        mFile = new OCFile(REMOTE_PATH);
+        mFile.setMimetype("audio/mpeg");
+        mFile.setFileLength(CONTENT_LENGTH);
+        // new version in every run, so that nothing is cached from previous runs
+        mFile.setEtag("\"" + System.currentTimeMillis() + "\"");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testRangeServedAndCached() throws Exception {
+        String url = StreamingProxy.getInstance(getContext()).getUrl(mClient, mFile);
+        assertTrue(url.startsWith("http://127.0.0.1:"));
+
+        HttpURLConnection connection = open(url, "bytes=1000-50999");
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 1000-50999/" + CONTENT_LENGTH, connection.getHeaderField("Content-Range"));
+        assertTrue(Arrays.equals(slice(1000, 51000), read(connection)));
+        assertEquals(1, mServer.getRequestCount());
+
+        // the same range is served from the cache
+        mServer.close();
+        connection = open(url, "bytes=20000-29999");
+        assertEquals(206, connection.getResponseCode());
+        assertTrue(Arrays.equals(slice(20000, 30000), read(connection)));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    public void testServerFailureReported() throws Exception {
+        String url = StreamingProxy.getInstance(getContext()).getUrl(mClient, mFile);
+        mServer.close();
+        assertEquals(502, open(url, "bytes=0-999").getResponseCode());
+    }
+
+    public void testUnknownTokenNotFound() throws Exception {
+        String url = StreamingProxy.getInstance(getContext()).getUrl(mClient, mFile);
+        String forged = url.substring(0, url.indexOf('/', "http://".length()) + 1) + "0123456789abcdef/song.mp3";
+        assertEquals(404, open(forged, null).getResponseCode());
+    }
+
+    private byte[] slice(int start, int end) {
+        byte[] slice = new byte[end - start];
+        System.arraycopy(mContent, start, slice, 0, slice.length);
+        return slice;
+    }
+
+    private HttpURLConnection open(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    private byte[] read(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                read.write(buffer, 0, count);
+            }
+            return read.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Server of a single resource; honours ranges 'bytes=start-end'.
+     */
+    private static class RangeServer extends StandInServer {
+
+        private final byte[] mBody;
+
+        RangeServer(byte[] body) throws IOException {
+            super();
+            mBody = body;
+        }
+
+        @Override
+        protected void serve(Request request, OutputStream out) throws IOException {
+            String range = request.getHeader("Range");
+            int start = 0, end = mBody.length - 1;
+            if (range != null) {
+                String[] limits = range.substring("bytes=".length()).split("-");
+                start = Integer.parseInt(limits[0]);
+                if (limits.length > 1) {
+                    end = Math.min(end, Integer.parseInt(limits[1]));
+                }
+                writeHead(out, "206 Partial Content", "Content-Length: " + (end - start + 1), 
+                        "Content-Range: bytes " + start + "-" + end + "/" + mBody.length);
+            } else {
+                writeHead(out, "200 OK", "Content-Length: " + mBody.length);
+            }
+            out.write(mBody, start, end - start + 1);
+        }
+    }
+
+}
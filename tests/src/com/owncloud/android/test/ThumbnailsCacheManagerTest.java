@@ -0,0 +1,92 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
+
+import android.accounts.Account;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the generation and invalidation of thumbnails by {@link ThumbnailsCacheManager}.
+ */
+public class ThumbnailsCacheManagerTest extends AndroidTestCase {
+
+    private static final Account ACCOUNT = new Account("thumbnails-test@localhost", "owncloud");
+
+    private File mImage;
+    private ThumbnailsCacheManager mManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mImage = new File(getContext().getCacheDir(), "thumbnail_source.jpg");
+        Bitmap bitmap = Bitmap.createBitmap(1600, 1200, Bitmap.Config.RGB_565);
+        bitmap.eraseColor(Color.RED);
+        FileOutputStream out = new FileOutputStream(mImage);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+        mManager = ThumbnailsCacheManager.getInstance(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mImage.delete();
+        super.tearDown();
+    }
+
+    public void testThumbnailGeneratedFromDownloadedFile() {
+        OCFile file = buildFile("\"etag-generated\"");
+        assertNull(mManager.getThumbnailFromMemory(ACCOUNT, file));
+
+        Bitmap thumbnail = mManager.getThumbnail(ACCOUNT, file);
+        assertNotNull(thumbnail);
+        assertEquals(thumbnail.getWidth(), thumbnail.getHeight());
+        assertTrue(thumbnail.getWidth() < 1200);
+        assertSame(thumbnail, mManager.getThumbnailFromMemory(ACCOUNT, file));
+    }
+
+    public void testThumbnailKeptAfterLocalFileRemoved() {
+        OCFile file = buildFile("\"etag-stored\"");
+        assertNotNull(mManager.getThumbnail(ACCOUNT, file));
+        mImage.delete();
+        assertNotNull(mManager.getThumbnail(ACCOUNT, file));
+
+        // a new version in the server is not downloaded
+        assertNull(mManager.getThumbnail(ACCOUNT, buildFile("\"etag-changed\"")));
+    }
+
+    private OCFile buildFile(String etag) {
+        OCFile file = new OCFile("/Photos/thumbnail_source.jpg");
+        file.setMimetype("image/jpeg");
+        file.setStoragePath(mImage.getAbsolutePath());
+        file.setEtag(etag);
+        return file;
+    }
+
+}
@@ -0,0 +1,157 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.db.DbHandler;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Tests the persistent queue of transfers kept by {@link DbHandler}.
+ */
+public class TransferQueueTest extends AndroidTestCase {
+
+    private static final String ACCOUNT_NAME = "transfer-queue-test@localhost";
+
+    private Context mTestContext;
+    private DbHandler mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // separate database, so that the one of the installed app is not touched
+        mTestContext = new RenamingDelegatingContext(getContext(), "test_");
+        mTestContext.deleteDatabase(MainApp.getDBName());
+        mDb = new DbHandler(mTestContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mTestContext.deleteDatabase(MainApp.getDBName());
+        super.tearDown();
+    }
+
+    public void testQueuedTransfersSurviveRestart() {
+        mDb.queueTransfers(DbHandler.TRANSFER_TYPE_UPLOAD, ACCOUNT_NAME, buildTransfers(3));
+        mDb.setTransferInProgress(DbHandler.TRANSFER_TYPE_UPLOAD, ACCOUNT_NAME, "/remote1");
+        mDb.setTransferProgress(DbHandler.TRANSFER_TYPE_UPLOAD, ACCOUNT_NAME, "/remote1", 4096);
+        mDb.close();
+
+        // a new handler, as after a restart of the app
+        mDb = new DbHandler(mTestContext);
+        List<String> pending = getPendingRemotePaths(DbHandler.TRANSFER_TYPE_UPLOAD);
+        assertEquals(3, pending.size());
+        assertEquals("/remote0", pending.get(0));
+        assertEquals("/remote1", pending.get(1));
+        assertEquals("/remote2", pending.get(2));
+
+        Cursor c = mDb.getPendingTransfers(DbHandler.TRANSFER_TYPE_UPLOAD);
+        try {
+            while (c.moveToNext()) {
+                if ("/remote1".equals(c.getString(c.getColumnIndex(DbHandler.TRANSFER_REMOTE_PATH)))) {
+                    assertEquals(DbHandler.TRANSFER_STATE_QUEUED, c.getInt(c.getColumnIndex(DbHandler.TRANSFER_STATE)));
+                    assertEquals(1, c.getInt(c.getColumnIndex(DbHandler.TRANSFER_ATTEMPTS)));
+                    assertEquals(4096, c.getLong(c.getColumnIndex(DbHandler.TRANSFER_BYTES_DONE)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        assertTrue(getPendingRemotePaths(DbHandler.TRANSFER_TYPE_DOWNLOAD).isEmpty());
+    }
+
+    public void testQueuingAgainDoesNotDuplicate() {
+        mDb.queueTransfers(DbHandler.TRANSFER_TYPE_DOWNLOAD, ACCOUNT_NAME, buildTransfers(2));
+        mDb.queueTransfers(DbHandler.TRANSFER_TYPE_DOWNLOAD, ACCOUNT_NAME, buildTransfers(3));
+        assertEquals(3, getPendingRemotePaths(DbHandler.TRANSFER_TYPE_DOWNLOAD).size());
+
+        mDb.removeTransfer(DbHandler.TRANSFER_TYPE_DOWNLOAD, ACCOUNT_NAME, "/remote0");
+        assertEquals(2, getPendingRemotePaths(DbHandler.TRANSFER_TYPE_DOWNLOAD).size());
+    }
+
+    public void testInstantUploadSavedForLater() {
+        mDb.putFileForLater("/local0", ACCOUNT_NAME, null);
+        assertTrue(getInstantUploadPaths(mDb.getAwaitingFiles()).contains("/local0"));
+        assertFalse(getPendingRemotePaths(DbHandler.TRANSFER_TYPE_UPLOAD).contains("/remote0"));
+
+        // queued by the uploader, the same entry is updated with the remote path
+        mDb.queueTransfers(DbHandler.TRANSFER_TYPE_UPLOAD, ACCOUNT_NAME, buildTransfers(1));
+        assertFalse(getInstantUploadPaths(mDb.getAwaitingFiles()).contains("/local0"));
+        assertTrue(getPendingRemotePaths(DbHandler.TRANSFER_TYPE_UPLOAD).contains("/remote0"));
+
+        mDb.setTransferStopped(DbHandler.TRANSFER_TYPE_UPLOAD, ACCOUNT_NAME, "/remote0",
+                DbHandler.TRANSFER_STATE_FAILED, 0, "quota");
+        Cursor c = mDb.getFailedFiles();
+        List<String> failed = getInstantUploadPaths(c);
+        assertTrue(failed.contains("/local0"));
+        assertFalse(getPendingRemotePaths(DbHandler.TRANSFER_TYPE_UPLOAD).contains("/remote0"));
+
+        assertTrue(mDb.removeIUPendingFile("/local0"));
+        assertFalse(getInstantUploadPaths(mDb.getFailedFiles()).contains("/local0"));
+    }
+
+    private List<ContentValues> buildTransfers(int count) {
+        List<ContentValues> transfers = new ArrayList<ContentValues>();
+        for (int i = 0; i < count; i++) {
+            ContentValues cv = new ContentValues();
+            cv.put(DbHandler.TRANSFER_LOCAL_PATH, "/local" + i);
+            cv.put(DbHandler.TRANSFER_REMOTE_PATH, "/remote" + i);
+            transfers.add(cv);
+        }
+        return transfers;
+    }
+
+    private List<String> getPendingRemotePaths(int type) {
+        List<String> paths = new ArrayList<String>();
+        Cursor c = mDb.getPendingTransfers(type);
+        try {
+            while (c.moveToNext()) {
+                if (ACCOUNT_NAME.equals(c.getString(c.getColumnIndex(DbHandler.TRANSFER_ACCOUNT)))) {
+                    paths.add(c.getString(c.getColumnIndex(DbHandler.TRANSFER_REMOTE_PATH)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return paths;
+    }
+
+    private List<String> getInstantUploadPaths(Cursor c) {
+        List<String> paths = new ArrayList<String>();
+        try {
+            while (c.moveToNext()) {
+                if (ACCOUNT_NAME.equals(c.getString(c.getColumnIndex("account")))) {
+                    paths.add(c.getString(1));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return paths;
+    }
+
+}